@@ -0,0 +1,445 @@
+/**
+ * AsyncStores lets the user, weet and follower stores be used from request
+ * handlers running on virtual threads without the long queries blocking them.
+ * Every method returns a CompletableFuture, and the queries that return whole
+ * lists can also be read with a Flow.Publisher.
+ *
+ * Queries that scan or sort a whole store, like getWeets and the searches, are
+ * run on a ForkJoinPool with a fixed number of threads. Only maxPending of them
+ * can be waiting or running at once; any more fail straight away with a
+ * RejectedExecutionException. This keeps the time a query can spend waiting
+ * bounded when there is a burst of expensive searches, rather than the queue
+ * and the wait growing without limit. Cheap point lookups like getUser,
+ * getWeet and getNumFollowers, and the adds, are run straight away on the
+ * calling thread, as handing them to another thread would cost more than
+ * running them.
+ *
+ * The stores are not thread safe, so each store is guarded by its own
+ * ReadWriteLock. Queries that only read the store share the read lock, so a
+ * point lookup never waits for a long scan and the scans run side by side.
+ * The adds take the write lock, and so do the searches, as a search changes
+ * the store's QueryCache even when the result is already cached. The locks
+ * are ReentrantReadWriteLocks unless the caller passes in their own, which
+ * is how an IngestPipeline, LocalShard or ReplayHarness working on the same
+ * stores can share them. A store whose queries keep scratch space, such as
+ * TieredWeetStore keeping the last block it inflated, needs a lock whose read
+ * lock is also exclusive. A java.util.concurrent lock is used rather than
+ * synchronized because a virtual thread waiting for it is unmounted from its
+ * carrier thread instead of pinning it.
+ *
+ * A query on the pool waiting for a lock would hold up one of its few
+ * threads, so the lock is taken with ForkJoinPool.managedBlock, which lets
+ * the pool start another thread to keep the other queries running while it
+ * waits.
+ *
+ * The publishers run their query on the pool when they are subscribed to, then
+ * send the results one at a time, only as many as the subscriber has
+ * requested, so a slow subscriber is never sent more than it asked for.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+public class AsyncStores implements AutoCloseable {
+
+    private final IUserStore userStore;
+    private final IWeetStore weetStore;
+    private final IFollowerStore followerStore;
+    private final ReadWriteLock userLock;
+    private final ReadWriteLock weetLock;
+    private final ReadWriteLock followerLock;
+    private final ForkJoinPool pool;
+    // permits for the heavy queries that are waiting or running
+    private final Semaphore pending;
+
+    public AsyncStores(IUserStore userStore, IWeetStore weetStore, IFollowerStore followerStore) {
+        this(userStore, weetStore, followerStore, Runtime.getRuntime().availableProcessors(), 256);
+    }
+
+    public AsyncStores(IUserStore userStore, IWeetStore weetStore, IFollowerStore followerStore,
+                       int parallelism, int maxPending) {
+        this(userStore, weetStore, followerStore, new ReentrantReadWriteLock(), new ReentrantReadWriteLock(),
+            new ReentrantReadWriteLock(), parallelism, maxPending);
+    }
+
+    public AsyncStores(IUserStore userStore, IWeetStore weetStore, IFollowerStore followerStore,
+                       ReadWriteLock userLock, ReadWriteLock weetLock, ReadWriteLock followerLock,
+                       int parallelism, int maxPending) {
+        this.userStore = userStore;
+        this.weetStore = weetStore;
+        this.followerStore = followerStore;
+        this.userLock = userLock;
+        this.weetLock = weetLock;
+        this.followerLock = followerLock;
+        this.pool = new ForkJoinPool(parallelism);
+        this.pending = new Semaphore(maxPending);
+    }
+
+    // UserStore
+
+    public CompletableFuture<Boolean> addUser(User usr) {
+        return inline(userLock.writeLock(), () -> userStore.addUser(usr));
+    }
+
+    public CompletableFuture<User> getUser(int uid) {
+        return inline(userLock.readLock(), () -> userStore.getUser(uid));
+    }
+
+    public CompletableFuture<User[]> getUsers() {
+        return offload(userLock.readLock(), () -> userStore.getUsers());
+    }
+
+    public CompletableFuture<User[]> getUsersContaining(String query) {
+        return offload(userLock.writeLock(), () -> userStore.getUsersContaining(query));
+    }
+
+    public CompletableFuture<User[]> getUsersJoinedBefore(Date dateBefore) {
+        return offload(userLock.readLock(), () -> userStore.getUsersJoinedBefore(dateBefore));
+    }
+
+    public Flow.Publisher<User> publishUsers() {
+        return new ArrayPublisher<>(userLock.readLock(), () -> userStore.getUsers());
+    }
+
+    public Flow.Publisher<User> publishUsersContaining(String query) {
+        return new ArrayPublisher<>(userLock.writeLock(), () -> userStore.getUsersContaining(query));
+    }
+
+    // WeetStore
+
+    public CompletableFuture<Boolean> addWeet(Weet weet) {
+        return inline(weetLock.writeLock(), () -> weetStore.addWeet(weet));
+    }
+
+    public CompletableFuture<Weet> getWeet(int wid) {
+        return inline(weetLock.readLock(), () -> weetStore.getWeet(wid));
+    }
+
+    public CompletableFuture<Weet[]> getWeets() {
+        return offload(weetLock.readLock(), () -> weetStore.getWeets());
+    }
+
+    public CompletableFuture<Weet[]> getWeetsByUser(User usr) {
+        return offload(weetLock.readLock(), () -> weetStore.getWeetsByUser(usr));
+    }
+
+    public CompletableFuture<Weet[]> getWeetsContaining(String query) {
+        return offload(weetLock.writeLock(), () -> weetStore.getWeetsContaining(query));
+    }
+
+    public CompletableFuture<Weet[]> getWeetsOn(Date dateOn) {
+        return offload(weetLock.readLock(), () -> weetStore.getWeetsOn(dateOn));
+    }
+
+    public CompletableFuture<Weet[]> getWeetsBefore(Date dateBefore) {
+        return offload(weetLock.readLock(), () -> weetStore.getWeetsBefore(dateBefore));
+    }
+
+    public CompletableFuture<String[]> getTrending() {
+        return offload(weetLock.readLock(), () -> weetStore.getTrending());
+    }
+
+    public Flow.Publisher<Weet> publishWeets() {
+        return new ArrayPublisher<>(weetLock.readLock(), () -> weetStore.getWeets());
+    }
+
+    public Flow.Publisher<Weet> publishWeetsContaining(String query) {
+        // getWeetsContaining returns null when nothing matches, which is published as no weets
+        return new ArrayPublisher<>(weetLock.writeLock(), () -> weetStore.getWeetsContaining(query));
+    }
+
+    // FollowerStore
+
+    public CompletableFuture<Boolean> addFollower(int uid1, int uid2, Date followDate) {
+        return inline(followerLock.writeLock(), () -> followerStore.addFollower(uid1, uid2, followDate));
+    }
+
+    public CompletableFuture<Boolean> isAFollower(int uidFollower, int uidFollows) {
+        return inline(followerLock.readLock(), () -> followerStore.isAFollower(uidFollower, uidFollows));
+    }
+
+    public CompletableFuture<int[]> getFollowers(int uid) {
+        return offload(followerLock.readLock(), () -> followerStore.getFollowers(uid));
+    }
+
+    public CompletableFuture<int[]> getFollows(int uid) {
+        return offload(followerLock.readLock(), () -> followerStore.getFollows(uid));
+    }
+
+    public CompletableFuture<Integer> getNumFollowers(int uid) {
+        return inline(followerLock.readLock(), () -> followerStore.getNumFollowers(uid));
+    }
+
+    public CompletableFuture<int[]> getMutualFollowers(int uid1, int uid2) {
+        return offload(followerLock.readLock(), () -> followerStore.getMutualFollowers(uid1, uid2));
+    }
+
+    public CompletableFuture<int[]> getMutualFollows(int uid1, int uid2) {
+        return offload(followerLock.readLock(), () -> followerStore.getMutualFollows(uid1, uid2));
+    }
+
+    public CompletableFuture<int[]> getTopUsers() {
+        return offload(followerLock.readLock(), () -> followerStore.getTopUsers());
+    }
+
+    /**
+     * getPendingPermits: return how many more heavy queries can be accepted
+     * before new ones are rejected.
+     *
+     */
+
+    public int getPendingPermits() {
+        return pending.availablePermits();
+    }
+
+    /**
+     * getUserLock, getWeetLock, getFollowerLock: the locks guarding each
+     * store, for anything else using the stores at the same time.
+     *
+     */
+
+    public ReadWriteLock getUserLock() {
+        return userLock;
+    }
+
+    public ReadWriteLock getWeetLock() {
+        return weetLock;
+    }
+
+    public ReadWriteLock getFollowerLock() {
+        return followerLock;
+    }
+
+    /**
+     * close: stop accepting heavy queries and wait up to 10 seconds for the
+     * ones already running to finish, then interrupt any still running. If the
+     * calling thread is interrupted while waiting, the queries are interrupted
+     * straight away and the thread's interrupt status is kept.
+     *
+     */
+
+    public void close() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // run a query on the calling thread while holding the lock
+    private static <T> CompletableFuture<T> inline(Lock lock, Supplier<T> query) {
+        try {
+            return CompletableFuture.completedFuture(locked(lock, query));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // run a query on the pool, or fail straight away if too many are pending
+    private <T> CompletableFuture<T> offload(Lock lock, Supplier<T> query) {
+        if (!pending.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("too many pending queries"));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return blocking(lock, query);
+                } finally {
+                    pending.release();
+                }
+            }, pool);
+        } catch (RejectedExecutionException e) {
+            // the pool has been shut down
+            pending.release();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static <T> T locked(Lock lock, Supplier<T> query) {
+        lock.lock();
+        try {
+            return query.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the same as locked, but tells the pool this thread may block while it waits for the lock
+    private static <T> T blocking(Lock lock, Supplier<T> query) {
+        try {
+            ForkJoinPool.managedBlock(new LockBlocker(lock));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        try {
+            return query.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * LockBlocker: takes a lock for ForkJoinPool.managedBlock, trying without
+     * waiting first so the pool only adds a thread when the lock is held.
+     *
+     */
+    private static class LockBlocker implements ForkJoinPool.ManagedBlocker {
+        private final Lock lock;
+        private boolean locked;
+
+        public LockBlocker(Lock lock) {
+            this.lock = lock;
+        }
+
+        public boolean block() {
+            if (!locked) {
+                lock.lock();
+                locked = true;
+            }
+            return true;
+        }
+
+        public boolean isReleasable() {
+            if (!locked) {
+                locked = lock.tryLock();
+            }
+            return locked;
+        }
+    }
+
+    /**
+     * ArrayPublisher: publishes the elements of the array returned by a query.
+     * The query is run once for each subscriber, on the pool, and the elements
+     * are sent as they are requested.
+     *
+     */
+    private class ArrayPublisher<T> implements Flow.Publisher<T> {
+        private final Lock lock;
+        private final Supplier<T[]> query;
+
+        public ArrayPublisher(Lock lock, Supplier<T[]> query) {
+            this.lock = lock;
+            this.query = query;
+        }
+
+        public void subscribe(Flow.Subscriber<? super T> subscriber) {
+            ArraySubscription<T> subscription = new ArraySubscription<>(subscriber);
+            subscriber.onSubscribe(subscription);
+            offload(lock, query).whenComplete((items, error) -> subscription.start(items, error));
+        }
+    }
+
+    /**
+     * ArraySubscription: sends the items to the subscriber, no more than have
+     * been requested. Only one thread sends at a time; a thread that finds
+     * another already sending just adds to the work count so the other thread
+     * goes round again.
+     *
+     */
+    private class ArraySubscription<T> implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile T[] items;
+        private volatile Throwable error;
+        private volatile boolean ready;
+        private volatile boolean cancelled;
+        private int index;
+
+        public ArraySubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be positive, was " + n);
+                ready = true;
+            } else {
+                // add to the demand, stopping at Long.MAX_VALUE
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        // called once the query has finished
+        public void start(T[] result, Throwable failure) {
+            if (failure != null && error == null) {
+                error = failure;
+            }
+            items = result;
+            ready = true;
+            drain();
+        }
+
+        private void drain() {
+            if (work.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    return;
+                }
+                if (ready) {
+                    if (error != null) {
+                        cancelled = true;
+                        subscriber.onError(error);
+                        return;
+                    }
+                    T[] array = items;
+                    int length = array == null ? 0 : array.length;
+                    long sent = 0;
+                    long demand = requested.get();
+                    while (sent < demand && index < length && !cancelled) {
+                        subscriber.onNext(array[index++]);
+                        sent++;
+                    }
+                    if (sent > 0 && demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-sent);
+                    }
+                    if (index == length && !cancelled) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                }
+                missed = work.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * BloomFilter answers "might this key have been added?" using a small array of
+ * bits rather than the keys themselves. If it says no then the key was
+ * definitely never added, so the stores can use it to answer lookups for ids
+ * they don't have without going through their hash tables. If it says yes the
+ * key was probably added, and the store has to check properly.
+ *
+ * Each key sets k bits, picked by k hashes of the key. A key that was added
+ * always has all of its bits set, so there are no false negatives; a key that
+ * wasn't added can find all of its bits set by other keys, which is a false
+ * positive. The chance of this goes up as more keys are added, so the filter
+ * is made for an expected number of keys and a false positive rate, which
+ * give the number of bits and hashes, or with the number of bits directly to
+ * limit the memory used.
+ *
+ * Keys can't be taken out, as a bit may be shared with other keys. When
+ * something is removed from a store its bits are left set, which is safe: the
+ * filter just says it might be there and the store checks its table.
+ *
+ * The k hashes are made from two halves of one 64 bit hash, h1 + i * h2, as
+ * described by Kirsch and Mitzenmacher, which is as good as k separate hashes
+ * for a Bloom filter. Like the stores it is not thread safe.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class BloomFilter {
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+    private long insertions;
+
+    /**
+     * Make a filter for the expected number of keys with the given false
+     * positive rate, such as 0.01 for 1 in 100. Using
+     *     m = -n ln(p) / ln(2)^2 bits and k = (m / n) ln(2) hashes.
+     *
+     */
+
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        this(bitsFor(expectedInsertions, falsePositiveRate),
+            hashesFor(expectedInsertions, bitsFor(expectedInsertions, falsePositiveRate)));
+    }
+
+    /**
+     * Make a filter using the given number of bits and hashes, so its memory
+     * is fixed at about bitCount / 8 bytes.
+     *
+     */
+
+    public BloomFilter(long bitCount, int hashCount) {
+        if (bitCount < 64 || hashCount < 1) {
+            throw new IllegalArgumentException("a filter needs at least 64 bits and one hash");
+        }
+        if (bitCount > (long) Integer.MAX_VALUE * 64) {
+            throw new IllegalArgumentException("too many bits: " + bitCount);
+        }
+        bits = new long[(int) ((bitCount + 63) / 64)];
+        this.bitCount = (long) bits.length * 64;
+        this.hashCount = hashCount;
+    }
+
+    private static long bitsFor(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("need at least one insertion and a rate between 0 and 1");
+        }
+        double bitsNeeded = -expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return Math.max(64, (long) Math.ceil(bitsNeeded));
+    }
+
+    private static int hashesFor(long expectedInsertions, long bitCount) {
+        return Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * put: add the key to the filter.
+     *
+     * Algorithm Complexity: O(k)
+     * where k is the number of hashes
+     *
+     */
+
+    public void put(long key) {
+        long hash = mix(key);
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xffffffffL;
+        for (int i=0; i<hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        insertions++;
+    }
+
+    /**
+     * mightContain: return false if the key has definitely not been added,
+     * and true if it probably has.
+     *
+     * Algorithm Complexity: O(k)
+     * where k is the number of hashes
+     *
+     */
+
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xffffffffL;
+        for (int i=0; i<hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * pairKey: the key used for a pair of ints, such as a follow relationship.
+     *
+     */
+
+    public static long pairKey(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    /**
+     * Methods used to monitor the filter: the number of bits and hashes, the
+     * number of keys put in it, its memory in bytes, and the false positive
+     * rate expected from the fraction of bits that are set.
+     *
+     * Algorithm Complexity: O(1), except getFalsePositiveRate which is O(m)
+     * where m is the number of bits
+     *
+     */
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public long getInsertions() {
+        return insertions;
+    }
+
+    public long getMemory() {
+        return 16L + 8L * bits.length;
+    }
+
+    public double getFalsePositiveRate() {
+        long set = 0;
+        for (int i=0; i<bits.length; i++) {
+            set += Long.bitCount(bits[i]);
+        }
+        return Math.pow((double) set / bitCount, hashCount);
+    }
+
+    // the finaliser from SplitMix64, so keys that are close together get very different hashes
+    private static long mix(long key) {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,514 @@
+/**
+ * CompressedAdjacency keeps a list of neighbours for each user, along with the
+ * time each edge was added, for one direction of the follow graph. FollowerStore
+ * keeps two of them, one for the users each user follows and one for their
+ * followers. Users and neighbours are both matrix indexes, the position the
+ * FollowerStore gave the user, so they are small and close together.
+ *
+ * Keeping an object, or even an int and a long, for every edge takes 12 to 40
+ * bytes an edge and means following a reference for each one. Instead each
+ * user's neighbours are kept sorted, and stored as the gaps between them,
+ * written as varints in a byte array, so a user followed by people close
+ * together in the matrix only takes a byte or two for each of them. The times
+ * are kept in a second byte array in the same order, each written as the
+ * zigzag varint of the difference from the time before it. The two arrays are
+ * kept apart, a struct of arrays rather than an array of structs, so going
+ * through the neighbours without the times, as FollowerTraversal does, only
+ * reads the ids. Reading a list is one pass forwards through each array with
+ * no references followed.
+ *
+ * The times are in milliseconds so they take more than the ids, usually 4 or 5
+ * bytes each as neighbours next to each other were often followed months
+ * apart. Every edge is in both of the FollowerStore's lists, so there is no
+ * need to keep its time twice: a list can be made without times, which then
+ * only keeps the ids, and the times are read from the other direction using
+ * getTime. getEncodedBytes can be used to see how many bytes each edge is
+ * taking.
+ *
+ * Adding a neighbour larger than any already in the list, which is what
+ * happens when users are added in the order they join, just appends to the
+ * arrays, using the last neighbour and time which are kept for each user.
+ * Adding or removing one in the middle means finding it, then moving the
+ * rest of the array along and rewriting the gap of the neighbour after it,
+ * as that is now the gap from a different neighbour. The rest of the array
+ * doesn't need changing, as every neighbour after that is written relative
+ * to the one before it. The arrays grow by half as much again when full, so
+ * trimToSize can be called once a lot of edges have been loaded to give back
+ * the spare room.
+ *
+ * Like the stores it is not thread safe, but several threads can read it at
+ * once as long as it isn't being changed.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class CompressedAdjacency {
+
+    /**
+     * NeighbourVisitor: called by forEachNeighbour for each neighbour, in
+     * order, with the time the edge was added.
+     *
+     */
+    public interface NeighbourVisitor {
+        void visit(int neighbour, long time);
+    }
+
+    /**
+     * Cursor: reads through one user's arrays. The start positions of the
+     * neighbour just read are kept so it can be replaced.
+     *
+     */
+    private static class Cursor {
+        public final byte[] ids;
+        public final byte[] times;
+        public int remaining;
+        public int idPosition;
+        public int timePosition;
+        public int idStart;
+        public int timeStart;
+        public int id = -1;
+        public long time;
+
+        // times is null for a list made without times, and time stays 0
+        public Cursor(byte[] ids, byte[] times, int count) {
+            this.ids = ids;
+            this.times = times;
+            this.remaining = count;
+        }
+
+        public boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            idStart = idPosition;
+            timeStart = timePosition;
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = ids[idPosition++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap + 1;
+            if (times == null) {
+                return true;
+            }
+            long delta = 0;
+            shift = 0;
+            do {
+                b = times[timePosition++];
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            time += (delta >>> 1) ^ -(delta & 1);
+            return true;
+        }
+    }
+
+    private final boolean withTimes;
+    private byte[][] idBlocks;
+    // the time arrays are all null for a list made without times
+    private byte[][] timeBlocks;
+    // the number of bytes used in each block
+    private int[] idLengths;
+    private int[] timeLengths;
+    private int[] degrees;
+    // the largest neighbour of each user and its time, so appending needs no decoding
+    private int[] lastIds;
+    private long[] lastTimes;
+    private int capacity;
+    private long edgeCount;
+    // the bytes used and the bytes allocated by all of the blocks
+    private long encodedBytes;
+    private long blockBytes;
+    private int blockCount;
+    // room for two ids or two times being written
+    private final byte[] scratch = new byte[20];
+
+    public CompressedAdjacency(int capacity) {
+        this(capacity, true);
+    }
+
+    public CompressedAdjacency(int capacity, boolean withTimes) {
+        this.withTimes = withTimes;
+        this.capacity = 0;
+        ensureCapacity(capacity);
+    }
+
+    public boolean hasTimes() {
+        return withTimes;
+    }
+
+    /**
+     * ensureCapacity: make room for users with indexes below the capacity.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the new capacity
+     *
+     */
+
+    public void ensureCapacity(int newCapacity) {
+        if (newCapacity <= capacity) {
+            return;
+        }
+        byte[][] tempIds = new byte[newCapacity][];
+        byte[][] tempTimes = withTimes ? new byte[newCapacity][] : null;
+        int[] tempIdLengths = new int[newCapacity];
+        int[] tempTimeLengths = withTimes ? new int[newCapacity] : null;
+        int[] tempDegrees = new int[newCapacity];
+        int[] tempLastIds = new int[newCapacity];
+        long[] tempLastTimes = withTimes ? new long[newCapacity] : null;
+        for (int i=0; i<capacity; i++) {
+            tempIds[i] = idBlocks[i];
+            tempIdLengths[i] = idLengths[i];
+            tempDegrees[i] = degrees[i];
+            tempLastIds[i] = lastIds[i];
+            if (withTimes) {
+                tempTimes[i] = timeBlocks[i];
+                tempTimeLengths[i] = timeLengths[i];
+                tempLastTimes[i] = lastTimes[i];
+            }
+        }
+        idBlocks = tempIds;
+        timeBlocks = tempTimes;
+        idLengths = tempIdLengths;
+        timeLengths = tempTimeLengths;
+        degrees = tempDegrees;
+        lastIds = tempLastIds;
+        lastTimes = tempLastTimes;
+        capacity = newCapacity;
+    }
+
+    /**
+     * add: add the neighbour to the user's list with the time, returning false
+     * if it was already there. The time is ignored by a list without times.
+     *
+     * Algorithm Complexity: O(1) when the neighbour is the largest, else O(d)
+     * where d is the number of neighbours the user has
+     *
+     */
+
+    public boolean add(int user, int neighbour, long time) {
+        int degree = degrees[user];
+        if (degree == 0 || neighbour > lastIds[user]) {
+            // append, relative to the last neighbour
+            int previousId = degree == 0 ? -1 : lastIds[user];
+            int idLength = writeVarInt(scratch, 0, neighbour - previousId - 1);
+            replace(idBlocks, idLengths, user, idLengths[user], idLengths[user], idLength);
+            lastIds[user] = neighbour;
+            if (withTimes) {
+                long previousTime = degree == 0 ? 0 : lastTimes[user];
+                int timeLength = writeVarLong(scratch, 0, zigzag(time - previousTime));
+                replace(timeBlocks, timeLengths, user, timeLengths[user], timeLengths[user], timeLength);
+                lastTimes[user] = time;
+            }
+        } else {
+            if (neighbour == lastIds[user]) {
+                return false;
+            }
+            // find the first neighbour larger than it, there must be one
+            Cursor cursor = cursor(user);
+            int previousId = -1;
+            long previousTime = 0;
+            while (cursor.next() && cursor.id < neighbour) {
+                previousId = cursor.id;
+                previousTime = cursor.time;
+            }
+            if (cursor.id == neighbour) {
+                return false;
+            }
+            // write the new neighbour, then the one found relative to it
+            int idLength = writeVarInt(scratch, 0, neighbour - previousId - 1);
+            idLength = writeVarInt(scratch, idLength, cursor.id - neighbour - 1);
+            replace(idBlocks, idLengths, user, cursor.idStart, cursor.idPosition, idLength);
+            if (withTimes) {
+                int timeLength = writeVarLong(scratch, 0, zigzag(time - previousTime));
+                timeLength = writeVarLong(scratch, timeLength, zigzag(cursor.time - time));
+                replace(timeBlocks, timeLengths, user, cursor.timeStart, cursor.timePosition, timeLength);
+            }
+        }
+        degrees[user]++;
+        edgeCount++;
+        return true;
+    }
+
+    /**
+     * remove: remove the neighbour from the user's list, returning false if it
+     * wasn't there.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the number of neighbours the user has
+     *
+     */
+
+    public boolean remove(int user, int neighbour) {
+        int degree = degrees[user];
+        if (degree == 0 || neighbour > lastIds[user]) {
+            return false;
+        }
+        Cursor cursor = cursor(user);
+        int previousId = -1;
+        long previousTime = 0;
+        while (cursor.next() && cursor.id < neighbour) {
+            previousId = cursor.id;
+            previousTime = cursor.time;
+        }
+        if (cursor.id != neighbour) {
+            return false;
+        }
+        int idStart = cursor.idStart;
+        int timeStart = cursor.timeStart;
+        if (cursor.next()) {
+            // write the next neighbour relative to the one before the removed one
+            int idLength = writeVarInt(scratch, 0, cursor.id - previousId - 1);
+            replace(idBlocks, idLengths, user, idStart, cursor.idPosition, idLength);
+            if (withTimes) {
+                int timeLength = writeVarLong(scratch, 0, zigzag(cursor.time - previousTime));
+                replace(timeBlocks, timeLengths, user, timeStart, cursor.timePosition, timeLength);
+            }
+        } else {
+            // it was the last, so just cut it off
+            encodedBytes -= idLengths[user] - idStart;
+            idLengths[user] = idStart;
+            lastIds[user] = previousId;
+            if (withTimes) {
+                encodedBytes -= timeLengths[user] - timeStart;
+                timeLengths[user] = timeStart;
+                lastTimes[user] = previousTime;
+            }
+        }
+        degrees[user]--;
+        edgeCount--;
+        return true;
+    }
+
+    /**
+     * contains: return true if the neighbour is in the user's list. The ids
+     * are sorted, so it stops at the first one larger.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the number of neighbours the user has
+     *
+     */
+
+    public boolean contains(int user, int neighbour) {
+        int degree = degrees[user];
+        if (degree == 0 || neighbour > lastIds[user]) {
+            return false;
+        }
+        byte[] ids = idBlocks[user];
+        int position = 0;
+        int id = -1;
+        for (int i=0; i<degree; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = ids[position++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap + 1;
+            if (id >= neighbour) {
+                return id == neighbour;
+            }
+        }
+        return false;
+    }
+
+    public int getDegree(int user) {
+        return degrees[user];
+    }
+
+    /**
+     * getTime: return the time the edge to the neighbour was added, which must
+     * be in the user's list, and the list must have times. The ids are sorted,
+     * so it stops when it reaches the neighbour.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the number of neighbours the user has
+     *
+     */
+
+    public long getTime(int user, int neighbour) {
+        if (neighbour == lastIds[user]) {
+            return lastTimes[user];
+        }
+        Cursor cursor = cursor(user);
+        cursor.next();
+        while (cursor.id < neighbour) {
+            cursor.next();
+        }
+        return cursor.time;
+    }
+
+    /**
+     * decode: copy the user's neighbours, smallest first, into ids and the
+     * times of their edges into times, returning how many there are. Both
+     * must have room for getDegree(user), and times is left alone by a list
+     * without times.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the number of neighbours the user has
+     *
+     */
+
+    public int decode(int user, int[] ids, long[] times) {
+        int degree = degrees[user];
+        Cursor cursor = cursor(user);
+        for (int i=0; i<degree; i++) {
+            cursor.next();
+            ids[i] = cursor.id;
+            if (withTimes) {
+                times[i] = cursor.time;
+            }
+        }
+        return degree;
+    }
+
+    /**
+     * forEachNeighbour: call the visitor with each of the user's neighbours,
+     * smallest first, with a time of 0 if the list has no times. The version
+     * taking an IndexVisitor only reads the ids.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the number of neighbours the user has
+     *
+     */
+
+    public void forEachNeighbour(int user, NeighbourVisitor visitor) {
+        Cursor cursor = cursor(user);
+        while (cursor.next()) {
+            visitor.visit(cursor.id, cursor.time);
+        }
+    }
+
+    void forEachNeighbour(int user, FollowerStore.IndexVisitor visitor) {
+        int degree = degrees[user];
+        byte[] ids = idBlocks[user];
+        int position = 0;
+        int id = -1;
+        for (int i=0; i<degree; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = ids[position++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap + 1;
+            visitor.visit(id);
+        }
+    }
+
+    /**
+     * trimToSize: shrink every block to the bytes it is using.
+     *
+     * Algorithm Complexity: O(n + e)
+     * where n is the number of users
+     * where e is the number of bytes used by the blocks
+     *
+     */
+
+    public void trimToSize() {
+        for (int i=0; i<capacity; i++) {
+            idBlocks[i] = trim(idBlocks[i], idLengths[i]);
+            if (withTimes) {
+                timeBlocks[i] = trim(timeBlocks[i], timeLengths[i]);
+            }
+        }
+    }
+
+    private byte[] trim(byte[] block, int length) {
+        if (block == null || block.length == length) {
+            return block;
+        }
+        blockBytes -= block.length;
+        if (length == 0) {
+            blockCount--;
+            return null;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(block, 0, trimmed, 0, length);
+        blockBytes += length;
+        return trimmed;
+    }
+
+    /**
+     * Methods used for monitoring: the number of edges, the bytes used
+     * encoding them, and an estimate of the memory used, including the spare
+     * room in the blocks, assuming 4 byte references.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public long getNumEdges() {
+        return edgeCount;
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public long getMemory() {
+        long perUser = withTimes ? 4L + 4 + 4 + 4 + 4 + 4 + 8 : 4L + 4 + 4 + 4;
+        return (withTimes ? 7 : 4) * 16L + perUser * capacity + 16L * blockCount + blockBytes;
+    }
+
+    private Cursor cursor(int user) {
+        return new Cursor(idBlocks[user], withTimes ? timeBlocks[user] : null, degrees[user]);
+    }
+
+    // replace the bytes from start up to end of the user's block with the first count bytes of scratch
+    private void replace(byte[][] blocks, int[] lengths, int user, int start, int end, int count) {
+        byte[] block = blocks[user];
+        int length = lengths[user];
+        int newLength = length - (end - start) + count;
+        byte[] target = block;
+        if (block == null || newLength > block.length) {
+            int newSize = Math.max(newLength, Math.max(8, length + length / 2));
+            target = new byte[newSize];
+            if (block == null) {
+                blockCount++;
+            } else {
+                System.arraycopy(block, 0, target, 0, start);
+                blockBytes -= block.length;
+            }
+            blockBytes += newSize;
+            blocks[user] = target;
+        }
+        if (block != null) {
+            System.arraycopy(block, end, target, start + count, length - end);
+        }
+        System.arraycopy(scratch, 0, target, start, count);
+        lengths[user] = newLength;
+        encodedBytes += newLength - length;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int writeVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static int writeVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,568 @@
+/**
+ * DatasetDump writes every user, weet and follow relationship in the stores to
+ * a file, and loads them back into another set of stores. It is much faster
+ * and smaller than going through getUsers and getWeets and writing CSV, as
+ * nothing is sorted, no Users or Weets are made to write them out, and the
+ * file is compressed.
+ *
+ * The file is a header followed by blocks of up to blockRows rows, first the
+ * users, then the weets, then the follow relationships, and an end marker.
+ * Each block keeps its rows by column: all of the ids, then all of the dates,
+ * and so on, as values in the same column are alike and compress much better
+ * next to each other. Within a column:
+ *
+ *  - ids and times are written as the difference from the previous row, as a
+ *    zigzag varint, so ids and times that go up slowly take a byte or two.
+ *    The users are written in the order they joined, so their dates are
+ *    close together.
+ *  - user names are dictionary encoded: each different name in the block is
+ *    written once, and each row just has its index in the dictionary. The
+ *    names are copied straight out of the UserStore's text arena.
+ *  - messages are written as a column of lengths and then all of the UTF-8
+ *    bytes, copied straight out of the WeetStore's text arena.
+ *
+ * Each block is then compressed on its own with a Deflater, so only one block
+ * has to be held in memory at a time however big the stores are. The file is
+ * read and written through a FileChannel in whole blocks.
+ *
+ * Loading a block makes the Users, Weets and Dates for it and adds them all at
+ * once with addUsers, addWeets and addFollowers, so the search caches are only
+ * checked once a block. Rows whose ids are already in the stores are skipped,
+ * just as the add methods would skip them.
+ *
+ * Any of the stores can be null, to leave its rows out when writing or skip
+ * them when loading.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class DatasetDump {
+
+    // "WDMP"
+    private static final int MAGIC = 0x57444d50;
+    private static final int VERSION = 1;
+    private static final byte END = 0;
+    private static final byte USERS = 1;
+    private static final byte WEETS = 2;
+    private static final byte FOLLOWS = 3;
+    // section, rows, raw length and compressed length
+    private static final int BLOCK_HEADER = 13;
+
+    /**
+     * Counts: the number of rows written, or the number loaded into the stores.
+     *
+     */
+    public static class Counts {
+        public long users;
+        public long weets;
+        public long follows;
+
+        public String toString() {
+            return users + " users, " + weets + " weets, " + follows + " follows";
+        }
+    }
+
+    private final int blockRows;
+    private final int compressionLevel;
+
+    public DatasetDump() {
+        this(16384, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * The compression level is a Deflater level from 0 to 9. The default,
+     * BEST_SPEED, keeps writing quick enough to keep up with the disk.
+     *
+     */
+
+    public DatasetDump(int blockRows, int compressionLevel) {
+        if (blockRows < 1) {
+            throw new IllegalArgumentException("blockRows must be at least 1");
+        }
+        this.blockRows = blockRows;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * write: write every user, weet and follow relationship in the stores to
+     * the file, replacing it if it exists.
+     *
+     * Algorithm Complexity: O(u + w + n^2)
+     * where u is the number of users
+     * where w is the number of weets
+     * where n is the number of users in the follower matrix
+     *
+     */
+
+    public Counts write(Path file, UserStore userStore, WeetStore weetStore, FollowerStore followerStore) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockWriter writer = new BlockWriter(channel);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writer.writeFully(header);
+                if (userStore != null) {
+                    writer.writeUsers(userStore);
+                }
+                if (weetStore != null) {
+                    writer.writeWeets(weetStore);
+                }
+                if (followerStore != null) {
+                    writer.writeFollows(followerStore);
+                }
+                ByteBuffer end = ByteBuffer.allocate(1);
+                end.put(END).flip();
+                writer.writeFully(end);
+                return writer.counts;
+            } finally {
+                writer.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * read: load every row in the file into the stores, returning the number
+     * of users, weets and follow relationships that were added.
+     *
+     * Algorithm Complexity: the same as adding each row with the add methods
+     *
+     */
+
+    public Counts read(Path file, UserStore userStore, WeetStore weetStore, FollowerStore followerStore) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BlockReader reader = new BlockReader(channel);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                reader.readFully(header);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a dataset dump");
+                }
+                int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException("unsupported dump version " + version);
+                }
+                while (reader.readBlock()) {
+                    if (reader.section == USERS) {
+                        if (userStore != null) {
+                            reader.loadUsers(userStore);
+                        }
+                    } else if (reader.section == WEETS) {
+                        if (weetStore != null) {
+                            reader.loadWeets(weetStore);
+                        }
+                    } else if (reader.section == FOLLOWS) {
+                        if (followerStore != null) {
+                            reader.loadFollows(followerStore);
+                        }
+                    } else {
+                        throw new IOException("unknown section " + reader.section);
+                    }
+                }
+                return reader.counts;
+            } finally {
+                reader.inflater.end();
+            }
+        }
+    }
+
+    /**
+     * ByteSink: a growable byte array that columns are encoded into.
+     *
+     */
+    private static class ByteSink {
+        public byte[] bytes = new byte[1 << 16];
+        public int length;
+
+        public void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] temp = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, temp, 0, length);
+                bytes = temp;
+            }
+        }
+
+        public void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        // zigzag encoding, so small negative numbers are small too
+        public void writeSigned(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+    }
+
+    /**
+     * BlockWriter: collects the rows of one block at a time and writes them
+     * out, compressed, when the block is full.
+     *
+     */
+    private class BlockWriter {
+        public final FileChannel channel;
+        public final Deflater deflater = new Deflater(compressionLevel);
+        public final ByteSink raw = new ByteSink();
+        public byte[] compressed = new byte[1 << 16];
+        public final Counts counts = new Counts();
+        // the columns of the block being collected
+        public final long[] ids = new long[blockRows];
+        public final long[] others = new long[blockRows];
+        public final long[] times = new long[blockRows];
+        public final long[] texts = new long[blockRows];
+        public int rows;
+        // the dictionary for the block: dictionary[symbol] is the index + 1 in
+        // the block, if stamps[symbol] is the current block
+        public int[] dictionary = new int[0];
+        public int[] stamps = new int[0];
+        public int stamp;
+        public final int[] entries = new int[blockRows];
+
+        public BlockWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public void writeUsers(final UserStore userStore) throws IOException {
+            final SymbolTable names = userStore.getNames();
+            rows = 0;
+            // the visitor can't throw an IOException, so it is passed out in an unchecked one
+            try {
+                userStore.forEachUser((uid, name, dateJoined) -> {
+                    ids[rows] = uid;
+                    texts[rows] = name;
+                    times[rows] = dateJoined;
+                    rows++;
+                    if (rows == blockRows) {
+                        flushUsers(names);
+                    }
+                });
+            } catch (java.io.UncheckedIOException e) {
+                throw e.getCause();
+            }
+            flushUsers(names);
+        }
+
+        public void writeWeets(final WeetStore weetStore) throws IOException {
+            final TextArena text = weetStore.getText();
+            rows = 0;
+            try {
+                weetStore.forEachWeet((wid, userId, date, message) -> {
+                    ids[rows] = wid;
+                    others[rows] = userId;
+                    times[rows] = date;
+                    texts[rows] = message;
+                    rows++;
+                    if (rows == blockRows) {
+                        flushWeets(text);
+                    }
+                });
+            } catch (java.io.UncheckedIOException e) {
+                throw e.getCause();
+            }
+            flushWeets(text);
+        }
+
+        public void writeFollows(FollowerStore followerStore) throws IOException {
+            rows = 0;
+            try {
+                followerStore.forEachFollow((follower, followed, time) -> {
+                    ids[rows] = follower;
+                    others[rows] = followed;
+                    times[rows] = time;
+                    rows++;
+                    if (rows == blockRows) {
+                        flushFollows();
+                    }
+                });
+            } catch (java.io.UncheckedIOException e) {
+                throw e.getCause();
+            }
+            flushFollows();
+        }
+
+        private void flushUsers(SymbolTable names) {
+            if (rows == 0) {
+                return;
+            }
+            raw.length = 0;
+            writeDeltas(ids);
+            writeDeltas(times);
+            // give each different name in the block an index
+            if (dictionary.length < names.size()) {
+                dictionary = new int[names.size() * 2];
+                stamps = new int[names.size() * 2];
+            }
+            stamp++;
+            int entry_count = 0;
+            for (int i=0; i<rows; i++) {
+                int name = (int) texts[i];
+                if (stamps[name] != stamp) {
+                    stamps[name] = stamp;
+                    entries[entry_count++] = name;
+                    dictionary[name] = entry_count;
+                }
+            }
+            TextArena text = names.getArena();
+            raw.writeVarLong(entry_count);
+            for (int j=0; j<entry_count; j++) {
+                long handle = names.getHandle(entries[j]);
+                int length = TextArena.lengthOf(handle);
+                raw.writeVarLong(length);
+                raw.ensure(length);
+                raw.length += text.copyTo(handle, raw.bytes, raw.length);
+            }
+            for (int i=0; i<rows; i++) {
+                raw.writeVarLong(dictionary[(int) texts[i]] - 1);
+            }
+            counts.users += rows;
+            flush(USERS);
+        }
+
+        private void flushWeets(TextArena text) {
+            if (rows == 0) {
+                return;
+            }
+            raw.length = 0;
+            writeDeltas(ids);
+            for (int i=0; i<rows; i++) {
+                raw.writeSigned(others[i]);
+            }
+            writeDeltas(times);
+            for (int i=0; i<rows; i++) {
+                raw.writeVarLong(TextArena.lengthOf(texts[i]));
+            }
+            for (int i=0; i<rows; i++) {
+                raw.ensure(TextArena.lengthOf(texts[i]));
+                raw.length += text.copyTo(texts[i], raw.bytes, raw.length);
+            }
+            counts.weets += rows;
+            flush(WEETS);
+        }
+
+        private void flushFollows() {
+            if (rows == 0) {
+                return;
+            }
+            raw.length = 0;
+            writeDeltas(ids);
+            writeDeltas(others);
+            writeDeltas(times);
+            counts.follows += rows;
+            flush(FOLLOWS);
+        }
+
+        private void writeDeltas(long[] column) {
+            long previous = 0;
+            for (int i=0; i<rows; i++) {
+                raw.writeSigned(column[i] - previous);
+                previous = column[i];
+            }
+        }
+
+        // compress the block and write it with its header
+        private void flush(byte section) {
+            deflater.reset();
+            deflater.setInput(raw.bytes, 0, raw.length);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    byte[] temp = new byte[compressed.length * 2];
+                    System.arraycopy(compressed, 0, temp, 0, compressedLength);
+                    compressed = temp;
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+            header.put(section).putInt(rows).putInt(raw.length).putInt(compressedLength).flip();
+            try {
+                writeFully(header);
+                writeFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            rows = 0;
+        }
+
+        public void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * BlockReader: reads one block at a time, decompresses it and adds its
+     * rows to the stores.
+     *
+     */
+    private class BlockReader {
+        public final FileChannel channel;
+        public final Inflater inflater = new Inflater();
+        public final Counts counts = new Counts();
+        public byte[] compressed = new byte[1 << 16];
+        public byte[] raw = new byte[1 << 16];
+        public int position;
+        // the block that has been read
+        public byte section;
+        public int rows;
+        public final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+
+        public BlockReader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // read and decompress the next block, returning false at the end marker
+        public boolean readBlock() throws IOException {
+            header.clear().limit(1);
+            readFully(header);
+            section = header.get(0);
+            if (section == END) {
+                return false;
+            }
+            header.limit(BLOCK_HEADER);
+            readFully(header);
+            header.position(1);
+            rows = header.getInt();
+            int rawLength = header.getInt();
+            int compressedLength = header.getInt();
+            if (rows < 0 || rawLength < 0 || compressedLength < 0) {
+                throw new IOException("corrupt block header");
+            }
+            if (compressed.length < compressedLength) {
+                compressed = new byte[compressedLength];
+            }
+            if (raw.length < rawLength) {
+                raw = new byte[rawLength];
+            }
+            readFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            try {
+                int inflated = 0;
+                while (inflated < rawLength && !inflater.finished()) {
+                    int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (inflated != rawLength) {
+                    throw new IOException("corrupt block: expected " + rawLength + " bytes, got " + inflated);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt block", e);
+            }
+            position = 0;
+            return true;
+        }
+
+        public void loadUsers(UserStore userStore) {
+            long[] ids = readDeltas();
+            long[] times = readDeltas();
+            // decode each name in the dictionary once
+            String[] dictionary = new String[(int) readVarLong()];
+            for (int j=0; j<dictionary.length; j++) {
+                int length = (int) readVarLong();
+                dictionary[j] = new String(raw, position, length, StandardCharsets.UTF_8);
+                position += length;
+            }
+            User[] users = new User[rows];
+            for (int i=0; i<rows; i++) {
+                users[i] = new User(dictionary[(int) readVarLong()], (int) ids[i], new Date(times[i]));
+            }
+            counts.users += userStore.addUsers(users, rows, new boolean[rows]);
+        }
+
+        public void loadWeets(WeetStore weetStore) {
+            long[] ids = readDeltas();
+            long[] userIds = new long[rows];
+            for (int i=0; i<rows; i++) {
+                userIds[i] = readSigned();
+            }
+            long[] times = readDeltas();
+            int[] lengths = new int[rows];
+            for (int i=0; i<rows; i++) {
+                lengths[i] = (int) readVarLong();
+            }
+            Weet[] weets = new Weet[rows];
+            for (int i=0; i<rows; i++) {
+                String message = new String(raw, position, lengths[i], StandardCharsets.UTF_8);
+                position += lengths[i];
+                weets[i] = new Weet((int) ids[i], (int) userIds[i], message, new Date(times[i]));
+            }
+            counts.weets += weetStore.addWeets(weets, rows, new boolean[rows]);
+        }
+
+        public void loadFollows(FollowerStore followerStore) {
+            long[] followers = readDeltas();
+            long[] followed = readDeltas();
+            long[] times = readDeltas();
+            int[] followerIds = new int[rows];
+            int[] followedIds = new int[rows];
+            Date[] dates = new Date[rows];
+            for (int i=0; i<rows; i++) {
+                followerIds[i] = (int) followers[i];
+                followedIds[i] = (int) followed[i];
+                dates[i] = new Date(times[i]);
+            }
+            counts.follows += followerStore.addFollowers(followerIds, followedIds, dates, rows, new boolean[rows]);
+        }
+
+        private long[] readDeltas() {
+            long[] column = new long[rows];
+            long previous = 0;
+            for (int i=0; i<rows; i++) {
+                previous += readSigned();
+                column[i] = previous;
+            }
+            return column;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = raw[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private long readSigned() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("dump ended part way through a block");
+                }
+            }
+        }
+    }
+}
@@ -1,31 +1,50 @@
 /**
  * I decided to use a graph as the data structure for modelling the follow
- * relationships. I did this by using an adjacency matrix, as a 2d array. This
- * works by giving each user a position bases on their id in the matrix, a index
- * in the 2d array. This works well as the actual id of the id does not matter
- * but instead, the order that they were added to the matrix does. This is
- * impliemented by having an array of the user ids in the order that the users
- * are in the matrix. This means it takes O(n) time to find the users matrix
- * index and then from there it only takes O(1) time to find any relation another
- * user may have. This make finding different relationships between users very
- * simple and quick.
+ * relationships. Each user is given a position, their matrix index, in the
+ * order they were first seen, so the actual id of the user does not matter.
+ * indexStore holds the user id at each position, and a small hash table maps
+ * a user id back to their position. It uses open addressing (linear probing)
+ * over an int array, which avoids creating a bucket object for every user.
+ * The name comes from the adjacency matrix, a 2d array of follow dates, that
+ * this store first used.
  *
- * As I stated in the other files, I am prioritising speed. Because of this, I
- * create a large 2d array initially as if they array fills up, then it has to
- * be resized, wasting precious resources and time. I would rather require more
- * storage than need more computing power as the data structure is not
- * impliemented in a way that makes it easy to get the relationships from.
+ * The follow relationships are kept as adjacency lists in two directions, each
+ * a CompressedAdjacency: follows holds the users each user follows, and
+ * followers the users following each user. A matrix needs n^2 references
+ * however few follows there are, which with millions of users, each following
+ * a few hundred others, is far more memory than there is. Each list is sorted
+ * by matrix index and written as varint gaps, so an id takes a byte or two in
+ * each direction. The time of a follow is only kept once, with the follows,
+ * in a separate array, as times take 4 or 5 bytes each. Getting someone's
+ * follows only reads their own list, and getting their followers reads
+ * theirs, then finds the time in the follows of each follower. Users follow
+ * a few hundred others at most, while some have millions of followers, so
+ * that is the direction that stays short. The lists are sorted by date when
+ * returned, and as they are read in matrix index order, ties come out in the
+ * order the users were added.
  *
- * The way that the matrix works is by storing the date that the follow
- * relationship occurred on. If the element is null, then there is no
- * relationsip. This makes it very easy to check who follows who. By looking
- * down a column in the matrix, you can see the follows of the user at the
- * top of the column. Similary, by looking across a row, you can easily see the
- * users they the user in the left of the row follows. This make counting follows
- * and looking a mutual relationships very easy.
+ * For 1 million follows between 100,000 users made by the WorkloadGenerator
+ * that comes to about 6 bytes an edge encoded, and 19 or 20 bytes an edge in
+ * memory, as each user in the matrix also has their own arrays and counts in
+ * both directions. That is still more than the 4 or 5 bytes an edge that was
+ * hoped for, which would need the times rounded or the lists of users with few
+ * follows packed together. getEncodedEdgeBytes and getIndexMemory show what it
+ * is taking.
  *
+ * The number of users in each list is kept alongside it, so getNumFollowers
+ * and getTopUsers don't need to read the lists at all. isAFollower searches
+ * whichever of the two lists involved is shorter, and the mutual queries
+ * merge the two sorted lists. Adding or removing a follow has to find its
+ * place in both lists, which is O(d) for a user with d follows.
+ *
+ * Users are only given a position when a follow involving them is added.
+ * The queries look a user up without adding them, so asking about a user
+ * with no follows doesn't use any memory and just returns nothing.
+ *
+ * Most calls to isAFollower are for users that don't follow each other, so a
+ * BloomFilter of the follow relationships can optionally be used to answer
+ * them without looking up either user.
  *
- * 
  */
 
 package uk.ac.warwick.java.cs126.services;
@@ -39,32 +58,65 @@ import java.util.Date;
 public class FollowerStore implements IFollowerStore {
 
     /**
-     * SortingObject: Class used to sort the relationships by date
+     * FollowList: a list of user ids along with the time (in milliseconds)
+     * each follow relationship started, sorted with the most recent first.
+     * Used when lists from several stores need to be merged by date.
      *
      */
-    private class SortingObject {
-        // SortingObject stores the user id and the date the follow started
-        public int uid;
-        public Date date;
+    public static class FollowList {
+        public int[] uids;
+        public long[] times;
 
-        public SortingObject(int uid, Date date) {
-            this.uid = uid;
-            this.date = date;
+        public FollowList(int[] uids, long[] times) {
+            this.uids = uids;
+            this.times = times;
         }
     }
-    // matrix stores the relationsips between all of the users added to it
-    private Date[][] matrix;
+
+    /**
+     * FollowVisitor: called by forEachFollow for each follow relationship,
+     * where follower follows followed from the time in milliseconds.
+     *
+     */
+    public interface FollowVisitor {
+        void visit(int follower, int followed, long time);
+    }
+
+    /**
+     * IndexVisitor: called by forEachFollowIndex and forEachFollowerIndex with
+     * the matrix index of each user found.
+     *
+     */
+    interface IndexVisitor {
+        void visit(int index);
+    }
+
+    // follows holds the users each user follows, with the times, followers the users following them
+    private CompressedAdjacency follows;
+    private CompressedAdjacency followers;
     // indexStore keeps track of the users index in the matrix
     private int[] indexStore;
     // both keep track of the size of the matrix for when it needs to be resized
     private int matrixCapacity;
     private int matrixSize;
+    // number of follow relationships in the matrix
+    private int edgeCount;
+    // indexTable maps a user id to (matrix index + 1), 0 means the slot is empty
+    private int[] indexTable;
+    private int[] indexTableKeys;
+    // edgeFilter holds every (follower, followed) pair added, if enabled
+    private BloomFilter edgeFilter;
+    // analytics is told about every follow added, if set
+    private StoreAnalytics analytics;
 
     public FollowerStore() {
         matrixCapacity = 1000;
-        matrix = new Date[matrixCapacity][matrixCapacity];
+        follows = new CompressedAdjacency(matrixCapacity);
+        followers = new CompressedAdjacency(matrixCapacity, false);
         indexStore = new int[matrixCapacity];
         matrixSize = 0;
+        indexTable = new int[2048];
+        indexTableKeys = new int[2048];
     }
 
     /**
@@ -74,8 +126,8 @@ public class FollowerStore implements IFollowerStore {
      * (uid1 already followed uid2). Return false if the user tries to follow
      * themselves.
      *
-     * Algorithm Complexity: O(n)
-     * where n is the number of users in the matrix
+     * Algorithm Complexity: O(d)
+     * where d is the number of follows of the two users
      *
      */
 
@@ -87,133 +139,298 @@ public class FollowerStore implements IFollowerStore {
         // get the index of the user in the adjacency matrix
         int uid1Index = getUserIndex(uid1);
         int uid2Index = getUserIndex(uid2);
-        // check if uid1 follows uid2
-        if (matrix[uid1Index][uid2Index] == null) {
-            // add the date of the follow relationship to the adjacency matrix and return true
-            matrix[uid1Index][uid2Index] = followDate;
+        // add uid2 to the follows of uid1, which fails if uid1 already follows uid2
+        long time = followDate.getTime();
+        if (follows.add(uid1Index, uid2Index, time)) {
+            // and uid1 to the followers of uid2
+            followers.add(uid2Index, uid1Index, time);
+            edgeCount++;
+            if (edgeFilter != null) {
+                edgeFilter.put(BloomFilter.pairKey(uid1, uid2));
+            }
+            if (analytics != null) {
+                analytics.followAdded(uid1, uid2, time);
+            }
             return true;
         }
         // the uid1 already follows uid2 so return false
         return false;
     }
 
+    /**
+     * addFollowers: add the first count follow relationships, where
+     * followers[i] follows followed[i] on dates[i], setting added[i] to what
+     * addFollower would have returned. Returns the number of relationships
+     * added. The follower counts are kept with the lists, so there is nothing
+     * else to update for the batch.
+     *
+     * Algorithm Complexity: O(b * d)
+     * where b is the number of relationships in the batch
+     * where d is the number of follows of each user in it
+     *
+     */
+
+    public int addFollowers(int[] followers, int[] followed, Date[] dates, int count, boolean[] added) {
+        int added_count = 0;
+        for (int i=0; i<count; i++) {
+            added[i] = addFollower(followers[i], followed[i], dates[i]);
+            if (added[i]) {
+                added_count++;
+            }
+        }
+        return added_count;
+    }
+
+    /**
+     * removeFollower: Remove the follow relationship where uid1 follows uid2.
+     * The method returns true if the relationship existed and was removed, and
+     * false if uid1 did not follow uid2. Users that are not in the matrix are
+     * not added to it.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the number of follows of the two users
+     *
+     */
+
+    public boolean removeFollower(int uid1, int uid2) {
+        // look up the users without adding them to the matrix
+        int uid1Index = findUserIndex(uid1);
+        int uid2Index = findUserIndex(uid2);
+        if (uid1Index == -1 || uid2Index == -1) {
+            return false;
+        }
+        // take uid2 out of the follows of uid1, which fails if uid1 doesn't follow uid2
+        if (!follows.remove(uid1Index, uid2Index)) {
+            return false;
+        }
+        followers.remove(uid2Index, uid1Index);
+        edgeCount--;
+        return true;
+    }
+
     /**
      * getFollowers: returns an array of all users that follow the user with the
      * given id. The list is sorted such that the most recent followe is first
      * in the list.
      *
-     * Algorithm Complexity: O(n) + O(n) + O(m) + O(m) = O(n)
-     * where n is the number of users in the matrix
+     * Algorithm Complexity: O(m f + m logm)
      * where m is the number of users who follow the given user
+     * where f is the number of users each of them follows
      *
      */
 
     public int[] getFollowers(int uid) {
-        // get the index of the user in the adjacency matrix
-        int uidIndex = getUserIndex(uid);
-        // create array to hold the unsorted data
-        SortingObject[] tempFollowers = new SortingObject[matrixSize];
-        int follower_count = 0;
-        // look down the users column in the adjacency matrix
-        for (int i=0; i<matrixSize; i++) {
-            if (matrix[i][uidIndex] != null) {
-                tempFollowers[follower_count++] = new SortingObject(indexStore[i], matrix[i][uidIndex]);
-            }
-        }
-        // remove the null elements from the end of the tempFollowers array
-        SortingObject[] unsortedFollowers = new SortingObject[follower_count];
-        for (int j=0; j<follower_count; j++) {
-            unsortedFollowers[j] = tempFollowers[j];
-        }
-        // sort the array by date followed
-        sort(unsortedFollowers, follower_count);
-        // get the uid from the sorted array and return
-        int[] followers = new int[follower_count];
-        for (int k=0; k<follower_count; k++) {
-            followers[k] = unsortedFollowers[k].uid;
+        return getFollowerList(uid).uids;
+    }
+
+    /**
+     * getFollowerList: the same as getFollowers, but also returns the time
+     * each user started following the given user, found in their follows.
+     *
+     * Algorithm Complexity: O(m f + m logm)
+     * where m is the number of users who follow the given user
+     * where f is the number of users each of them follows
+     *
+     */
+
+    public FollowList getFollowerList(int uid) {
+        // get the index of the user in the adjacency matrix, without adding them
+        // to it, as a sharded query asks every shard about the user
+        int uidIndex = findUserIndex(uid);
+        if (uidIndex == -1) {
+            return new FollowList(new int[0], new long[0]);
         }
-        return followers;
+        return toFollowList(followers, uidIndex);
     }
 
     /**
      * getFollows: returns an array of all the user that the given user follows.
      * The array is sorted such that the most recent follow is first.
      *
-     * Algorithm Complexity: O(n) + O(n) + O(m) + O(m) = O(n)
-     * where n is the number of users in the matrix
+     * Algorithm Complexity: O(m logm)
      * where m is the number of users the given user follows
      *
      */
 
     public int[] getFollows(int uid) {
-        // get the index of the user in the adjacency matrix
-        int uidIndex = getUserIndex(uid);
-        // create array to hold the unsorted data
-        SortingObject[] tempFollows = new SortingObject[matrixSize];
-        int follow_count = 0;
-        // populate the tempFollows with user uid the given user follows
-        for (int i=0; i<matrixSize; i++) {
-            if (matrix[uidIndex][i] != null) {
-                SortingObject object = new SortingObject(indexStore[i], matrix[uidIndex][i]);
-                tempFollows[follow_count++] = object;
-            }
+        return getFollowList(uid).uids;
+    }
+
+    /**
+     * getFollowList: the same as getFollows, but also returns the time the
+     * given user started following each user.
+     *
+     * Algorithm Complexity: O(m logm)
+     * where m is the number of users the given user follows
+     *
+     */
+
+    public FollowList getFollowList(int uid) {
+        // get the index of the user in the adjacency matrix, without adding them
+        // to it, as a sharded query asks every shard about the user
+        int uidIndex = findUserIndex(uid);
+        if (uidIndex == -1) {
+            return new FollowList(new int[0], new long[0]);
         }
-        // remove the null element from the end of the tempFollows
-        SortingObject[] unsortedFollows = new SortingObject[follow_count];
-        for (int j=0; j<follow_count; j++) {
-            unsortedFollows[j] = tempFollows[j];
+        return toFollowList(follows, uidIndex);
+    }
+
+    // decode the list of the user at the index, sort it by date followed and turn the indexes into ids
+    private FollowList toFollowList(CompressedAdjacency adjacency, int index) {
+        int count = adjacency.getDegree(index);
+        int[] uids = new int[count];
+        long[] times = new long[count];
+        adjacency.decode(index, uids, times);
+        if (!adjacency.hasTimes()) {
+            followerTimes(index, uids, times, count);
         }
-        // sort the array by date followed
-        sort(unsortedFollows, follow_count);
-        // get the uid from the sorted array and return
-        int[] follows = new int[follow_count];
-        for (int k=0; k<follow_count; k++) {
-            follows[k] = unsortedFollows[k].uid;
+        // sort the arrays by date followed
+        sort(uids, times, count);
+        for (int k=0; k<count; k++) {
+            uids[k] = indexStore[uids[k]];
         }
-        return follows;
+        return new FollowList(uids, times);
     }
 
     /**
-     * isAFollower: return true uf tge user with uidFollower is a follower of
-     * the user with the id uidFollows. Returns false otherwise.
+     * enableEdgeFilter: put a Bloom filter of the follow relationships in
+     * front of isAFollower, made for the expected number of relationships with
+     * the given false positive rate. The relationships already in the store
+     * are added to the filter, and removed relationships are left in it, which
+     * only means the lists are checked for them.
      *
-     * Algorithm Complexity: O(n) + O(n) = O(n)
+     * Algorithm Complexity: O(n + e)
      * where n is the number of users in the matrix
+     * where e is the number of follow relationships
+     *
+     */
+
+    public void enableEdgeFilter(long expectedEdges, double falsePositiveRate) {
+        enableEdgeFilter(new BloomFilter(expectedEdges, falsePositiveRate));
+    }
+
+    public void enableEdgeFilter(BloomFilter filter) {
+        forEachFollow((follower, followed, time) -> filter.put(BloomFilter.pairKey(follower, followed)));
+        edgeFilter = filter;
+    }
+
+    public void disableEdgeFilter() {
+        edgeFilter = null;
+    }
+
+    public BloomFilter getEdgeFilter() {
+        return edgeFilter;
+    }
+
+    /**
+     * setAnalytics: tell the analytics about every follow added from now on,
+     * or stop if it is null.
+     *
+     */
+
+    public void setAnalytics(StoreAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    public StoreAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    /**
+     * forEachFollow: call the visitor for every follow relationship, going
+     * through the follows of each user in matrix order, the same order as
+     * going across each row of the matrix. Used to export the relationships.
+     *
+     * Algorithm Complexity: O(n + e)
+     * where n is the number of users in the matrix
+     * where e is the number of follow relationships
+     *
+     */
+
+    public void forEachFollow(FollowVisitor visitor) {
+        for (int i=0; i<matrixSize; i++) {
+            int follower = indexStore[i];
+            follows.forEachNeighbour(i, (CompressedAdjacency.NeighbourVisitor) (index, time) ->
+                visitor.visit(follower, indexStore[index], time));
+        }
+    }
+
+    /**
+     * Methods used by FollowerTraversal, which works with matrix indexes rather
+     * than user ids so it can keep its sets as bits. indexOf returns -1 for a
+     * user not in the matrix, without adding them. forEachFollowIndex visits
+     * the users followed by the user at the index and forEachFollowerIndex
+     * their followers, smallest index first, only reading the ids from the
+     * lists. Several threads can read the lists at once as long as they
+     * aren't being changed.
+     *
+     * Algorithm Complexity: O(1), except the forEach methods which are O(d)
+     * where d is the number of users visited
+     *
+     */
+
+    int indexOf(int uid) {
+        return findUserIndex(uid);
+    }
+
+    int uidAt(int index) {
+        return indexStore[index];
+    }
+
+    void forEachFollowIndex(int index, IndexVisitor visitor) {
+        follows.forEachNeighbour(index, visitor);
+    }
+
+    void forEachFollowerIndex(int index, IndexVisitor visitor) {
+        followers.forEachNeighbour(index, visitor);
+    }
+
+    /**
+     * isAFollower: return true uf tge user with uidFollower is a follower of
+     * the user with the id uidFollows. Returns false otherwise. Whichever of
+     * the follower's follows and the other user's followers is shorter is
+     * searched.
+     *
+     * Algorithm Complexity: O(d)
+     * where d is the smaller number of follows of the two users
      *
      */
 
     public boolean isAFollower(int uidFollower, int uidFollows) {
+        // most pairs that don't follow each other can be ruled out without looking
+        if (edgeFilter != null && !edgeFilter.mightContain(BloomFilter.pairKey(uidFollower, uidFollows))) {
+            return false;
+        }
         // get the index of the users in the adjacency matrix
-        int uid1Index = getUserIndex(uidFollower);
-        int uid2Index = getUserIndex(uidFollows);
+        int uid1Index = findUserIndex(uidFollower);
+        int uid2Index = findUserIndex(uidFollows);
+        // a user with no follows at all can't be following anyone
+        if (uid1Index == -1 || uid2Index == -1) {
+            return false;
+        }
         // check if there is an existing follow relationship between the users
-        if (matrix[uid1Index][uid2Index] != null) {
-            return true;
+        if (follows.getDegree(uid1Index) <= followers.getDegree(uid2Index)) {
+            return follows.contains(uid1Index, uid2Index);
         }
-        return false;
+        return followers.contains(uid2Index, uid1Index);
     }
 
     /**
      * getNumFollowers: returns the number of followers that the user with given
      * id has.
      *
-     * Algorithm Complexity: O(n) + O(n) = O(n)
-     * where n is the number of users in the matrix
+     * Algorithm Complexity: O(1)
      *
      */
 
     public int getNumFollowers(int uid) {
         // get the index of the user in the adjacency matrix
-        int uidIndex = getUserIndex(uid);
-        int followers = 0;
-        // iterate down the users column in the adjacency matrix
-        for (int i=0; i<matrixSize; i++) {
-            // increase followers by one when the element isnt null
-            if (matrix[i][uidIndex] != null) {
-                followers++;
-            }
+        int uidIndex = findUserIndex(uid);
+        if (uidIndex == -1) {
+            return 0;
         }
-        return followers;
+        // the count is kept with the list
+        return followers.getDegree(uidIndex);
     }
 
     /**
@@ -221,45 +438,21 @@ public class FollowerStore implements IFollowerStore {
      * both of the given users. The list is sorted such that the most recently
      * follower is first.
      *
-     * Algorithm Complexity: O(n) + O(n) + O(n) + O(m) + O(m) = O(n)
-     * where n is the number of users in the matrix
+     * Algorithm Complexity: O((d1 + d2) f) + O(m logm) = O((d1 + d2) f + m logm)
+     * where d1 and d2 are the number of followers of each of the given users
+     * where f is the number of users each of the followers follows
      * where m is the number of users that follow both the given users
      *
      */
 
     public int[] getMutualFollowers(int uid1, int uid2) {
         // get the index of the user in the adjacency matrix
-        int uid1Index = getUserIndex(uid1);
-        int uid2Index = getUserIndex(uid2);
-        SortingObject[] tempMutualFollowers = new SortingObject[matrixSize];
-        int follower_count = 0;
-        // iterate down both the column for uid1 and uid2
-        for (int i=0; i<matrixSize; i++) {
-            // if there is a follow relationship for both users, add user to temp array
-            Date date1 = matrix[i][uid1Index];
-            Date date2 = matrix[i][uid2Index];
-            if (date1 != null && date2 != null) {
-                // add the follow relationship that occurred more recently
-                if (date1.before(date2) || date1.equals(date2)) {
-                    tempMutualFollowers[follower_count++] = new SortingObject(indexStore[i], date1);
-                } else {
-                    tempMutualFollowers[follower_count++] = new SortingObject(indexStore[i], date2);
-                }
-            }
-        }
-        // remove the null element from the end of the temop array
-        SortingObject[] unsortedMutualFollowers = new SortingObject[follower_count];
-        for (int j=0; j<follower_count; j++) {
-            unsortedMutualFollowers[j] = tempMutualFollowers[j];
-        }
-        // sort the array by date followed
-        sort(unsortedMutualFollowers, follower_count);
-        // get the uid from the sorted array and return
-        int[] mutualFollowers = new int[follower_count];
-        for (int k=0; k<follower_count; k++) {
-            mutualFollowers[k] = unsortedMutualFollowers[k].uid;
+        int uid1Index = findUserIndex(uid1);
+        int uid2Index = findUserIndex(uid2);
+        if (uid1Index == -1 || uid2Index == -1) {
+            return new int[0];
         }
-        return mutualFollowers;
+        return getMutual(followers, uid1Index, uid2Index);
     }
 
     /**
@@ -267,72 +460,105 @@ public class FollowerStore implements IFollowerStore {
      * by both given users. The list is sorted such that the most recent follow
      * is first.
      *
-     * Algorithm Complexity: O(n) + O(n) + O(n) + O(m) + O(m) = O(n)
-     * where n is the number of users in the matrix
+     * Algorithm Complexity: O(d1 + d2) + O(m logm) = O(d1 + d2 + m logm)
+     * where d1 and d2 are the number of users each of the given users follows
      * where m is the number of users both the given users follow
      *
      */
 
     public int[] getMutualFollows(int uid1, int uid2) {
         // get the index of the user in the adjacency matrix
-        int uid1Index = getUserIndex(uid1);
-        int uid2Index = getUserIndex(uid2);
-        SortingObject[] tempMutualFollows = new SortingObject[matrixSize];
-        int follow_count = 0;
-        // iterate down both the column for uid1 and uid2
-        for (int i=0; i<matrixSize; i++) {
-            // if there is a follow relationship for both users, add user to temp array
-            Date date1 = matrix[uid1Index][i];
-            Date date2 = matrix[uid2Index][i];
-            if (date1 != null && date2 != null) {
-                // add the follow relationship that occurred more recently
-                if (date1.before(date2) || date1.equals(date2)) {
-                    tempMutualFollows[follow_count++] = new SortingObject(indexStore[i], date1);
-                } else {
-                    tempMutualFollows[follow_count++] = new SortingObject(indexStore[i], date2);
-                }
+        int uid1Index = findUserIndex(uid1);
+        int uid2Index = findUserIndex(uid2);
+        if (uid1Index == -1 || uid2Index == -1) {
+            return new int[0];
+        }
+        return getMutual(follows, uid1Index, uid2Index);
+    }
+
+    // merge the two sorted lists, keeping the users in both, and sort them by date
+    private int[] getMutual(CompressedAdjacency adjacency, int index1, int index2) {
+        int count1 = adjacency.getDegree(index1);
+        int count2 = adjacency.getDegree(index2);
+        int[] ids1 = new int[count1];
+        long[] times1 = new long[count1];
+        int[] ids2 = new int[count2];
+        long[] times2 = new long[count2];
+        adjacency.decode(index1, ids1, times1);
+        adjacency.decode(index2, ids2, times2);
+        if (!adjacency.hasTimes()) {
+            followerTimes(index1, ids1, times1, count1);
+            followerTimes(index2, ids2, times2, count2);
+        }
+        int[] mutual = new int[Math.min(count1, count2)];
+        long[] times = new long[mutual.length];
+        int mutual_count = 0;
+        int i = 0, j = 0;
+        while (i < count1 && j < count2) {
+            if (ids1[i] < ids2[j]) {
+                i++;
+            } else if (ids1[i] > ids2[j]) {
+                j++;
+            } else {
+                // add the follow relationship that occurred first
+                mutual[mutual_count] = ids1[i];
+                times[mutual_count++] = times1[i] <= times2[j] ? times1[i] : times2[j];
+                i++;
+                j++;
             }
         }
-        // remove the null element from the end of the temp array
-        SortingObject[] unsortedMutualFollows = new SortingObject[follow_count];
-        for (int j=0; j<follow_count; j++) {
-            unsortedMutualFollows[j] = tempMutualFollows[j];
+        // sort the arrays by date followed
+        sort(mutual, times, mutual_count);
+        // get the uids and return
+        int[] uids = new int[mutual_count];
+        for (int k=0; k<mutual_count; k++) {
+            uids[k] = indexStore[mutual[k]];
         }
-        // sort the array by date followed
-        sort(unsortedMutualFollows, follow_count);
-        // get the uid from the sorted array and return
-        int[] mutualFollows = new int[follow_count];
-        for (int k=0; k<follow_count; k++) {
-            mutualFollows[k] = unsortedMutualFollows[k].uid;
+        return uids;
+    }
+
+    // the followers list has no times, so read the time each follower followed the user at the index from their follows
+    private void followerTimes(int index, int[] followerIndexes, long[] times, int count) {
+        for (int i=0; i<count; i++) {
+            times[i] = follows.getTime(followerIndexes[i], index);
         }
-        return mutualFollows;
     }
 
     /**
      * getTopUsers: return an array of the user ids such that the user with the
      * most followers is at the top.
      *
-     * Algorithm Complexity: O(n) + O(n) + O(n) + O(m) + O(m) = O(n)
+     * Algorithm Complexity: O(n)
      * where n is the number of users in the matrix
-     * where m is the number of user in topUsers
      */
 
     public int[] getTopUsers() {
+        return getTopUsers(new int[10]);
+    }
+
+    /**
+     * getTopUsers: the same as getTopUsers(), but also fills counts with the
+     * number of followers of each of the users returned. counts must have room
+     * for 10 numbers.
+     *
+     */
+
+    public int[] getTopUsers(int[] counts) {
         // array to store top 10 most followed users
         int[] topCount = new int[10];
         int[] topUsers = new int[10];
         // get the top 10 users
         for (int i=0; i<matrixSize; i++) {
-            int followers = getNumFollowers(indexStore[i]);
+            int follower_count = followers.getDegree(i);
             for (int j=0; j<10; j++) {
-                if (followers >= topCount[j]) {
+                if (follower_count >= topCount[j]) {
                     int[] tempCount = new int[10];
                     int[] tempUsers = new int[10];
                     for (int m=0; m<j; m++) {
                         tempCount[m] = topCount[m];
                         tempUsers[m] = topUsers[m];
                     }
-                    tempCount[j] = followers;
+                    tempCount[j] = follower_count;
                     tempUsers[j] = indexStore[i];
                     for (int k=j+1; k<10; k++) {
                         tempCount[k] = topCount[k-1];
@@ -342,36 +568,71 @@ public class FollowerStore implements IFollowerStore {
                     topUsers = tempUsers;
                     break;
                 }
-                // } else if (followers == topCount[j]) { //TODO: TEST THIS
-                //     int[] tempCount = new int[10];
-                //     int[] tempUsers = new int[10];
-                //     for (int m=0; m<j+1; m++) {
-                //         tempCount[m] = topCount[m];
-                //         tempUsers[m] = topUsers[m];
-                //     }
-                //     tempCount[j+1] = followers;
-                //     tempUsers[j+1] = indexStore[i];
-                //     for (int k=j+2; k<10; k++) {
-                //         tempCount[k] = topCount[k-1];
-                //         tempUsers[k] = topUsers[k-1];
-                //     }
-                //     topCount = tempCount;
-                //     topUsers = tempUsers;
-                //     break;
-                // }
             }
         }
+        for (int c=0; c<10; c++) {
+            counts[c] = topCount[c];
+        }
         return topUsers;
     }
 
+    /**
+     * Methods used to monitor the store: the number of users and follow
+     * relationships in it, the capacity for users, the bytes used encoding
+     * the follow lists in both directions, and an estimate of the memory used
+     * by the lists, the indexes and the edge filter in bytes. The estimate
+     * assumes 4 byte references, as on a 64 bit JVM with compressed
+     * references.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public int getMatrixSize() {
+        return matrixSize;
+    }
+
+    public int getMatrixCapacity() {
+        return matrixCapacity;
+    }
+
+    public int getNumEdges() {
+        return edgeCount;
+    }
+
+    public long getEncodedEdgeBytes() {
+        return follows.getEncodedBytes() + followers.getEncodedBytes();
+    }
+
+    public long getIndexMemory() {
+        long listMemory = follows.getMemory() + followers.getMemory();
+        return listMemory + 16L + 4L * matrixCapacity + 2 * (16L + 4L * indexTable.length)
+            + (edgeFilter == null ? 0 : edgeFilter.getMemory());
+    }
+
+    /**
+     * trimToSize: give back the spare room at the end of each follow list,
+     * worth doing once a large number of follows have been loaded.
+     *
+     * Algorithm Complexity: O(n + e)
+     * where n is the number of users in the matrix
+     * where e is the number of follow relationships
+     *
+     */
+
+    public void trimToSize() {
+        follows.trimToSize();
+        followers.trimToSize();
+    }
+
     /**
      * getUserIndex: given a user's id, get their position in the matrix. This
-     * achieved by getting the position of the user in the array indexStore. If
-     * a user is not in the store, this is where they will added. If the matrix
-     * has reached capacity then the method ___ will be called before the new
-     * is created.
+     * achieved by looking the user up in the indexTable. If a user is not in
+     * the store, they are added to the end of indexStore. If the matrix has
+     * reached capacity then the method increaseMatrix will be called before the
+     * new user is added.
      *
-     * Algorithm Complexity: O(n) (O(n^2) worst case if matrix needs resizing)
+     * Algorithm Complexity: O(1) (O(n) worst case if the lists need resizing)
      * where n is the number of users in the matrix
      *
      */
@@ -379,10 +640,9 @@ public class FollowerStore implements IFollowerStore {
     // given user id, get the index of the user
     private int getUserIndex(int uid) {
         // see if the user is already in the adjacency matrix, returning their index if so
-        for (int i=0; i<matrixSize; i++) {
-            if (indexStore[i] == uid) {
-                return i;
-            }
+        int index = findUserIndex(uid);
+        if (index != -1) {
+            return index;
         }
         // if user doesn't exist, add to indexStore
         // check the matrix isn't at capacity
@@ -390,14 +650,54 @@ public class FollowerStore implements IFollowerStore {
             increaseMatrix();
         }
         indexStore[matrixSize] = uid;
+        putIndex(indexTable, indexTableKeys, uid, matrixSize);
         return matrixSize++;
     }
 
     /**
-     * increaseMatrix: double the size of the matrix and the indexStore so that
-     * more users can be added to the store
+     * findUserIndex: given a user's id, return their position in the matrix or
+     * -1 if the user is not in the matrix. Unlike getUserIndex the user is not
+     * added.
      *
-     * Algorithm Complexity: O(n^2) + O(n) = O(n^2)
+     * Algorithm Complexity: O(1) on average
+     *
+     */
+
+    private int findUserIndex(int uid) {
+        int mask = indexTable.length - 1;
+        int slot = hashIndex(uid) & mask;
+        // linear probe until the user or an empty slot is found
+        while (indexTable[slot] != 0) {
+            if (indexTableKeys[slot] == uid) {
+                return indexTable[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // store the matrix index of a user in the given table
+    private static void putIndex(int[] table, int[] keys, int uid, int index) {
+        int mask = table.length - 1;
+        int slot = hashIndex(uid) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = uid;
+        table[slot] = index + 1;
+    }
+
+    // spread the bits of the id so that sequential ids dont cluster
+    private static int hashIndex(int uid) {
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * increaseMatrix: double the number of users the lists and the indexStore
+     * have room for so that more users can be added to the store
+     *
+     * Algorithm Complexity: O(n) + O(n) + O(n) = O(n)
      * where n is number of users in the matrix
      *
      */
@@ -405,21 +705,24 @@ public class FollowerStore implements IFollowerStore {
     private void increaseMatrix() {
         // create tempery arrays to hold the data
         int newCapacity = matrixCapacity * 2;
-        Date[][] tempMatrix = new Date[newCapacity][newCapacity];
+        follows.ensureCapacity(newCapacity);
+        followers.ensureCapacity(newCapacity);
         int[] tempIndexStore =  new int[newCapacity];
         // copy data to new arrays
-        for (int i=0; i<matrixCapacity; i++) {
-            for (int j=0; j<matrixCapacity; j++) {
-                tempMatrix[i][j] = matrix[i][j];
-            }
-        }
         for (int k=0; k<matrixCapacity; k++) {
             tempIndexStore[k] = indexStore[k];
         }
+        // rebuild the indexTable so it stays at most half full
+        int[] tempIndexTable = new int[newCapacity * 2 <= indexTable.length ? indexTable.length : indexTable.length * 2];
+        int[] tempIndexTableKeys = new int[tempIndexTable.length];
+        for (int m=0; m<matrixSize; m++) {
+            putIndex(tempIndexTable, tempIndexTableKeys, indexStore[m], m);
+        }
         // set the new values
-        matrix = tempMatrix;
         indexStore = tempIndexStore;
         matrixCapacity = newCapacity;
+        indexTable = tempIndexTable;
+        indexTableKeys = tempIndexTableKeys;
     }
 
 
@@ -432,44 +735,53 @@ public class FollowerStore implements IFollowerStore {
      *
      */
 
-    private static void sort(SortingObject[] followers, int arraySize) {
+    private static void sort(int[] uids, long[] times, int arraySize) {
         // recursion base - arraySize == 1
         if (arraySize < 2) {
             return;
         }
         int middle = arraySize / 2;
         // create temp arrays
-        SortingObject[] left = new SortingObject[middle];
-        SortingObject[] right = new SortingObject[arraySize - middle];
-        // copy the users array to temp arrays
+        int[] leftUids = new int[middle];
+        long[] leftTimes = new long[middle];
+        int[] rightUids = new int[arraySize - middle];
+        long[] rightTimes = new long[arraySize - middle];
+        // copy the arrays to temp arrays
         for (int i=0; i<middle; i++) {
-            left[i] = followers[i];
+            leftUids[i] = uids[i];
+            leftTimes[i] = times[i];
         }
         for (int j=middle; j<arraySize; j++) {
-            right[j - middle] = followers[j];
+            rightUids[j - middle] = uids[j];
+            rightTimes[j - middle] = times[j];
         }
         // recursive call
-        sort(left, middle);
-        sort(right, arraySize - middle);
+        sort(leftUids, leftTimes, middle);
+        sort(rightUids, rightTimes, arraySize - middle);
         // merge the sub arrays
-        merge(followers, left, right, middle, arraySize - middle);
+        merge(uids, times, leftUids, leftTimes, rightUids, rightTimes, middle, arraySize - middle);
     }
 
-    public static void merge(SortingObject[] followers, SortingObject[] left, SortingObject[] right, int leftSize, int rightSize) {
+    private static void merge(int[] uids, long[] times, int[] leftUids, long[] leftTimes,
+                              int[] rightUids, long[] rightTimes, int leftSize, int rightSize) {
         int i = 0, j = 0, k = 0;
-        // compare follow date
+        // compare follow date, most recent first
         while (i < leftSize && j < rightSize) {
-            if (left[i].date.after(right[j].date) || left[i].date.equals(right[j].date)) {
-                followers[k++] = left[i++];
+            if (leftTimes[i] >= rightTimes[j]) {
+                uids[k] = leftUids[i];
+                times[k++] = leftTimes[i++];
             } else {
-                followers[k++] = right[j++];
+                uids[k] = rightUids[j];
+                times[k++] = rightTimes[j++];
             }
         }
         while (i < leftSize) {
-            followers[k++] = left[i++];
+            uids[k] = leftUids[i];
+            times[k++] = leftTimes[i++];
         }
         while (j < rightSize) {
-            followers[k++] = right[j++];
+            uids[k] = rightUids[j];
+            times[k++] = rightTimes[j++];
         }
     }
 }
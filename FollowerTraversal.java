@@ -0,0 +1,442 @@
+/**
+ * FollowerTraversal answers questions about the follower graph that go further
+ * than one hop: the shortest chain of follows from one user to another ("how
+ * are you connected to X"), and how many users are within k hops of someone,
+ * such as how many users a weet could reach through followers of followers.
+ *
+ * The searches are breadth first, working with the users' matrix indexes in
+ * the FollowerStore, so the sets of users seen and the frontier of the next
+ * level to expand are kept as bits, one per user in the matrix, rather than as
+ * sets of ids. Each level is expanded in parallel: the frontier is split into
+ * ranges of indexes, one for each thread, and the threads claim the users they
+ * find by setting their bit in the shared seen set with a compare and swap,
+ * so each user is claimed by exactly one thread and no locks are needed.
+ * Small frontiers are expanded on the calling thread, as handing them out
+ * would cost more than it saves.
+ *
+ * The shortest path search is bidirectional: it searches forward from the
+ * first user along the users they follow, and backward from the second along
+ * their followers, always expanding the side with the smaller frontier, until
+ * the two meet. The number of users looked at grows with the number of hops,
+ * so meeting in the middle looks at far fewer than searching from one end.
+ * Each side records the user it came from for every user it claims, so the
+ * path can be put together from where they met.
+ *
+ * The reach estimate counts the levels before the last exactly, and the last
+ * level, which is usually by far the largest, with a HyperLogLog sketch for
+ * each thread. The last level then doesn't claim anything in the shared sets,
+ * and the sketches are merged at the end, so the result can also be merged
+ * with estimates from other shards.
+ *
+ * Every query has a memory budget. Before it starts, the memory it needs for
+ * its sets, sketches and paths is worked out from the number of users in the
+ * matrix, and if that is over the budget an IllegalStateException is thrown
+ * rather than running it.
+ *
+ * The store must not be changed while a query is running, so anything adding
+ * to it at the same time should be stopped with a lock, as in AsyncStores.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class FollowerTraversal implements AutoCloseable {
+
+    // go from a user to their followers, as a weet does
+    public static final int FOLLOWERS = 0;
+    // go from a user to the users they follow
+    public static final int FOLLOWS = 1;
+
+    // frontiers smaller than this are expanded on the calling thread
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private final FollowerStore store;
+    private final int parallelism;
+    private final long memoryBudget;
+    private final int sketchPrecision;
+    private final ExecutorService executor;
+
+    public FollowerTraversal(FollowerStore store) {
+        this(store, Runtime.getRuntime().availableProcessors(), 64L << 20, 12);
+    }
+
+    /**
+     * The memory budget is in bytes, and applies to each query. The sketch
+     * precision is the precision of the HyperLogLog sketches used by
+     * estimateWithinHops.
+     *
+     */
+
+    public FollowerTraversal(FollowerStore store, int parallelism, long memoryBudget, int sketchPrecision) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.store = store;
+        this.parallelism = parallelism;
+        this.memoryBudget = memoryBudget;
+        this.sketchPrecision = sketchPrecision;
+        // check the precision now rather than on the first estimate
+        new HyperLogLog(sketchPrecision);
+        executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "follower-traversal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * getShortestPath: return the ids of the shortest chain of users from
+     * fromUid to toUid, where each user follows the next, starting with fromUid
+     * and ending with toUid. Returns null if there is no chain of at most
+     * maxHops follows.
+     *
+     * Algorithm Complexity: O(v * d)
+     * where v is the number of users reached from either end
+     * where d is the cost of finding a user's follows or followers
+     *
+     */
+
+    public int[] getShortestPath(int fromUid, int toUid, int maxHops) {
+        if (fromUid == toUid) {
+            return new int[] {fromUid};
+        }
+        int from = store.indexOf(fromUid);
+        int to = store.indexOf(toUid);
+        if (from == -1 || to == -1 || maxHops < 1) {
+            return null;
+        }
+        int n = store.getMatrixSize();
+        checkBudget(5 * bitsMemory(n) + 2 * (16L + 4L * n));
+        // each side has its own seen set, frontier and the user each one came from
+        AtomicBits forwardSeen = new AtomicBits(n);
+        AtomicBits forwardFrontier = new AtomicBits(n);
+        AtomicBits backwardSeen = new AtomicBits(n);
+        AtomicBits backwardFrontier = new AtomicBits(n);
+        AtomicBits next = new AtomicBits(n);
+        int[] forwardParents = new int[n];
+        int[] backwardParents = new int[n];
+        forwardSeen.set(from);
+        forwardFrontier.set(from);
+        backwardSeen.set(to);
+        backwardFrontier.set(to);
+        int forwardSize = 1;
+        int backwardSize = 1;
+        int hops = 0;
+        while (hops < maxHops && forwardSize > 0 && backwardSize > 0) {
+            hops++;
+            int meet;
+            // expand whichever side has fewer users to expand
+            if (forwardSize <= backwardSize) {
+                forwardSize = expand(forwardFrontier, forwardSize, forwardSeen, next, forwardParents, FOLLOWS, null);
+                meet = findMeeting(next, backwardSeen);
+                AtomicBits temp = forwardFrontier;
+                forwardFrontier = next;
+                next = temp;
+            } else {
+                backwardSize = expand(backwardFrontier, backwardSize, backwardSeen, next, backwardParents, FOLLOWERS, null);
+                meet = findMeeting(next, forwardSeen);
+                AtomicBits temp = backwardFrontier;
+                backwardFrontier = next;
+                next = temp;
+            }
+            next.clear();
+            if (meet != -1) {
+                return buildPath(meet, from, to, forwardParents, backwardParents, hops);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * countWithinHops: return the number of different users within the given
+     * number of hops of the user, not counting the user themselves. With
+     * FOLLOWERS this is their followers, their followers' followers and so on,
+     * and with FOLLOWS the users they follow and so on.
+     *
+     * Algorithm Complexity: O(v * d)
+     * where v is the number of users within the hops
+     * where d is the cost of finding a user's follows or followers
+     *
+     */
+
+    public int countWithinHops(int uid, int hops, int direction) {
+        checkDirection(direction);
+        int start = store.indexOf(uid);
+        if (start == -1 || hops < 1) {
+            return 0;
+        }
+        int n = store.getMatrixSize();
+        checkBudget(3 * bitsMemory(n));
+        AtomicBits seen = new AtomicBits(n);
+        AtomicBits frontier = new AtomicBits(n);
+        AtomicBits next = new AtomicBits(n);
+        seen.set(start);
+        frontier.set(start);
+        int frontierSize = 1;
+        int total = 0;
+        for (int level=0; level<hops && frontierSize > 0; level++) {
+            frontierSize = expand(frontier, frontierSize, seen, next, null, direction, null);
+            total += frontierSize;
+            AtomicBits temp = frontier;
+            frontier = next;
+            next = temp;
+            next.clear();
+        }
+        return total;
+    }
+
+    /**
+     * estimateWithinHops: return an estimate of countWithinHops, counting the
+     * last hop with HyperLogLog sketches. The levels before the last are
+     * counted exactly, so the error is only in the last level, and is about
+     * the standard error of the sketches.
+     *
+     * Algorithm Complexity: O(v * d)
+     * where v is the number of users within the hops
+     * where d is the cost of finding a user's follows or followers
+     *
+     */
+
+    public long estimateWithinHops(int uid, int hops, int direction) {
+        checkDirection(direction);
+        int start = store.indexOf(uid);
+        if (start == -1 || hops < 1) {
+            return 0;
+        }
+        int n = store.getMatrixSize();
+        long sketchMemory = new HyperLogLog(sketchPrecision).getMemory();
+        checkBudget(3 * bitsMemory(n) + parallelism * sketchMemory);
+        AtomicBits seen = new AtomicBits(n);
+        AtomicBits frontier = new AtomicBits(n);
+        AtomicBits next = new AtomicBits(n);
+        seen.set(start);
+        frontier.set(start);
+        int frontierSize = 1;
+        long total = 0;
+        // count every level but the last exactly
+        for (int level=0; level<hops-1 && frontierSize > 0; level++) {
+            frontierSize = expand(frontier, frontierSize, seen, next, null, direction, null);
+            total += frontierSize;
+            AtomicBits temp = frontier;
+            frontier = next;
+            next = temp;
+            next.clear();
+        }
+        if (frontierSize == 0) {
+            return total;
+        }
+        // sketch the users in the last level that haven't been seen yet
+        HyperLogLog[] sketches = new HyperLogLog[parallelism];
+        for (int i=0; i<parallelism; i++) {
+            sketches[i] = new HyperLogLog(sketchPrecision);
+        }
+        expand(frontier, frontierSize, seen, next, null, direction, sketches);
+        for (int i=1; i<parallelism; i++) {
+            sketches[0].merge(sketches[i]);
+        }
+        return total + sketches[0].estimate();
+    }
+
+    /**
+     * expand: claim every user one hop from the frontier that hasn't been seen,
+     * setting their bits in seen and next and, if parents isn't null, the user
+     * they were reached from. If sketches isn't null the users are added to
+     * the sketches instead and nothing is claimed. Returns the number of users
+     * claimed.
+     *
+     * Algorithm Complexity: O(f * d / p)
+     * where f is the number of users in the frontier
+     * where d is the cost of finding a user's follows or followers
+     * where p is the number of threads
+     *
+     */
+
+    private int expand(AtomicBits frontier, int frontierSize, AtomicBits seen, AtomicBits next,
+                       int[] parents, int direction, HyperLogLog[] sketches) {
+        int n = frontier.size();
+        if (parallelism == 1 || frontierSize < PARALLEL_THRESHOLD) {
+            return expandRange(0, n, frontier, seen, next, parents, direction, sketches == null ? null : sketches[0]);
+        }
+        // split the indexes into one range for each thread, on word boundaries
+        int words = (n + 63) / 64;
+        int wordsPerTask = (words + parallelism - 1) / parallelism;
+        Future<?>[] futures = new Future<?>[parallelism];
+        for (int t=0; t<parallelism; t++) {
+            final int rangeStart = Math.min(n, t * wordsPerTask * 64);
+            final int rangeEnd = Math.min(n, (t + 1) * wordsPerTask * 64);
+            final HyperLogLog sketch = sketches == null ? null : sketches[t];
+            futures[t] = executor.submit(
+                () -> expandRange(rangeStart, rangeEnd, frontier, seen, next, parents, direction, sketch));
+        }
+        int claimed = 0;
+        try {
+            for (int t=0; t<parallelism; t++) {
+                claimed += (Integer) futures[t].get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while expanding a level", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("expanding a level failed", e.getCause());
+        }
+        return claimed;
+    }
+
+    // expand the users in the frontier with indexes from start up to end
+    private int expandRange(int start, int end, AtomicBits frontier, final AtomicBits seen, final AtomicBits next,
+                            final int[] parents, int direction, final HyperLogLog sketch) {
+        final int[] claimed = new int[1];
+        for (int i=frontier.nextSetBit(start); i != -1 && i < end; i=frontier.nextSetBit(i + 1)) {
+            final int parent = i;
+            FollowerStore.IndexVisitor visitor = index -> {
+                if (sketch != null) {
+                    if (!seen.get(index)) {
+                        sketch.add(store.uidAt(index));
+                    }
+                } else if (seen.set(index)) {
+                    // this thread claimed the user, so it is the only one writing their parent
+                    next.set(index);
+                    if (parents != null) {
+                        parents[index] = parent;
+                    }
+                    claimed[0]++;
+                }
+            };
+            if (direction == FOLLOWS) {
+                store.forEachFollowIndex(i, visitor);
+            } else {
+                store.forEachFollowerIndex(i, visitor);
+            }
+        }
+        return claimed[0];
+    }
+
+    // the first user in the new level that the other side has already seen, or -1
+    private static int findMeeting(AtomicBits level, AtomicBits otherSeen) {
+        for (int i=level.nextSetBit(0); i != -1; i=level.nextSetBit(i + 1)) {
+            if (otherSeen.get(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // follow the parents back from where the two sides met to each end
+    private int[] buildPath(int meet, int from, int to, int[] forwardParents, int[] backwardParents, int hops) {
+        int[] path = new int[hops + 1];
+        // count the hops from the start to the meeting point
+        int forwardHops = 0;
+        for (int i=meet; i != from; i=forwardParents[i]) {
+            forwardHops++;
+        }
+        int k = forwardHops;
+        for (int i=meet; i != from; i=forwardParents[i]) {
+            path[k--] = store.uidAt(i);
+        }
+        path[0] = store.uidAt(from);
+        k = forwardHops + 1;
+        for (int i=meet; i != to; ) {
+            i = backwardParents[i];
+            path[k++] = store.uidAt(i);
+        }
+        return path;
+    }
+
+    // the memory used by an AtomicBits for n users
+    private static long bitsMemory(int n) {
+        return 16L + 16L + 8L * ((n + 63) / 64);
+    }
+
+    private void checkBudget(long needed) {
+        if (needed > memoryBudget) {
+            throw new IllegalStateException("query needs about " + needed + " bytes, over the budget of "
+                + memoryBudget + " bytes");
+        }
+    }
+
+    private static void checkDirection(int direction) {
+        if (direction != FOLLOWERS && direction != FOLLOWS) {
+            throw new IllegalArgumentException("direction must be FOLLOWERS or FOLLOWS, was " + direction);
+        }
+    }
+
+    /**
+     * AtomicBits: a set of ints from 0 up to a size, kept as bits in an
+     * AtomicLongArray so several threads can set bits at once.
+     *
+     */
+    private static class AtomicBits {
+        private final AtomicLongArray words;
+        private final int size;
+
+        public AtomicBits(int size) {
+            this.size = size;
+            this.words = new AtomicLongArray((size + 63) / 64);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean get(int i) {
+            return (words.get(i >>> 6) & (1L << i)) != 0;
+        }
+
+        // set the bit, returning true if this call set it and false if it was already set
+        public boolean set(int i) {
+            int w = i >>> 6;
+            long bit = 1L << i;
+            while (true) {
+                long current = words.get(w);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+                if (words.compareAndSet(w, current, current | bit)) {
+                    return true;
+                }
+            }
+        }
+
+        public int nextSetBit(int from) {
+            if (from >= size) {
+                return -1;
+            }
+            int w = from >>> 6;
+            long word = words.get(w) & (-1L << from);
+            while (true) {
+                if (word != 0) {
+                    int i = w * 64 + Long.numberOfTrailingZeros(word);
+                    return i < size ? i : -1;
+                }
+                w++;
+                if (w == words.length()) {
+                    return -1;
+                }
+                word = words.get(w);
+            }
+        }
+
+        public void clear() {
+            for (int w=0; w<words.length(); w++) {
+                words.set(w, 0);
+            }
+        }
+    }
+}
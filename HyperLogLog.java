@@ -0,0 +1,153 @@
+/**
+ * HyperLogLog estimates how many different keys have been added to it, using
+ * a fixed, small amount of memory however many keys there are. It is used
+ * where counting exactly would mean keeping every key, such as the number of
+ * users within a few hops of someone with millions of followers.
+ *
+ * Each key is hashed to 64 bits. The first p bits pick one of m = 2^p
+ * registers, and the register keeps the most leading zeros (plus one) seen in
+ * the rest of the hash. A run of r zeros turns up about once in 2^r different
+ * keys, so the registers together give an estimate of the count, as described
+ * by Flajolet et al. The standard error is about 1.04 / sqrt(m), so 2^12
+ * registers, taking 4KB, give counts within about 1.6%. Small counts, where
+ * many registers are still empty, use linear counting instead, which is
+ * exact enough there.
+ *
+ * Adding the same key again never changes anything, and two sketches with
+ * the same precision can be merged by taking the larger of each register,
+ * which gives the sketch of all of the keys added to either. This is what
+ * lets each thread or shard keep its own sketch and the results be put
+ * together at the end. Like the stores it is not thread safe.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(12);
+    }
+
+    /**
+     * Make a sketch with 2^precision registers, for a precision from 4 to 18.
+     *
+     */
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be from 4 to 18, was " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * add: add a key to the sketch.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void add(long key) {
+        long hash = mix(key);
+        int register = (int) (hash >>> (64 - precision));
+        // the rank is the position of the first 1 bit in the rest of the hash
+        long rest = hash << precision;
+        int rank = rest == 0 ? 64 - precision + 1 : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * merge: add every key added to the other sketch to this one. Both must
+     * have the same precision.
+     *
+     * Algorithm Complexity: O(m)
+     * where m is the number of registers
+     *
+     */
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("can't merge a sketch with precision " + other.precision
+                + " into one with precision " + precision);
+        }
+        for (int i=0; i<registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * estimate: return the estimated number of different keys added.
+     *
+     * Algorithm Complexity: O(m)
+     * where m is the number of registers
+     *
+     */
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int empty = 0;
+        for (int i=0; i<m; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) {
+                empty++;
+            }
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // use linear counting while lots of the registers are still empty
+        if (estimate <= 2.5 * m && empty > 0) {
+            estimate = m * Math.log((double) m / empty);
+        }
+        return Math.round(estimate);
+    }
+
+    public boolean isEmpty() {
+        for (int i=0; i<registers.length; i++) {
+            if (registers[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (int i=0; i<registers.length; i++) {
+            registers[i] = 0;
+        }
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * getStandardError: the expected relative error of the estimate.
+     *
+     */
+
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    public long getMemory() {
+        return 16L + 16L + registers.length;
+    }
+
+    // the finaliser from SplitMix64, so keys that are close together get very different hashes
+    private static long mix(long key) {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * IngestPipeline takes addWeet and addFollower calls from many threads and
+ * applies them to the stores in batches on a single thread. Each call returns
+ * a CompletableFuture straight away, which is completed with what addWeet or
+ * addFollower returned (false for a duplicate) once it has been applied.
+ *
+ * The calls are passed to the applying thread through a ring buffer, in the
+ * same way as the LMAX Disruptor. A producer claims the next sequence number
+ * with a single atomic increment, waits until that slot has been freed by the
+ * applier, fills in the slot and then publishes it by writing its sequence
+ * number into the published array. No locks are taken by the producers
+ * unless the buffer is full. The applier takes every published slot in order,
+ * up to maxBatch at a time, and adds them to the stores with addWeets and
+ * addFollowers. This means the store locks are only taken once per batch, and
+ * the work that can be shared across a batch, like checking the cached
+ * searches, is only done once.
+ *
+ * The slots are created once and reused, so apart from the future nothing is
+ * allocated for each call. When the buffer is full the producers wait, which
+ * stops the applier from falling further and further behind. They wait on a
+ * Condition that the applier signals each time it frees a batch of slots, so
+ * a waiting producer uses no CPU, and the applier only takes the lock to
+ * signal when a producer is actually waiting.
+ *
+ * The futures are completed on the applier thread, so anything slow that
+ * depends on them should use the async methods of CompletableFuture. If a
+ * store throws an exception part way through a batch, every future in that
+ * part of the batch is completed with the exception, and some of it may have
+ * been applied. This includes Errors, as the applier has to keep going: if
+ * it stopped, the futures still in the buffer would never be completed and
+ * producers waiting for a free slot would wait forever.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class IngestPipeline implements AutoCloseable {
+
+    private static final int WEET = 0;
+    private static final int FOLLOWER = 1;
+
+    /**
+     * Slot: one entry in the ring buffer. Slots are reused once the applier
+     * has finished with them.
+     *
+     */
+    private static class Slot {
+        public int type;
+        public Weet weet;
+        public int uid1;
+        public int uid2;
+        public Date date;
+        public CompletableFuture<Boolean> future;
+    }
+
+    private final WeetStore weetStore;
+    private final FollowerStore followerStore;
+    private final Lock weetLock;
+    private final Lock followerLock;
+    private final int capacity;
+    private final int mask;
+    private final int maxBatch;
+    private final Slot[] slots;
+    // published[i] is the sequence number last written to slots[i]
+    private final AtomicLongArray published;
+    // the next sequence number to be claimed by a producer
+    private final AtomicLong claimed;
+    // every sequence number below consumed has been applied and its slot is free
+    private volatile long consumed;
+    private volatile boolean running;
+    // number of producers part way through publish, so close doesn't miss any
+    private final AtomicInteger publishing;
+    // producers waiting for a free slot wait on notFull, which the applier signals when waiting isn't 0
+    private final ReentrantLock freeLock = new ReentrantLock();
+    private final Condition notFull = freeLock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Thread applier;
+    // statistics
+    private volatile long batches;
+    private volatile long applied;
+
+    public IngestPipeline(WeetStore weetStore, FollowerStore followerStore) {
+        this(weetStore, followerStore, new ReentrantLock(), new ReentrantLock(), 8192, 1024);
+    }
+
+    /**
+     * The locks are held while a batch is applied to each store, so anything
+     * reading the stores at the same time should hold the same locks. When the
+     * stores are also used through an AsyncStores or LocalShard, pass in the
+     * write locks of their ReadWriteLocks. The capacity is rounded up to a
+     * power of two.
+     *
+     */
+
+    public IngestPipeline(WeetStore weetStore, FollowerStore followerStore, Lock weetLock, Lock followerLock,
+                          int capacity, int maxBatch) {
+        if (capacity < 2 || maxBatch < 1) {
+            throw new IllegalArgumentException("capacity must be at least 2 and maxBatch at least 1");
+        }
+        this.weetStore = weetStore;
+        this.followerStore = followerStore;
+        this.weetLock = weetLock;
+        this.followerLock = followerLock;
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.maxBatch = Math.min(maxBatch, this.capacity);
+        slots = new Slot[this.capacity];
+        published = new AtomicLongArray(this.capacity);
+        for (int i=0; i<this.capacity; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        claimed = new AtomicLong();
+        publishing = new AtomicInteger();
+        consumed = 0;
+        running = true;
+        applier = new Thread(this::applyLoop, "ingest-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    public Lock getWeetLock() {
+        return weetLock;
+    }
+
+    public Lock getFollowerLock() {
+        return followerLock;
+    }
+
+    /**
+     * submitWeet: queue a weet to be added to the weet store. The future is
+     * completed with true if it was added and false if a weet with the same id
+     * already existed.
+     *
+     */
+
+    public CompletableFuture<Boolean> submitWeet(Weet weet) {
+        return publish(WEET, weet, 0, 0, null);
+    }
+
+    /**
+     * submitFollower: queue a follow relationship, uid1 following uid2, to be
+     * added to the follower store. The future is completed with what
+     * addFollower returned.
+     *
+     */
+
+    public CompletableFuture<Boolean> submitFollower(int uid1, int uid2, Date followDate) {
+        return publish(FOLLOWER, null, uid1, uid2, followDate);
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    public long getAppliedCount() {
+        return applied;
+    }
+
+    /**
+     * getBacklog: return how many calls have been submitted but not applied.
+     *
+     */
+
+    public long getBacklog() {
+        return claimed.get() - consumed;
+    }
+
+    /**
+     * close: stop accepting new calls, wait for the ones already submitted to
+     * be applied and stop the applier thread. If the calling thread is
+     * interrupted, close returns without waiting, keeping the interrupt
+     * status, and the applier still applies the calls before stopping.
+     *
+     */
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(applier);
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // claim a slot, fill it in and publish it
+    private CompletableFuture<Boolean> publish(int type, Weet weet, int uid1, int uid2, Date date) {
+        publishing.incrementAndGet();
+        try {
+            if (!running) {
+                CompletableFuture<Boolean> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(new RejectedExecutionException("pipeline is closed"));
+                return rejected;
+            }
+            return claimAndPublish(type, weet, uid1, uid2, date);
+        } finally {
+            publishing.decrementAndGet();
+        }
+    }
+
+    private CompletableFuture<Boolean> claimAndPublish(int type, Weet weet, int uid1, int uid2, Date date) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        long sequence = claimed.getAndIncrement();
+        // wait for the applier to free the slot if the buffer is full
+        if (sequence - capacity >= consumed) {
+            awaitFree(sequence);
+        }
+        Slot slot = slots[(int) sequence & mask];
+        slot.type = type;
+        slot.weet = weet;
+        slot.uid1 = uid1;
+        slot.uid2 = uid2;
+        slot.date = date;
+        slot.future = future;
+        // writing the sequence number makes the slot visible to the applier
+        published.set((int) sequence & mask, sequence);
+        LockSupport.unpark(applier);
+        return future;
+    }
+
+    // block until the applier has freed the slot for the sequence number
+    private void awaitFree(long sequence) {
+        freeLock.lock();
+        try {
+            // counted before checking consumed, so the applier either sees it or has already freed the slot
+            waiting.incrementAndGet();
+            while (sequence - capacity >= consumed) {
+                LockSupport.unpark(applier);
+                notFull.awaitUninterruptibly();
+            }
+        } finally {
+            waiting.decrementAndGet();
+            freeLock.unlock();
+        }
+    }
+
+    // the applier thread: take the published slots in order and apply them in batches
+    private void applyLoop() {
+        Weet[] weets = new Weet[maxBatch];
+        int[] followers = new int[maxBatch];
+        int[] followed = new int[maxBatch];
+        Date[] dates = new Date[maxBatch];
+        boolean[] weetsAdded = new boolean[maxBatch];
+        boolean[] followersAdded = new boolean[maxBatch];
+        long next = 0;
+        while (true) {
+            // count how many slots in a row have been published
+            int count = 0;
+            while (count < maxBatch && published.get((int) (next + count) & mask) == next + count) {
+                count++;
+            }
+            if (count == 0) {
+                if (!running && publishing.get() == 0 && next == claimed.get()) {
+                    return;
+                }
+                LockSupport.parkNanos(100000);
+                continue;
+            }
+            // split the batch by store, keeping the order within each store
+            int weet_count = 0;
+            int follower_count = 0;
+            for (int i=0; i<count; i++) {
+                Slot slot = slots[(int) (next + i) & mask];
+                if (slot.type == WEET) {
+                    weets[weet_count++] = slot.weet;
+                } else {
+                    followers[follower_count] = slot.uid1;
+                    followed[follower_count] = slot.uid2;
+                    dates[follower_count] = slot.date;
+                    follower_count++;
+                }
+            }
+            Throwable weetError = null;
+            Throwable followerError = null;
+            if (weet_count > 0) {
+                weetLock.lock();
+                try {
+                    weetStore.addWeets(weets, weet_count, weetsAdded);
+                } catch (Throwable e) {
+                    weetError = e;
+                } finally {
+                    weetLock.unlock();
+                }
+            }
+            if (follower_count > 0) {
+                followerLock.lock();
+                try {
+                    followerStore.addFollowers(followers, followed, dates, follower_count, followersAdded);
+                } catch (Throwable e) {
+                    followerError = e;
+                } finally {
+                    followerLock.unlock();
+                }
+            }
+            // complete the futures, outside the locks, and clear the slots
+            int w = 0;
+            int f = 0;
+            for (int i=0; i<count; i++) {
+                Slot slot = slots[(int) (next + i) & mask];
+                CompletableFuture<Boolean> future = slot.future;
+                if (slot.type == WEET) {
+                    if (weetError != null) {
+                        future.completeExceptionally(weetError);
+                    } else {
+                        future.complete(weetsAdded[w]);
+                    }
+                    w++;
+                } else {
+                    if (followerError != null) {
+                        future.completeExceptionally(followerError);
+                    } else {
+                        future.complete(followersAdded[f]);
+                    }
+                    f++;
+                }
+                slot.weet = null;
+                slot.date = null;
+                slot.future = null;
+            }
+            for (int i=0; i<weet_count; i++) {
+                weets[i] = null;
+            }
+            for (int i=0; i<follower_count; i++) {
+                dates[i] = null;
+            }
+            next += count;
+            batches++;
+            applied += count;
+            // free the slots for the producers, and wake any waiting for them
+            consumed = next;
+            if (waiting.get() > 0) {
+                freeLock.lock();
+                try {
+                    notFull.signalAll();
+                } finally {
+                    freeLock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * InstrumentedFollowerStore wraps a FollowerStore and times every call to it
+ * with a StoreMetrics, so that the latency of each method can be watched
+ * through JMX. It also publishes gauges for the number of users and follow
+ * relationships in the matrix, its capacity and roughly how much memory it
+ * uses.
+ *
+ * Timing a call only adds two calls to System.nanoTime and a few atomic
+ * increments, and nothing is allocated, so it can be left on all the time.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.util.Date;
+
+public class InstrumentedFollowerStore implements IFollowerStore {
+
+    // indexes of the recorders and counters in the StoreMetrics
+    private static final int ADD_FOLLOWER = 0;
+    private static final int GET_FOLLOWERS = 1;
+    private static final int GET_FOLLOWS = 2;
+    private static final int IS_A_FOLLOWER = 3;
+    private static final int GET_NUM_FOLLOWERS = 4;
+    private static final int GET_MUTUAL_FOLLOWERS = 5;
+    private static final int GET_MUTUAL_FOLLOWS = 6;
+    private static final int GET_TOP_USERS = 7;
+    private static final int REMOVE_FOLLOWER = 8;
+    private static final int DUPLICATE_ADDS = 0;
+    private static final int USERS_RETURNED = 1;
+
+    private final FollowerStore store;
+    private final StoreMetrics metrics;
+
+    public InstrumentedFollowerStore(final FollowerStore store) {
+        this.store = store;
+        metrics = new StoreMetrics("FollowerStore",
+            new String[] {"addFollower", "getFollowers", "getFollows", "isAFollower", "getNumFollowers",
+                "getMutualFollowers", "getMutualFollows", "getTopUsers", "removeFollower"},
+            new String[] {"duplicateAdds", "usersReturned"});
+        metrics.addGauge("matrixSize", () -> store.getMatrixSize());
+        metrics.addGauge("matrixCapacity", () -> store.getMatrixCapacity());
+        metrics.addGauge("numEdges", () -> store.getNumEdges());
+        metrics.addGauge("encodedEdgeBytes", () -> store.getEncodedEdgeBytes());
+        metrics.addGauge("indexMemoryBytes", () -> store.getIndexMemory());
+        metrics.addGauge("edgeFilterFalsePositiveRate", () -> store.getEdgeFilter() == null ? 0 : store.getEdgeFilter().getFalsePositiveRate());
+    }
+
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    public FollowerStore getStore() {
+        return store;
+    }
+
+    public boolean addFollower(int uid1, int uid2, Date followDate) {
+        long start = System.nanoTime();
+        boolean added = store.addFollower(uid1, uid2, followDate);
+        metrics.record(ADD_FOLLOWER, start);
+        if (!added) {
+            metrics.increment(DUPLICATE_ADDS, 1);
+        }
+        return added;
+    }
+
+    public int[] getFollowers(int uid) {
+        long start = System.nanoTime();
+        int[] followers = store.getFollowers(uid);
+        metrics.record(GET_FOLLOWERS, start);
+        metrics.increment(USERS_RETURNED, followers.length);
+        return followers;
+    }
+
+    public int[] getFollows(int uid) {
+        long start = System.nanoTime();
+        int[] follows = store.getFollows(uid);
+        metrics.record(GET_FOLLOWS, start);
+        metrics.increment(USERS_RETURNED, follows.length);
+        return follows;
+    }
+
+    public boolean isAFollower(int uidFollower, int uidFollows) {
+        long start = System.nanoTime();
+        boolean follower = store.isAFollower(uidFollower, uidFollows);
+        metrics.record(IS_A_FOLLOWER, start);
+        return follower;
+    }
+
+    public int getNumFollowers(int uid) {
+        long start = System.nanoTime();
+        int followers = store.getNumFollowers(uid);
+        metrics.record(GET_NUM_FOLLOWERS, start);
+        return followers;
+    }
+
+    public int[] getMutualFollowers(int uid1, int uid2) {
+        long start = System.nanoTime();
+        int[] followers = store.getMutualFollowers(uid1, uid2);
+        metrics.record(GET_MUTUAL_FOLLOWERS, start);
+        metrics.increment(USERS_RETURNED, followers.length);
+        return followers;
+    }
+
+    public int[] getMutualFollows(int uid1, int uid2) {
+        long start = System.nanoTime();
+        int[] follows = store.getMutualFollows(uid1, uid2);
+        metrics.record(GET_MUTUAL_FOLLOWS, start);
+        metrics.increment(USERS_RETURNED, follows.length);
+        return follows;
+    }
+
+    public int[] getTopUsers() {
+        long start = System.nanoTime();
+        int[] users = store.getTopUsers();
+        metrics.record(GET_TOP_USERS, start);
+        return users;
+    }
+
+    public boolean removeFollower(int uid1, int uid2) {
+        long start = System.nanoTime();
+        boolean removed = store.removeFollower(uid1, uid2);
+        metrics.record(REMOVE_FOLLOWER, start);
+        return removed;
+    }
+}
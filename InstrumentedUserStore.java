@@ -0,0 +1,141 @@
+/**
+ * InstrumentedUserStore wraps a UserStore and times every call to it with a
+ * StoreMetrics, so that the latency of each method can be watched through JMX.
+ * It also publishes gauges for the size of the hash table, how long its lists
+ * of buckets are, roughly how much memory it uses and how well the search cache
+ * is doing.
+ *
+ * Timing a call only adds two calls to System.nanoTime and a few atomic
+ * increments, and nothing is allocated, so it can be left on all the time.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+
+import java.util.Date;
+
+public class InstrumentedUserStore implements IUserStore {
+
+    // indexes of the recorders and counters in the StoreMetrics
+    private static final int ADD_USER = 0;
+    private static final int GET_USER = 1;
+    private static final int GET_USERS = 2;
+    private static final int GET_USERS_CONTAINING = 3;
+    private static final int GET_USERS_JOINED_BEFORE = 4;
+    private static final int REMOVE_USER = 5;
+    private static final int UPDATE_USER_NAME = 6;
+    private static final int GET_USERS_JOINED_AFTER = 7;
+    private static final int GET_USERS_JOINED_BETWEEN = 8;
+    private static final int GET_SIGNUP_HISTOGRAM = 9;
+    private static final int DUPLICATE_ADDS = 0;
+    private static final int USERS_RETURNED = 1;
+
+    private final UserStore store;
+    private final StoreMetrics metrics;
+
+    public InstrumentedUserStore(final UserStore store) {
+        this.store = store;
+        metrics = new StoreMetrics("UserStore",
+            new String[] {"addUser", "getUser", "getUsers", "getUsersContaining", "getUsersJoinedBefore", "removeUser", "updateUserName",
+                "getUsersJoinedAfter", "getUsersJoinedBetween", "getSignupHistogram"},
+            new String[] {"duplicateAdds", "usersReturned"});
+        metrics.addGauge("size", () -> store.getSize());
+        metrics.addGauge("loadFactor", () -> store.getLoadFactor());
+        metrics.addGauge("longestChain", () -> store.getLongestChain());
+        metrics.addGauge("indexMemoryBytes", () -> store.getIndexMemory());
+        metrics.addGauge("idFilterFalsePositiveRate", () -> store.getIdFilter() == null ? 0 : store.getIdFilter().getFalsePositiveRate());
+        metrics.addGauge("textMemoryBytes", () -> store.getTextMemory());
+        metrics.addGauge("nameCount", () -> store.getNameCount());
+        metrics.addGauge("searchCacheHits", () -> store.getSearchCache().getHits());
+        metrics.addGauge("searchCacheMisses", () -> store.getSearchCache().getMisses());
+        metrics.addGauge("searchCacheEvictions", () -> store.getSearchCache().getEvictions());
+    }
+
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    public UserStore getStore() {
+        return store;
+    }
+
+    public boolean addUser(User usr) {
+        long start = System.nanoTime();
+        boolean added = store.addUser(usr);
+        metrics.record(ADD_USER, start);
+        if (!added) {
+            metrics.increment(DUPLICATE_ADDS, 1);
+        }
+        return added;
+    }
+
+    public User getUser(int uid) {
+        long start = System.nanoTime();
+        User user = store.getUser(uid);
+        metrics.record(GET_USER, start);
+        return user;
+    }
+
+    public User[] getUsers() {
+        long start = System.nanoTime();
+        User[] users = store.getUsers();
+        metrics.record(GET_USERS, start);
+        metrics.increment(USERS_RETURNED, users.length);
+        return users;
+    }
+
+    public User[] getUsersContaining(String query) {
+        long start = System.nanoTime();
+        User[] users = store.getUsersContaining(query);
+        metrics.record(GET_USERS_CONTAINING, start);
+        metrics.increment(USERS_RETURNED, users.length);
+        return users;
+    }
+
+    public User[] getUsersJoinedBefore(Date dateBefore) {
+        long start = System.nanoTime();
+        User[] users = store.getUsersJoinedBefore(dateBefore);
+        metrics.record(GET_USERS_JOINED_BEFORE, start);
+        metrics.increment(USERS_RETURNED, users.length);
+        return users;
+    }
+
+    public User[] getUsersJoinedAfter(Date dateAfter) {
+        long start = System.nanoTime();
+        User[] users = store.getUsersJoinedAfter(dateAfter);
+        metrics.record(GET_USERS_JOINED_AFTER, start);
+        metrics.increment(USERS_RETURNED, users.length);
+        return users;
+    }
+
+    public User[] getUsersJoinedBetween(Date dateFrom, Date dateTo) {
+        long start = System.nanoTime();
+        User[] users = store.getUsersJoinedBetween(dateFrom, dateTo);
+        metrics.record(GET_USERS_JOINED_BETWEEN, start);
+        metrics.increment(USERS_RETURNED, users.length);
+        return users;
+    }
+
+    public int[] getSignupHistogram(Date dateFrom, Date dateTo, long intervalMillis) {
+        long start = System.nanoTime();
+        int[] counts = store.getSignupHistogram(dateFrom, dateTo, intervalMillis);
+        metrics.record(GET_SIGNUP_HISTOGRAM, start);
+        return counts;
+    }
+
+    public boolean removeUser(int uid) {
+        long start = System.nanoTime();
+        boolean removed = store.removeUser(uid);
+        metrics.record(REMOVE_USER, start);
+        return removed;
+    }
+
+    public boolean updateUserName(int uid, String name) {
+        long start = System.nanoTime();
+        boolean updated = store.updateUserName(uid, name);
+        metrics.record(UPDATE_USER_NAME, start);
+        return updated;
+    }
+}
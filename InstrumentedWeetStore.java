@@ -0,0 +1,137 @@
+/**
+ * InstrumentedWeetStore wraps a WeetStore and times every call to it with a
+ * StoreMetrics, so that the latency of each method can be watched through JMX.
+ * It also publishes gauges for the size of the hash table, how long its lists
+ * of buckets are, roughly how much memory it uses and how well the search cache
+ * is doing.
+ *
+ * Timing a call only adds two calls to System.nanoTime and a few atomic
+ * increments, and nothing is allocated, so it can be left on all the time.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+
+public class InstrumentedWeetStore implements IWeetStore {
+
+    // indexes of the recorders and counters in the StoreMetrics
+    private static final int ADD_WEET = 0;
+    private static final int GET_WEET = 1;
+    private static final int GET_WEETS = 2;
+    private static final int GET_WEETS_BY_USER = 3;
+    private static final int GET_WEETS_CONTAINING = 4;
+    private static final int GET_WEETS_ON = 5;
+    private static final int GET_WEETS_BEFORE = 6;
+    private static final int GET_TRENDING = 7;
+    private static final int REMOVE_WEET = 8;
+    private static final int DUPLICATE_ADDS = 0;
+    private static final int WEETS_RETURNED = 1;
+
+    private final WeetStore store;
+    private final StoreMetrics metrics;
+
+    public InstrumentedWeetStore(final WeetStore store) {
+        this.store = store;
+        metrics = new StoreMetrics("WeetStore",
+            new String[] {"addWeet", "getWeet", "getWeets", "getWeetsByUser", "getWeetsContaining", "getWeetsOn",
+                "getWeetsBefore", "getTrending", "removeWeet"},
+            new String[] {"duplicateAdds", "weetsReturned"});
+        metrics.addGauge("size", () -> store.getSize());
+        metrics.addGauge("loadFactor", () -> store.getLoadFactor());
+        metrics.addGauge("longestChain", () -> store.getLongestChain());
+        metrics.addGauge("indexMemoryBytes", () -> store.getIndexMemory());
+        metrics.addGauge("idFilterFalsePositiveRate", () -> store.getIdFilter() == null ? 0 : store.getIdFilter().getFalsePositiveRate());
+        metrics.addGauge("textMemoryBytes", () -> store.getTextMemory());
+        metrics.addGauge("tagCount", () -> store.getTagCount());
+        metrics.addGauge("searchCacheHits", () -> store.getSearchCache().getHits());
+        metrics.addGauge("searchCacheMisses", () -> store.getSearchCache().getMisses());
+        metrics.addGauge("searchCacheEvictions", () -> store.getSearchCache().getEvictions());
+    }
+
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    public WeetStore getStore() {
+        return store;
+    }
+
+    public boolean addWeet(Weet weet) {
+        long start = System.nanoTime();
+        boolean added = store.addWeet(weet);
+        metrics.record(ADD_WEET, start);
+        if (!added) {
+            metrics.increment(DUPLICATE_ADDS, 1);
+        }
+        return added;
+    }
+
+    public Weet getWeet(int wid) {
+        long start = System.nanoTime();
+        Weet weet = store.getWeet(wid);
+        metrics.record(GET_WEET, start);
+        return weet;
+    }
+
+    public Weet[] getWeets() {
+        long start = System.nanoTime();
+        Weet[] weets = store.getWeets();
+        metrics.record(GET_WEETS, start);
+        metrics.increment(WEETS_RETURNED, weets.length);
+        return weets;
+    }
+
+    public Weet[] getWeetsByUser(User usr) {
+        long start = System.nanoTime();
+        Weet[] weets = store.getWeetsByUser(usr);
+        metrics.record(GET_WEETS_BY_USER, start);
+        metrics.increment(WEETS_RETURNED, weets.length);
+        return weets;
+    }
+
+    public Weet[] getWeetsContaining(String query) {
+        long start = System.nanoTime();
+        Weet[] weets = store.getWeetsContaining(query);
+        metrics.record(GET_WEETS_CONTAINING, start);
+        // null is returned when nothing matches
+        if (weets != null) {
+            metrics.increment(WEETS_RETURNED, weets.length);
+        }
+        return weets;
+    }
+
+    public Weet[] getWeetsOn(Date dateOn) {
+        long start = System.nanoTime();
+        Weet[] weets = store.getWeetsOn(dateOn);
+        metrics.record(GET_WEETS_ON, start);
+        metrics.increment(WEETS_RETURNED, weets.length);
+        return weets;
+    }
+
+    public Weet[] getWeetsBefore(Date dateBefore) {
+        long start = System.nanoTime();
+        Weet[] weets = store.getWeetsBefore(dateBefore);
+        metrics.record(GET_WEETS_BEFORE, start);
+        metrics.increment(WEETS_RETURNED, weets.length);
+        return weets;
+    }
+
+    public String[] getTrending() {
+        long start = System.nanoTime();
+        String[] trending = store.getTrending();
+        metrics.record(GET_TRENDING, start);
+        return trending;
+    }
+
+    public boolean removeWeet(int wid) {
+        long start = System.nanoTime();
+        boolean removed = store.removeWeet(wid);
+        metrics.record(REMOVE_WEET, start);
+        return removed;
+    }
+}
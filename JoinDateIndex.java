@@ -0,0 +1,359 @@
+/**
+ * JoinDateIndex keeps the user ids sorted by the time they joined, so that the
+ * users who joined before, after or between two dates can be found with a
+ * binary search instead of sorting and filtering every user.
+ *
+ * The times and ids are kept in two sorted primitive arrays, which take 12
+ * bytes per user with no objects at all. Adding to the middle of a sorted
+ * array means moving everything after it, so new users are put into a small
+ * sorted delta array first, and only when the delta is full is it merged into
+ * the main arrays, working backwards from the end so nothing has to be
+ * allocated. Adding a user is then O(d) for a delta of size d, with the O(n)
+ * merge happening once every d adds. A query searches both arrays and merges
+ * the two ranges it finds.
+ *
+ * Removing a user shifts the rest of the array they are in down by one, which
+ * is O(n), but users are rarely removed.
+ *
+ * The users can also be read by position, with the most recent first, which
+ * is used for a List view of every user. This merges the delta first, so the
+ * first read after users have been added is O(n) and the rest are O(1).
+ *
+ * The signup histograms count the users joined in each interval by finding
+ * where each interval starts with a binary search, so they don't depend on how
+ * many users joined.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class JoinDateIndex {
+
+    /**
+     * Visitor: called by forEach for each user in the index.
+     *
+     */
+    public interface Visitor {
+        void visit(int uid, long time);
+    }
+
+    private static final int DELTA_CAPACITY = 512;
+
+    // the main sorted arrays, with the earliest first
+    private long[] times;
+    private int[] uids;
+    private int size;
+    // the delta of recently added users, also sorted
+    private long[] deltaTimes;
+    private int[] deltaUids;
+    private int deltaSize;
+
+    public JoinDateIndex() {
+        times = new long[1024];
+        uids = new int[1024];
+        size = 0;
+        deltaTimes = new long[DELTA_CAPACITY];
+        deltaUids = new int[DELTA_CAPACITY];
+        deltaSize = 0;
+    }
+
+    /**
+     * add: add a user who joined at the given time, in milliseconds.
+     *
+     * Algorithm Complexity: O(d), or O(n) when the delta is merged
+     * where d is the size of the delta
+     * where n is the number of users in the index
+     *
+     */
+
+    public void add(long time, int uid) {
+        if (deltaSize == DELTA_CAPACITY) {
+            mergeDelta();
+        }
+        // insertion sort into the delta, after any users with the same time
+        int i = deltaSize;
+        while (i > 0 && deltaTimes[i-1] > time) {
+            deltaTimes[i] = deltaTimes[i-1];
+            deltaUids[i] = deltaUids[i-1];
+            i--;
+        }
+        deltaTimes[i] = time;
+        deltaUids[i] = uid;
+        deltaSize++;
+    }
+
+    /**
+     * remove: remove the user with the given id, who joined at the given time.
+     * Returns false if they are not in the index.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the number of users in the index
+     *
+     */
+
+    public boolean remove(long time, int uid) {
+        // look in the delta first, then the main arrays
+        for (int i=lowerBound(deltaTimes, deltaSize, time); i<deltaSize && deltaTimes[i]==time; i++) {
+            if (deltaUids[i] == uid) {
+                for (int j=i; j<deltaSize-1; j++) {
+                    deltaTimes[j] = deltaTimes[j+1];
+                    deltaUids[j] = deltaUids[j+1];
+                }
+                deltaSize--;
+                return true;
+            }
+        }
+        for (int i=lowerBound(times, size, time); i<size && times[i]==time; i++) {
+            if (uids[i] == uid) {
+                System.arraycopy(times, i + 1, times, i, size - i - 1);
+                System.arraycopy(uids, i + 1, uids, i, size - i - 1);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size + deltaSize;
+    }
+
+    /**
+     * before: return the ids of the users who joined before the given time,
+     * with the most recent first.
+     *
+     * Algorithm Complexity: O(log n + k)
+     * where n is the number of users in the index
+     * where k is the number of users returned
+     *
+     */
+
+    public int[] before(long time) {
+        return collect(0, lowerBound(times, size, time), 0, lowerBound(deltaTimes, deltaSize, time));
+    }
+
+    /**
+     * after: return the ids of the users who joined after the given time,
+     * with the most recent first.
+     *
+     * Algorithm Complexity: O(log n + k)
+     * where n is the number of users in the index
+     * where k is the number of users returned
+     *
+     */
+
+    public int[] after(long time) {
+        return collect(upperBound(times, size, time), size, upperBound(deltaTimes, deltaSize, time), deltaSize);
+    }
+
+    /**
+     * between: return the ids of the users who joined at or after from and
+     * before to, with the most recent first.
+     *
+     * Algorithm Complexity: O(log n + k)
+     * where n is the number of users in the index
+     * where k is the number of users returned
+     *
+     */
+
+    public int[] between(long from, long to) {
+        if (to <= from) {
+            return new int[0];
+        }
+        return collect(lowerBound(times, size, from), lowerBound(times, size, to),
+            lowerBound(deltaTimes, deltaSize, from), lowerBound(deltaTimes, deltaSize, to));
+    }
+
+    /**
+     * all: return the ids of every user, with the most recent first.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the number of users in the index
+     *
+     */
+
+    public int[] all() {
+        return collect(0, size, 0, deltaSize);
+    }
+
+    /**
+     * forEach: call the visitor for every user, with the earliest first,
+     * without copying the index.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the number of users in the index
+     *
+     */
+
+    public void forEach(Visitor visitor) {
+        int i = 0;
+        int j = 0;
+        while (i < size || j < deltaSize) {
+            if (j == deltaSize || (i < size && times[i] <= deltaTimes[j])) {
+                visitor.visit(uids[i], times[i]);
+                i++;
+            } else {
+                visitor.visit(deltaUids[j], deltaTimes[j]);
+                j++;
+            }
+        }
+    }
+
+    /**
+     * uidAt: return the id of the user at the index, where the user who joined
+     * most recently is at index 0.
+     *
+     * Algorithm Complexity: O(1), or O(n) if the delta has to be merged
+     * where n is the number of users in the index
+     *
+     */
+
+    public int uidAt(int index) {
+        if (index < 0 || index >= size + deltaSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + (size + deltaSize));
+        }
+        if (deltaSize > 0) {
+            mergeDelta();
+        }
+        return uids[size - 1 - index];
+    }
+
+    /**
+     * countBefore: return the number of users who joined before the given time.
+     *
+     * Algorithm Complexity: O(log n)
+     * where n is the number of users in the index
+     *
+     */
+
+    public int countBefore(long time) {
+        return lowerBound(times, size, time) + lowerBound(deltaTimes, deltaSize, time);
+    }
+
+    /**
+     * histogram: count the users who joined in each interval from the time
+     * from up to the time to. counts[i] is the number who joined at or after
+     * from + i * interval and before the start of the next interval. The last
+     * interval ends at to, so it may be shorter than the others.
+     *
+     * Algorithm Complexity: O(b log n)
+     * where b is the number of intervals
+     * where n is the number of users in the index
+     *
+     */
+
+    public int[] histogram(long from, long to, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive, was " + interval);
+        }
+        if (to <= from) {
+            return new int[0];
+        }
+        long intervals = (to - from + interval - 1) / interval;
+        if (intervals > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many intervals: " + intervals);
+        }
+        int[] counts = new int[(int) intervals];
+        int previous = countBefore(from);
+        for (int i=0; i<counts.length; i++) {
+            long end = i == counts.length - 1 ? to : from + (i + 1) * interval;
+            int current = countBefore(end);
+            counts[i] = current - previous;
+            previous = current;
+        }
+        return counts;
+    }
+
+    /**
+     * getMemory: an estimate of the memory used by the index in bytes.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public long getMemory() {
+        return 16L + 8L * times.length + 16L + 4L * uids.length + 16L + 8L * DELTA_CAPACITY + 16L + 4L * DELTA_CAPACITY;
+    }
+
+    // merge the two ranges from the end backwards, so the most recent comes first
+    private int[] collect(int mainStart, int mainEnd, int deltaStart, int deltaEnd) {
+        int[] result = new int[(mainEnd - mainStart) + (deltaEnd - deltaStart)];
+        int i = mainEnd - 1;
+        int j = deltaEnd - 1;
+        int k = 0;
+        while (i >= mainStart && j >= deltaStart) {
+            if (deltaTimes[j] >= times[i]) {
+                result[k++] = deltaUids[j--];
+            } else {
+                result[k++] = uids[i--];
+            }
+        }
+        while (i >= mainStart) {
+            result[k++] = uids[i--];
+        }
+        while (j >= deltaStart) {
+            result[k++] = deltaUids[j--];
+        }
+        return result;
+    }
+
+    // merge the delta into the main arrays, from the end backwards so it can be done in place
+    private void mergeDelta() {
+        if (size + deltaSize > times.length) {
+            int capacity = Math.max(times.length * 2, size + deltaSize);
+            long[] tempTimes = new long[capacity];
+            int[] tempUids = new int[capacity];
+            System.arraycopy(times, 0, tempTimes, 0, size);
+            System.arraycopy(uids, 0, tempUids, 0, size);
+            times = tempTimes;
+            uids = tempUids;
+        }
+        int i = size - 1;
+        int j = deltaSize - 1;
+        int k = size + deltaSize - 1;
+        while (j >= 0) {
+            if (i >= 0 && times[i] > deltaTimes[j]) {
+                times[k] = times[i];
+                uids[k] = uids[i];
+                i--;
+            } else {
+                times[k] = deltaTimes[j];
+                uids[k] = deltaUids[j];
+                j--;
+            }
+            k--;
+        }
+        size += deltaSize;
+        deltaSize = 0;
+    }
+
+    // the index of the first time that is at least time
+    private static int lowerBound(long[] array, int length, long time) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (array[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // the index of the first time that is after time
+    private static int upperBound(long[] array, int length, long time) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (array[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * LatencyHistogram records how long operations take, in nanoseconds, so that
+ * percentiles like the median and the 99th can be reported, not just the
+ * average.
+ *
+ * It works the same way as an HdrHistogram. Values are put in buckets by the
+ * position of their highest set bit, and each of those is split into 32 equal
+ * sub-buckets using the next 5 bits. This keeps every value to within about 3%
+ * while covering everything from 1ns to hours in 1920 counts. Recording a
+ * value is just a few bit operations and an array increment, so it does not
+ * allocate anything. It is not thread safe; each thread should have its own
+ * histogram and they can be added together with add afterwards.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class LatencyHistogram {
+
+    // number of sub-buckets for each power of two, as a number of bits
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int NUM_BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts;
+    private long totalCount;
+    private long totalValue;
+    private long max;
+
+    public LatencyHistogram() {
+        counts = new long[NUM_BUCKETS];
+    }
+
+    /**
+     * record: add a value to the histogram. Negative values are recorded as 0.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        totalValue += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * add: add all the values recorded in another histogram to this one.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of buckets
+     *
+     */
+
+    public void add(LatencyHistogram other) {
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+        if (other.max > max) {
+            max = other.max;
+        }
+    }
+
+    /**
+     * addBucket and addTotal: add counts and totals recorded somewhere else.
+     * Used by LatencyRecorder to copy its counts into a histogram.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    void addBucket(int index, long count) {
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    void addTotal(long value, long maxValue) {
+        totalValue += value;
+        if (maxValue > max) {
+            max = maxValue;
+        }
+    }
+
+    /**
+     * reset: remove every recorded value.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of buckets
+     *
+     */
+
+    public void reset() {
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        totalValue = 0;
+        max = 0;
+    }
+
+    /**
+     * getValueAtPercentile: return the value that the given percentage of the
+     * recorded values are less than or equal to, e.g. 99.0 for the 99th
+     * percentile. The highest value in the bucket is returned.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of buckets
+     *
+     */
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100.0 * totalCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+    }
+
+    /**
+     * summary: a single line with the count, mean and main percentiles, in
+     * microseconds.
+     *
+     */
+
+    public String summary() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+            totalCount, getMean() / 1000.0, getValueAtPercentile(50) / 1000.0, getValueAtPercentile(90) / 1000.0,
+            getValueAtPercentile(99) / 1000.0, getValueAtPercentile(99.9) / 1000.0, max / 1000.0);
+    }
+
+    // the bucket a value goes in
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    // the largest value that goes in a bucket
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
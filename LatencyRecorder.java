@@ -0,0 +1,92 @@
+/**
+ * LatencyRecorder is a thread safe version of LatencyHistogram, used to time
+ * the store methods while they are being called by many threads.
+ *
+ * It uses the same buckets as LatencyHistogram, but the counts are kept in an
+ * AtomicLongArray so that any thread can record a value without a lock. Like
+ * LatencyHistogram, recording a value does not allocate anything, so it can be
+ * used on every call without making more work for the garbage collector. To
+ * get percentiles, the counts are copied into a LatencyHistogram by snapshot.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyRecorder {
+
+    private final String name;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalValue;
+    private final AtomicLong max;
+
+    public LatencyRecorder(String name) {
+        this.name = name;
+        counts = new AtomicLongArray(LatencyHistogram.NUM_BUCKETS);
+        totalValue = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * record: add a value, in nanoseconds. Negative values are recorded as 0.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(LatencyHistogram.indexOf(value));
+        totalValue.addAndGet(value);
+        // only try to update the max if the value is bigger than it
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * snapshot: copy the counts recorded so far into a LatencyHistogram. Values
+     * recorded while the copy is being made may or may not be included.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of buckets
+     *
+     */
+
+    public LatencyHistogram snapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i=0; i<LatencyHistogram.NUM_BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                histogram.addBucket(i, count);
+            }
+        }
+        histogram.addTotal(totalValue.get(), max.get());
+        return histogram;
+    }
+
+    /**
+     * reset: remove every recorded value.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of buckets
+     *
+     */
+
+    public void reset() {
+        for (int i=0; i<LatencyHistogram.NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalValue.set(0);
+        max.set(0);
+    }
+}
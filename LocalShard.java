@@ -0,0 +1,220 @@
+/**
+ * LocalShard is a StoreShard with its user, weet and follower stores in the
+ * same process. Each store is guarded by its own ReadWriteLock, as
+ * ShardedStores and ShardServer can send it queries from several threads at
+ * once. Queries that only read a store share its read lock, and the adds and
+ * the searches, which change the store's QueryCache, take the write lock. The
+ * locks can be passed in, so that an AsyncStores or IngestPipeline using the
+ * same stores can share them.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class LocalShard implements StoreShard {
+
+    private final UserStore userStore;
+    private final WeetStore weetStore;
+    private final FollowerStore followerStore;
+    private final ReadWriteLock userLock;
+    private final ReadWriteLock weetLock;
+    private final ReadWriteLock followerLock;
+
+    public LocalShard() {
+        this(new UserStore(), new WeetStore(), new FollowerStore());
+    }
+
+    public LocalShard(UserStore userStore, WeetStore weetStore, FollowerStore followerStore) {
+        this(userStore, weetStore, followerStore, new ReentrantReadWriteLock(), new ReentrantReadWriteLock(),
+            new ReentrantReadWriteLock());
+    }
+
+    public LocalShard(UserStore userStore, WeetStore weetStore, FollowerStore followerStore,
+                      ReadWriteLock userLock, ReadWriteLock weetLock, ReadWriteLock followerLock) {
+        this.userStore = userStore;
+        this.weetStore = weetStore;
+        this.followerStore = followerStore;
+        this.userLock = userLock;
+        this.weetLock = weetLock;
+        this.followerLock = followerLock;
+    }
+
+    public boolean addUser(User usr) {
+        userLock.writeLock().lock();
+        try {
+            return userStore.addUser(usr);
+        } finally {
+            userLock.writeLock().unlock();
+        }
+    }
+
+    public User getUser(int uid) {
+        userLock.readLock().lock();
+        try {
+            return userStore.getUser(uid);
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    public User[] getUsers() {
+        userLock.readLock().lock();
+        try {
+            return userStore.getUsers();
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    public User[] getUsersContaining(String query) {
+        userLock.writeLock().lock();
+        try {
+            return userStore.getUsersContaining(query);
+        } finally {
+            userLock.writeLock().unlock();
+        }
+    }
+
+    public User[] getUsersJoinedBefore(Date dateBefore) {
+        userLock.readLock().lock();
+        try {
+            return userStore.getUsersJoinedBefore(dateBefore);
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    public boolean addWeet(Weet weet) {
+        weetLock.writeLock().lock();
+        try {
+            return weetStore.addWeet(weet);
+        } finally {
+            weetLock.writeLock().unlock();
+        }
+    }
+
+    public Weet getWeet(int wid) {
+        weetLock.readLock().lock();
+        try {
+            return weetStore.getWeet(wid);
+        } finally {
+            weetLock.readLock().unlock();
+        }
+    }
+
+    public Weet[] getWeets() {
+        weetLock.readLock().lock();
+        try {
+            return weetStore.getWeets();
+        } finally {
+            weetLock.readLock().unlock();
+        }
+    }
+
+    public Weet[] getWeetsByUser(User usr) {
+        weetLock.readLock().lock();
+        try {
+            return weetStore.getWeetsByUser(usr);
+        } finally {
+            weetLock.readLock().unlock();
+        }
+    }
+
+    public Weet[] getWeetsContaining(String query) {
+        weetLock.writeLock().lock();
+        try {
+            Weet[] weets = weetStore.getWeetsContaining(query);
+            return weets == null ? new Weet[0] : weets;
+        } finally {
+            weetLock.writeLock().unlock();
+        }
+    }
+
+    public Weet[] getWeetsOn(Date dateOn) {
+        weetLock.readLock().lock();
+        try {
+            return weetStore.getWeetsOn(dateOn);
+        } finally {
+            weetLock.readLock().unlock();
+        }
+    }
+
+    public Weet[] getWeetsBefore(Date dateBefore) {
+        weetLock.readLock().lock();
+        try {
+            return weetStore.getWeetsBefore(dateBefore);
+        } finally {
+            weetLock.readLock().unlock();
+        }
+    }
+
+    public WeetStore.TagCounts getTagCounts() {
+        weetLock.readLock().lock();
+        try {
+            return weetStore.getTagCounts();
+        } finally {
+            weetLock.readLock().unlock();
+        }
+    }
+
+    public boolean addFollower(int uid1, int uid2, Date followDate) {
+        followerLock.writeLock().lock();
+        try {
+            return followerStore.addFollower(uid1, uid2, followDate);
+        } finally {
+            followerLock.writeLock().unlock();
+        }
+    }
+
+    public FollowerStore.FollowList getFollowerList(int uid) {
+        followerLock.readLock().lock();
+        try {
+            return followerStore.getFollowerList(uid);
+        } finally {
+            followerLock.readLock().unlock();
+        }
+    }
+
+    public FollowerStore.FollowList getFollowList(int uid) {
+        followerLock.readLock().lock();
+        try {
+            return followerStore.getFollowList(uid);
+        } finally {
+            followerLock.readLock().unlock();
+        }
+    }
+
+    public boolean isAFollower(int uidFollower, int uidFollows) {
+        followerLock.readLock().lock();
+        try {
+            return followerStore.isAFollower(uidFollower, uidFollows);
+        } finally {
+            followerLock.readLock().unlock();
+        }
+    }
+
+    public int getNumFollowers(int uid) {
+        followerLock.readLock().lock();
+        try {
+            return followerStore.getNumFollowers(uid);
+        } finally {
+            followerLock.readLock().unlock();
+        }
+    }
+
+    public int[] getTopUsers(int[] counts) {
+        followerLock.readLock().lock();
+        try {
+            return followerStore.getTopUsers(counts);
+        } finally {
+            followerLock.readLock().unlock();
+        }
+    }
+}
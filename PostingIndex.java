@@ -0,0 +1,160 @@
+/**
+ * PostingIndex keeps a RecencyList of items for each int key, such as the
+ * weets by each user or the weets using each word, so the items for one key
+ * can be read with the most recent first without going through every item.
+ * The size of each list is the exact number of items with that key, which is
+ * what the WeetStore query planner compares to pick the smallest list to start
+ * from.
+ *
+ * The lists are found with an open addressing hash table over int arrays, the
+ * same as the index table in FollowerStore, kept at most half full. A key's
+ * list is made the first time an item is added for it and kept after it is
+ * emptied, as it is likely to be used again.
+ *
+ * Like the stores it is not thread safe.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class PostingIndex<T> {
+
+    // keys[slot] is the key in the slot, and indexes[slot] the index of its list + 1, 0 for empty
+    private int[] keys;
+    private int[] indexes;
+    private RecencyList<T>[] lists;
+    private int size;
+
+    public PostingIndex() {
+        keys = new int[64];
+        indexes = new int[64];
+        lists = newLists(32);
+        size = 0;
+    }
+
+    /**
+     * add: add the item with the given time to the list for the key.
+     *
+     * Algorithm Complexity: O(1) if the item is the most recent for the key,
+     * otherwise the same as RecencyList.add
+     *
+     */
+
+    public void add(int key, long time, T item) {
+        RecencyList<T> list = get(key);
+        if (list == null) {
+            if (size == lists.length) {
+                grow();
+            }
+            list = new RecencyList<>();
+            lists[size] = list;
+            put(keys, indexes, key, size);
+            size++;
+        }
+        list.add(time, item);
+    }
+
+    /**
+     * remove: remove the item with the given time from the list for the key,
+     * returning false if it wasn't there.
+     *
+     * Algorithm Complexity: the same as RecencyList.remove
+     *
+     */
+
+    public boolean remove(int key, long time, T item) {
+        RecencyList<T> list = get(key);
+        return list != null && list.remove(time, item);
+    }
+
+    /**
+     * get: return the list for the key, or null if nothing has been added for
+     * it.
+     *
+     * Algorithm Complexity: O(1) on average
+     *
+     */
+
+    public RecencyList<T> get(int key) {
+        int mask = indexes.length - 1;
+        int slot = hash(key) & mask;
+        while (indexes[slot] != 0) {
+            if (keys[slot] == key) {
+                return lists[indexes[slot] - 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public int count(int key) {
+        RecencyList<T> list = get(key);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * getKeyCount: the number of keys that have had an item added.
+     *
+     */
+
+    public int getKeyCount() {
+        return size;
+    }
+
+    /**
+     * getMemory: an estimate of the memory used by the table and every list
+     * in bytes, assuming 4 byte references, not including the items.
+     *
+     * Algorithm Complexity: O(k)
+     * where k is the number of keys
+     *
+     */
+
+    public long getMemory() {
+        long memory = 2 * (16L + 4L * indexes.length) + 16L + 4L * lists.length;
+        for (int i=0; i<size; i++) {
+            memory += 40L + lists[i].getMemory();
+        }
+        return memory;
+    }
+
+    // double the lists and rebuild the table so it stays at most half full
+    private void grow() {
+        RecencyList<T>[] tempLists = newLists(lists.length * 2);
+        for (int i=0; i<size; i++) {
+            tempLists[i] = lists[i];
+        }
+        int[] tempKeys = new int[indexes.length * 2];
+        int[] tempIndexes = new int[indexes.length * 2];
+        int mask = indexes.length - 1;
+        for (int slot=0; slot<=mask; slot++) {
+            if (indexes[slot] != 0) {
+                put(tempKeys, tempIndexes, keys[slot], indexes[slot] - 1);
+            }
+        }
+        lists = tempLists;
+        keys = tempKeys;
+        indexes = tempIndexes;
+    }
+
+    private static void put(int[] keys, int[] indexes, int key, int index) {
+        int mask = indexes.length - 1;
+        int slot = hash(key) & mask;
+        while (indexes[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        indexes[slot] = index + 1;
+    }
+
+    // spread the bits of the key so that sequential keys dont cluster
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> RecencyList<T>[] newLists(int length) {
+        return (RecencyList<T>[]) new RecencyList<?>[length];
+    }
+}
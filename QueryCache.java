@@ -0,0 +1,308 @@
+/**
+ * QueryCache is a small cache of search results, used in front of
+ * getWeetsContaining and getUsersContaining. A few search queries make up most
+ * of the searches, and each one would otherwise mean going through every weet
+ * or user in the store again.
+ *
+ * The cache holds a fixed number of results and uses a segmented LRU to decide
+ * which one to throw away when it is full. New results go into a probation
+ * segment and are only moved into the protected segment if they are asked for
+ * again. This means a burst of queries that are only searched once cannot push
+ * out the queries that are searched all the time. When the protected segment is
+ * full its least recently used result is moved back to probation rather than
+ * being thrown away.
+ *
+ * When a weet or user is added or removed, only the results for queries that
+ * match its text are invalidated, the rest of the cache is left as it is. The
+ * results are found with a hash table, with each entry also linked into the
+ * list for its segment.
+ *
+ * A QueryCache is not thread safe, not even for threads that only read it, as
+ * get moves the result it finds between the LRU lists and updates the
+ * statistics. So the searches of a store using one change the store even
+ * though they only read its data, and two threads must never search the same
+ * store at once: whatever guards the store has to treat a search as a write.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class QueryCache<T> {
+
+    /**
+     * Entry: Class used for a cached result. It is in a hash table list by
+     * chainNext and in its segment's LRU list by previous and next.
+     *
+     */
+    private static class Entry<T> {
+        public String query;
+        public T result;
+        public boolean isProtected;
+        // the neighbours in the LRU list, head is most recently used
+        public Entry<T> previous;
+        public Entry<T> next;
+        // will be null if last entry in the hash table list
+        public Entry<T> chainNext;
+
+        public Entry(String query, T result) {
+            this.query = query;
+            this.result = result;
+        }
+    }
+
+    private Entry<T>[] table;
+    private int capacity;
+    private int protectedCapacity;
+    private int size;
+    private int protectedSize;
+    // heads and tails of the probation and protected LRU lists
+    private Entry<T> probationHead;
+    private Entry<T> probationTail;
+    private Entry<T> protectedHead;
+    private Entry<T> protectedTail;
+    // statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        // most of the cache is kept for queries that have been asked for more than once
+        protectedCapacity = capacity * 4 / 5;
+        table = newTable(capacity * 2 + 1);
+        size = 0;
+        protectedSize = 0;
+    }
+
+    /**
+     * get: return the cached result for the query, or null if it is not in
+     * the cache. A result that is found is moved to the head of the protected
+     * segment.
+     *
+     * Algorithm Complexity: O(1) on average
+     *
+     */
+
+    public T get(String query) {
+        Entry<T> entry = find(query);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(entry);
+        addProtected(entry);
+        return entry.result;
+    }
+
+    /**
+     * put: add the result for a query to the head of the probation segment,
+     * evicting the least recently used result if the cache is full.
+     *
+     * Algorithm Complexity: O(1) on average
+     *
+     */
+
+    public void put(String query, T result) {
+        Entry<T> entry = find(query);
+        if (entry != null) {
+            entry.result = result;
+            return;
+        }
+        if (size == capacity) {
+            // evict from probation first, then from protected
+            Entry<T> victim = probationTail != null ? probationTail : protectedTail;
+            remove(victim);
+            evictions++;
+        }
+        entry = new Entry<>(query, result);
+        int hash = hash(query);
+        entry.chainNext = table[hash];
+        table[hash] = entry;
+        addProbation(entry);
+        size++;
+    }
+
+    /**
+     * invalidateMatching: remove the result of every query that is contained
+     * in the given text. Used when a weet or user with that text is added or
+     * removed, as only those results are changed.
+     *
+     * Algorithm Complexity: O(c * l)
+     * where c is the number of cached results
+     * where l is the length of the text
+     *
+     */
+
+    public void invalidateMatching(String text) {
+        invalidateList(probationHead, text);
+        invalidateList(protectedHead, text);
+    }
+
+    /**
+     * invalidateMatchingAny: remove the result of every query that is
+     * contained in any of the first count texts. Used when a batch of weets
+     * is added, so the cache is only gone through once.
+     *
+     * Algorithm Complexity: O(c * t)
+     * where c is the number of cached results
+     * where t is the total length of the texts
+     *
+     */
+
+    public void invalidateMatchingAny(String[] texts, int count) {
+        if (count == 0) {
+            return;
+        }
+        invalidateListAny(probationHead, texts, count);
+        invalidateListAny(protectedHead, texts, count);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    // remove the entries in a list whose query matches the text
+    private void invalidateList(Entry<T> entry, String text) {
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            if (text.contains(entry.query)) {
+                remove(entry);
+                invalidations++;
+            }
+            entry = next;
+        }
+    }
+
+    // remove the entries in a list whose query matches any of the texts
+    private void invalidateListAny(Entry<T> entry, String[] texts, int count) {
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            for (int i=0; i<count; i++) {
+                if (texts[i].contains(entry.query)) {
+                    remove(entry);
+                    invalidations++;
+                    break;
+                }
+            }
+            entry = next;
+        }
+    }
+
+    // find the entry for a query in the hash table
+    private Entry<T> find(String query) {
+        Entry<T> entry = table[hash(query)];
+        while (entry != null && !entry.query.equals(query)) {
+            entry = entry.chainNext;
+        }
+        return entry;
+    }
+
+    // remove an entry from both the hash table and its LRU list
+    private void remove(Entry<T> entry) {
+        int hash = hash(entry.query);
+        Entry<T> bucket = table[hash];
+        if (bucket == entry) {
+            table[hash] = entry.chainNext;
+        } else {
+            while (bucket.chainNext != entry) {
+                bucket = bucket.chainNext;
+            }
+            bucket.chainNext = entry.chainNext;
+        }
+        unlink(entry);
+        size--;
+    }
+
+    // add an entry to the head of the protected list, demoting its tail to probation if full
+    private void addProtected(Entry<T> entry) {
+        if (protectedSize == protectedCapacity && protectedTail != null) {
+            Entry<T> demoted = protectedTail;
+            unlink(demoted);
+            addProbation(demoted);
+        }
+        if (protectedCapacity == 0) {
+            addProbation(entry);
+            return;
+        }
+        entry.isProtected = true;
+        entry.previous = null;
+        entry.next = protectedHead;
+        if (protectedHead != null) {
+            protectedHead.previous = entry;
+        } else {
+            protectedTail = entry;
+        }
+        protectedHead = entry;
+        protectedSize++;
+    }
+
+    // add an entry to the head of the probation list
+    private void addProbation(Entry<T> entry) {
+        entry.isProtected = false;
+        entry.previous = null;
+        entry.next = probationHead;
+        if (probationHead != null) {
+            probationHead.previous = entry;
+        } else {
+            probationTail = entry;
+        }
+        probationHead = entry;
+    }
+
+    // remove an entry from whichever LRU list it is in
+    private void unlink(Entry<T> entry) {
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        } else if (entry.isProtected) {
+            protectedHead = entry.next;
+        } else {
+            probationHead = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        } else if (entry.isProtected) {
+            protectedTail = entry.previous;
+        } else {
+            probationTail = entry.previous;
+        }
+        if (entry.isProtected) {
+            protectedSize--;
+        }
+        entry.previous = null;
+        entry.next = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newTable(int length) {
+        return (Entry<T>[]) new Entry<?>[length];
+    }
+
+    private int hash(String query) {
+        return (query.hashCode() & 0x7fffffff) % table.length;
+    }
+}
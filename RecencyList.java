@@ -0,0 +1,474 @@
+/**
+ * RecencyList keeps items sorted by a time, so they can be read with the most
+ * recent first without being sorted each time. It is used to keep getWeets in
+ * order as the weets are added, rather than sorting every weet on every call.
+ *
+ * Nearly every item added is newer than everything already in the list, so
+ * the items are kept in a list of chunks, each a sorted array of up to 1024
+ * times and items, with the earliest first. A new item that is the most recent
+ * is just put on the end of the last chunk, which is O(1). An item that is
+ * older is put into the chunk it belongs in, moving at most the rest of that
+ * chunk along, and a full chunk is split in half to make room, so an item out
+ * of order never means moving the whole list. Removing an item is the same.
+ *
+ * The number of items before each chunk is kept, so the item at a position can
+ * be found with a binary search over the chunks. Items with the same time are
+ * kept in the order they were added, so the most recently added comes first
+ * when read back.
+ *
+ * WeetStore also keeps a RecencyList for every user and every word, most of
+ * which only ever hold a few items, so the first chunk starts with room for 8
+ * items and doubles as it fills, up to the full 1024.
+ *
+ * asList gives a read-only List over the items which changes as the list does,
+ * rather than a copy. Going through it with an iterator takes O(1) per item,
+ * and the iterator throws a ConcurrentModificationException if the list is
+ * changed while it is being used.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.util.AbstractList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+public class RecencyList<T> implements Iterable<T> {
+
+    private static final int CHUNK_CAPACITY = 1024;
+    private static final int FIRST_CHUNK_CAPACITY = 8;
+
+    // the chunks, with the earliest first, and the times and items in each
+    private long[][] chunkTimes;
+    private Object[][] chunkItems;
+    private int[] chunkSizes;
+    // chunkStarts[c] is the number of items in the chunks before c
+    private int[] chunkStarts;
+    private int chunkCount;
+    private int size;
+    // the room for items in all of the chunks
+    private long slots;
+    // changed on every add and remove, so iterators can tell the list has changed
+    private int modCount;
+
+    public RecencyList() {
+        chunkTimes = new long[16][];
+        chunkItems = new Object[16][];
+        chunkSizes = new int[16];
+        chunkStarts = new int[16];
+        chunkCount = 0;
+        size = 0;
+    }
+
+    /**
+     * add: add an item with the given time, after any items with the same time.
+     *
+     * Algorithm Complexity: O(1) if the item is the most recent, otherwise
+     * O(log c + s + c)
+     * where c is the number of chunks
+     * where s is the size of a chunk
+     *
+     */
+
+    public void add(long time, T item) {
+        modCount++;
+        int last = chunkCount - 1;
+        if (last < 0 || time >= chunkTimes[last][chunkSizes[last] - 1]) {
+            // the most recent item, put it on the end
+            if (last < 0 || chunkSizes[last] == CHUNK_CAPACITY) {
+                insertChunk(chunkCount);
+                last++;
+            } else if (chunkSizes[last] == chunkTimes[last].length) {
+                growChunk(last);
+            }
+            chunkTimes[last][chunkSizes[last]] = time;
+            chunkItems[last][chunkSizes[last]] = item;
+            chunkSizes[last]++;
+            size++;
+            return;
+        }
+        // find the last chunk starting at or before the time, and where the item goes in it
+        int c = findChunk(time, true);
+        int position = search(chunkTimes[c], chunkSizes[c], time, true);
+        if (chunkSizes[c] == CHUNK_CAPACITY) {
+            // split the chunk in half, moving the second half to a new chunk
+            splitChunk(c);
+            if (position > chunkSizes[c]) {
+                position -= chunkSizes[c];
+                c++;
+            }
+        } else if (chunkSizes[c] == chunkTimes[c].length) {
+            growChunk(c);
+        }
+        // move the rest of the chunk along one and put the item in
+        int count = chunkSizes[c] - position;
+        System.arraycopy(chunkTimes[c], position, chunkTimes[c], position + 1, count);
+        System.arraycopy(chunkItems[c], position, chunkItems[c], position + 1, count);
+        chunkTimes[c][position] = time;
+        chunkItems[c][position] = item;
+        chunkSizes[c]++;
+        for (int j=c+1; j<chunkCount; j++) {
+            chunkStarts[j]++;
+        }
+        size++;
+    }
+
+    /**
+     * remove: remove the item with the given time, returning false if it is not
+     * in the list. Items are compared with ==, so it must be the same item
+     * that was added.
+     *
+     * Algorithm Complexity: O(log c + s + c + e)
+     * where c is the number of chunks
+     * where s is the size of a chunk
+     * where e is the number of items with the same time
+     *
+     */
+
+    public boolean remove(long time, T item) {
+        long found = find(time, item);
+        if (found == -1) {
+            return false;
+        }
+        removeAt((int) (found >>> 32), (int) found);
+        return true;
+    }
+
+    /**
+     * contains: return true if the item with the given time is in the list.
+     * Items are compared with ==, the same as remove. Used by WeetStore to
+     * check a weet is in the list for a user or word without going through it.
+     *
+     * Algorithm Complexity: O(log c + log s + e)
+     * where c is the number of chunks
+     * where s is the size of a chunk
+     * where e is the number of items with the same time
+     *
+     */
+
+    public boolean contains(long time, T item) {
+        return find(time, item) != -1;
+    }
+
+    // the chunk and position of the item as (chunk << 32 | position), or -1 if it isn't in the list
+    private long find(long time, T item) {
+        if (chunkCount == 0) {
+            return -1;
+        }
+        // go through every item with the time, starting with the first
+        int c = findChunk(time, false);
+        int position = search(chunkTimes[c], chunkSizes[c], time, false);
+        while (c < chunkCount) {
+            if (position == chunkSizes[c]) {
+                c++;
+                position = 0;
+                continue;
+            }
+            if (chunkTimes[c][position] != time) {
+                return -1;
+            }
+            if (chunkItems[c][position] == item) {
+                return (long) c << 32 | position;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * get: return the item at the index, where the most recent item is at
+     * index 0.
+     *
+     * Algorithm Complexity: O(log c)
+     * where c is the number of chunks
+     *
+     */
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        int position = toPosition(index);
+        int c = chunkAt(position);
+        return (T) chunkItems[c][position - chunkStarts[c]];
+    }
+
+    public long getTime(int index) {
+        int position = toPosition(index);
+        int c = chunkAt(position);
+        return chunkTimes[c][position - chunkStarts[c]];
+    }
+
+    /**
+     * countBefore: return the number of items with a time before the given
+     * time. These are the items from index size() - countBefore(time) to the
+     * end, as the most recent items come first.
+     *
+     * Algorithm Complexity: O(log c + log s)
+     * where c is the number of chunks
+     * where s is the size of a chunk
+     *
+     */
+
+    public int countBefore(long time) {
+        if (chunkCount == 0) {
+            return 0;
+        }
+        int c = findChunk(time, false);
+        return chunkStarts[c] + search(chunkTimes[c], chunkSizes[c], time, false);
+    }
+
+    /**
+     * iterator: go through the items with the most recent first, starting
+     * from the item at the given index.
+     *
+     */
+
+    public Iterator<T> iterator() {
+        return iterator(0);
+    }
+
+    public Iterator<T> iterator(int index) {
+        return new RecentFirst<>(this, index, item -> item);
+    }
+
+    /**
+     * asList: return a read-only List of the items, with the most recent first,
+     * where each item is passed through the mapper when it is read. The List
+     * is a view of this one, so it changes as items are added and removed.
+     *
+     */
+
+    public <R> List<R> asList(final Function<T, R> mapper) {
+        return new AbstractList<R>() {
+            public R get(int index) {
+                return mapper.apply(RecencyList.this.get(index));
+            }
+
+            public int size() {
+                return size;
+            }
+
+            public Iterator<R> iterator() {
+                return new RecentFirst<>(RecencyList.this, 0, mapper);
+            }
+        };
+    }
+
+    public void clear() {
+        modCount++;
+        for (int c=0; c<chunkCount; c++) {
+            chunkTimes[c] = null;
+            chunkItems[c] = null;
+        }
+        chunkCount = 0;
+        size = 0;
+        slots = 0;
+    }
+
+    /**
+     * getMemory: an estimate of the memory used by the list in bytes, assuming
+     * 4 byte references.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public long getMemory() {
+        return 4L * (16L + 4L * chunkTimes.length) + chunkCount * 32L + 12L * slots;
+    }
+
+    /**
+     * RecentFirst: an iterator going backwards through the chunks, so the most
+     * recent item comes first.
+     *
+     */
+    private static class RecentFirst<T, R> implements Iterator<R> {
+        private final RecencyList<T> list;
+        private final Function<T, R> mapper;
+        private final int expectedModCount;
+        private int chunk;
+        private int position;
+        private int remaining;
+
+        public RecentFirst(RecencyList<T> list, int index, Function<T, R> mapper) {
+            this.list = list;
+            this.mapper = mapper;
+            this.expectedModCount = list.modCount;
+            if (index < 0 || index > list.size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + list.size);
+            }
+            remaining = list.size - index;
+            if (remaining > 0) {
+                int at = remaining - 1;
+                chunk = list.chunkAt(at);
+                position = at - list.chunkStarts[chunk];
+            }
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public R next() {
+            if (list.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            T item = (T) list.chunkItems[chunk][position];
+            remaining--;
+            position--;
+            if (position < 0 && chunk > 0) {
+                chunk--;
+                position = list.chunkSizes[chunk] - 1;
+            }
+            return mapper.apply(item);
+        }
+    }
+
+    // turn an index, most recent first, into a position, earliest first
+    private int toPosition(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return size - 1 - index;
+    }
+
+    // the chunk holding the item at the position, earliest first
+    private int chunkAt(int position) {
+        int low = 0;
+        int high = chunkCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (chunkStarts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // the last chunk whose first time is before time (or at time if inclusive), or 0 if none is
+    private int findChunk(long time, boolean inclusive) {
+        int low = 0;
+        int high = chunkCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            long first = chunkTimes[middle][0];
+            if (first < time || (inclusive && first == time)) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // the index of the first time after time (or at time if not inclusive)
+    private static int search(long[] times, int length, long time, boolean inclusive) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time || (inclusive && times[middle] == time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // make an empty chunk at index c, moving the chunks after it along
+    private void insertChunk(int c) {
+        if (chunkCount == chunkTimes.length) {
+            int capacity = chunkCount * 2;
+            long[][] tempTimes = new long[capacity][];
+            Object[][] tempItems = new Object[capacity][];
+            int[] tempSizes = new int[capacity];
+            int[] tempStarts = new int[capacity];
+            System.arraycopy(chunkTimes, 0, tempTimes, 0, chunkCount);
+            System.arraycopy(chunkItems, 0, tempItems, 0, chunkCount);
+            System.arraycopy(chunkSizes, 0, tempSizes, 0, chunkCount);
+            System.arraycopy(chunkStarts, 0, tempStarts, 0, chunkCount);
+            chunkTimes = tempTimes;
+            chunkItems = tempItems;
+            chunkSizes = tempSizes;
+            chunkStarts = tempStarts;
+        }
+        int count = chunkCount - c;
+        System.arraycopy(chunkTimes, c, chunkTimes, c + 1, count);
+        System.arraycopy(chunkItems, c, chunkItems, c + 1, count);
+        System.arraycopy(chunkSizes, c, chunkSizes, c + 1, count);
+        System.arraycopy(chunkStarts, c, chunkStarts, c + 1, count);
+        // only the first chunk starts small, as a list with more is already large
+        int capacity = chunkCount == 0 ? FIRST_CHUNK_CAPACITY : CHUNK_CAPACITY;
+        chunkTimes[c] = new long[capacity];
+        chunkItems[c] = new Object[capacity];
+        slots += capacity;
+        chunkSizes[c] = 0;
+        chunkStarts[c] = c == 0 ? 0 : chunkStarts[c-1] + chunkSizes[c-1];
+        chunkCount++;
+    }
+
+    // double the room in chunk c, which isn't yet full size
+    private void growChunk(int c) {
+        int capacity = Math.min(chunkTimes[c].length * 2, CHUNK_CAPACITY);
+        long[] tempTimes = new long[capacity];
+        Object[] tempItems = new Object[capacity];
+        System.arraycopy(chunkTimes[c], 0, tempTimes, 0, chunkSizes[c]);
+        System.arraycopy(chunkItems[c], 0, tempItems, 0, chunkSizes[c]);
+        slots += capacity - chunkTimes[c].length;
+        chunkTimes[c] = tempTimes;
+        chunkItems[c] = tempItems;
+    }
+
+    // move the second half of chunk c into a new chunk after it
+    private void splitChunk(int c) {
+        insertChunk(c + 1);
+        int half = chunkSizes[c] / 2;
+        int moved = chunkSizes[c] - half;
+        System.arraycopy(chunkTimes[c], half, chunkTimes[c+1], 0, moved);
+        System.arraycopy(chunkItems[c], half, chunkItems[c+1], 0, moved);
+        for (int i=half; i<chunkSizes[c]; i++) {
+            chunkItems[c][i] = null;
+        }
+        chunkSizes[c] = half;
+        chunkSizes[c+1] = moved;
+        chunkStarts[c+1] = chunkStarts[c] + half;
+    }
+
+    // remove the item at the position in chunk c, removing the chunk if it is then empty
+    private void removeAt(int c, int position) {
+        modCount++;
+        int count = chunkSizes[c] - position - 1;
+        System.arraycopy(chunkTimes[c], position + 1, chunkTimes[c], position, count);
+        System.arraycopy(chunkItems[c], position + 1, chunkItems[c], position, count);
+        chunkSizes[c]--;
+        chunkItems[c][chunkSizes[c]] = null;
+        for (int j=c+1; j<chunkCount; j++) {
+            chunkStarts[j]--;
+        }
+        size--;
+        if (chunkSizes[c] == 0) {
+            slots -= chunkTimes[c].length;
+            int moved = chunkCount - c - 1;
+            System.arraycopy(chunkTimes, c + 1, chunkTimes, c, moved);
+            System.arraycopy(chunkItems, c + 1, chunkItems, c, moved);
+            System.arraycopy(chunkSizes, c + 1, chunkSizes, c, moved);
+            System.arraycopy(chunkStarts, c + 1, chunkStarts, c, moved);
+            chunkCount--;
+            chunkTimes[chunkCount] = null;
+            chunkItems[chunkCount] = null;
+        }
+    }
+}
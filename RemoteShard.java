@@ -0,0 +1,276 @@
+/**
+ * RemoteShard is a StoreShard kept by a ShardServer in another process. Each
+ * call sends the operation and its arguments over a socket and waits for the
+ * result, using the format in ShardProtocol.
+ *
+ * There is only one connection, so calls are made one at a time. ShardedStores
+ * sends a query to every shard at the same time, so the shards still work in
+ * parallel with each other. If the connection fails the IOException is thrown
+ * as an UncheckedIOException, as the StoreShard methods don't throw checked
+ * exceptions, and the shard can't be used again.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Date;
+
+public class RemoteShard implements StoreShard, AutoCloseable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Connect to the ShardServer listening on the given port of the loopback
+     * address.
+     *
+     */
+
+    public RemoteShard(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    public RemoteShard(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public synchronized boolean addUser(User usr) {
+        try {
+            out.writeByte(ShardProtocol.ADD_USER);
+            ShardProtocol.writeUser(out, usr);
+            readStatus();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized User getUser(int uid) {
+        try {
+            out.writeByte(ShardProtocol.GET_USER);
+            out.writeInt(uid);
+            readStatus();
+            return ShardProtocol.readUser(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized User[] getUsers() {
+        try {
+            out.writeByte(ShardProtocol.GET_USERS);
+            readStatus();
+            return ShardProtocol.readUsers(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized User[] getUsersContaining(String query) {
+        try {
+            out.writeByte(ShardProtocol.GET_USERS_CONTAINING);
+            ShardProtocol.writeString(out, query);
+            readStatus();
+            return ShardProtocol.readUsers(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized User[] getUsersJoinedBefore(Date dateBefore) {
+        try {
+            out.writeByte(ShardProtocol.GET_USERS_JOINED_BEFORE);
+            out.writeLong(dateBefore.getTime());
+            readStatus();
+            return ShardProtocol.readUsers(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean addWeet(Weet weet) {
+        try {
+            out.writeByte(ShardProtocol.ADD_WEET);
+            ShardProtocol.writeWeet(out, weet);
+            readStatus();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Weet getWeet(int wid) {
+        try {
+            out.writeByte(ShardProtocol.GET_WEET);
+            out.writeInt(wid);
+            readStatus();
+            return ShardProtocol.readWeet(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Weet[] getWeets() {
+        try {
+            out.writeByte(ShardProtocol.GET_WEETS);
+            readStatus();
+            return ShardProtocol.readWeets(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Weet[] getWeetsByUser(User usr) {
+        try {
+            out.writeByte(ShardProtocol.GET_WEETS_BY_USER);
+            ShardProtocol.writeUser(out, usr);
+            readStatus();
+            return ShardProtocol.readWeets(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Weet[] getWeetsContaining(String query) {
+        try {
+            out.writeByte(ShardProtocol.GET_WEETS_CONTAINING);
+            ShardProtocol.writeString(out, query);
+            readStatus();
+            return ShardProtocol.readWeets(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Weet[] getWeetsOn(Date dateOn) {
+        try {
+            out.writeByte(ShardProtocol.GET_WEETS_ON);
+            out.writeLong(dateOn.getTime());
+            readStatus();
+            return ShardProtocol.readWeets(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Weet[] getWeetsBefore(Date dateBefore) {
+        try {
+            out.writeByte(ShardProtocol.GET_WEETS_BEFORE);
+            out.writeLong(dateBefore.getTime());
+            readStatus();
+            return ShardProtocol.readWeets(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized WeetStore.TagCounts getTagCounts() {
+        try {
+            out.writeByte(ShardProtocol.GET_TAG_COUNTS);
+            readStatus();
+            return ShardProtocol.readTagCounts(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean addFollower(int uid1, int uid2, Date followDate) {
+        try {
+            out.writeByte(ShardProtocol.ADD_FOLLOWER);
+            out.writeInt(uid1);
+            out.writeInt(uid2);
+            out.writeLong(followDate.getTime());
+            readStatus();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized FollowerStore.FollowList getFollowerList(int uid) {
+        try {
+            out.writeByte(ShardProtocol.GET_FOLLOWER_LIST);
+            out.writeInt(uid);
+            readStatus();
+            return ShardProtocol.readFollowList(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized FollowerStore.FollowList getFollowList(int uid) {
+        try {
+            out.writeByte(ShardProtocol.GET_FOLLOW_LIST);
+            out.writeInt(uid);
+            readStatus();
+            return ShardProtocol.readFollowList(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean isAFollower(int uidFollower, int uidFollows) {
+        try {
+            out.writeByte(ShardProtocol.IS_A_FOLLOWER);
+            out.writeInt(uidFollower);
+            out.writeInt(uidFollows);
+            readStatus();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized int getNumFollowers(int uid) {
+        try {
+            out.writeByte(ShardProtocol.GET_NUM_FOLLOWERS);
+            out.writeInt(uid);
+            readStatus();
+            return in.readInt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized int[] getTopUsers(int[] counts) {
+        try {
+            out.writeByte(ShardProtocol.GET_TOP_USERS);
+            readStatus();
+            int[] users = ShardProtocol.readInts(in);
+            int[] userCounts = ShardProtocol.readInts(in);
+            for (int i=0; i<userCounts.length && i<counts.length; i++) {
+                counts[i] = userCounts[i];
+            }
+            return users;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // send the request and read whether it worked, throwing the server's error if not
+    private void readStatus() throws IOException {
+        out.flush();
+        if (in.readByte() == ShardProtocol.ERROR) {
+            throw new IllegalStateException("shard failed: " + ShardProtocol.readString(in));
+        }
+    }
+}
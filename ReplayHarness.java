@@ -0,0 +1,341 @@
+/**
+ * ReplayHarness drives the user, weet and follower stores with a mix of reads
+ * and writes on several threads, to see how they hold up under a realistic
+ * load over a longer period. It runs on one machine with no network access.
+ *
+ * The stores are first loaded with data from a WorkloadGenerator. Each thread
+ * then has its own WorkloadGenerator, seeded from the main seed and its thread
+ * number, which it uses to pick operations according to the mix and to create
+ * new weets and follow relationships. The mix includes removes and renames as
+ * well as adds. removeUser and removeWeet remove the users and weets added
+ * during the run, so the data loaded at the start stays the same size over a
+ * long run, and removeFollower removes follows picked the same way as
+ * addFollower picks them. This means a run with the same settings always asks
+ * for the same operations, although the order they happen in between threads
+ * depends on the scheduler.
+ *
+ * The stores are not thread safe, so each one is guarded by its own
+ * ReadWriteLock, which can be passed in to share it with whatever else is
+ * using the stores. The operations that only read a store share its read
+ * lock, and the writes and the searches, which change the store's QueryCache,
+ * take the write lock. The time taken by each operation, including waiting
+ * for the lock, is recorded in a LatencyHistogram per thread and operation,
+ * which are added together at the end. The report has the throughput and
+ * latency percentiles of each operation.
+ *
+ * The follow relationships are generated between all of the users, so the
+ * follower store is loaded with users * follows edges.
+ *
+ * Usage: java uk.ac.warwick.java.cs126.services.ReplayHarness [option=value ...]
+ * Options: users, weets, follows (per user), threads, seconds, seed, and a
+ * weight for each operation, e.g. getWeet=40 addWeet=5
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ReplayHarness {
+
+    // the operations that can be in the mix, and their default weights
+    public static final String[] OPERATIONS = {"getUser", "getUsersContaining", "addUser", "updateUserName",
+        "removeUser", "getWeet", "getWeetsByUser", "getWeetsContaining", "getTrending", "addWeet", "removeWeet",
+        "getFollowers", "getFollows", "isAFollower", "getTopUsers", "addFollower", "removeFollower"};
+    private static final int[] DEFAULT_WEIGHTS = {15, 2, 1, 1, 1, 25, 5, 2, 1, 20, 2, 8, 8, 8, 0, 5, 2};
+    // positions of the operations in OPERATIONS, grouped by store
+    private static final int GET_USER = 0;
+    private static final int GET_USERS_CONTAINING = 1;
+    private static final int ADD_USER = 2;
+    private static final int UPDATE_USER_NAME = 3;
+    private static final int REMOVE_USER = 4;
+    private static final int GET_WEET = 5;
+    private static final int GET_WEETS_BY_USER = 6;
+    private static final int GET_WEETS_CONTAINING = 7;
+    private static final int GET_TRENDING = 8;
+    private static final int ADD_WEET = 9;
+    private static final int REMOVE_WEET = 10;
+    private static final int GET_FOLLOWERS = 11;
+    private static final int GET_FOLLOWS = 12;
+    private static final int IS_A_FOLLOWER = 13;
+    private static final int GET_TOP_USERS = 14;
+    private static final int ADD_FOLLOWER = 15;
+    private static final int REMOVE_FOLLOWER = 16;
+    // the operations that need the write lock for their store, including the searches as they update its cache
+    private static final boolean[] WRITES = {false, true, true, true, true, false, false, true, false, true, true,
+        false, false, false, false, true, true};
+    private static final String[] NAME_QUERIES = {"oli", "smith", "am", "jones", "harry", "ta", "grace w", "e"};
+
+    private int numUsers = 100000;
+    private int numWeets = 1000000;
+    private int followsPerUser = 20;
+    private int threads = 4;
+    private double seconds = 10;
+    private long seed = 126;
+    private int[] weights = DEFAULT_WEIGHTS.clone();
+
+    private UserStore userStore;
+    private WeetStore weetStore;
+    private FollowerStore followerStore;
+    private final ReadWriteLock userLock;
+    private final ReadWriteLock weetLock;
+    private final ReadWriteLock followerLock;
+    // ids for new users and weets, shared between the threads
+    private AtomicInteger nextUid;
+    private AtomicInteger nextWid;
+
+    public ReplayHarness() {
+        this(new ReentrantReadWriteLock(), new ReentrantReadWriteLock(), new ReentrantReadWriteLock());
+    }
+
+    public ReplayHarness(ReadWriteLock userLock, ReadWriteLock weetLock, ReadWriteLock followerLock) {
+        this.userLock = userLock;
+        this.weetLock = weetLock;
+        this.followerLock = followerLock;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ReplayHarness harness = new ReplayHarness();
+        for (int i=0; i<args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("expected option=value but got " + args[i]);
+            }
+            harness.set(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        harness.load();
+        harness.run();
+    }
+
+    /**
+     * set: change one of the options, or the weight of an operation.
+     *
+     */
+
+    public void set(String option, String value) {
+        if (option.equals("users")) {
+            numUsers = Integer.parseInt(value);
+        } else if (option.equals("weets")) {
+            numWeets = Integer.parseInt(value);
+        } else if (option.equals("follows")) {
+            followsPerUser = Integer.parseInt(value);
+        } else if (option.equals("threads")) {
+            threads = Integer.parseInt(value);
+        } else if (option.equals("seconds")) {
+            seconds = Double.parseDouble(value);
+        } else if (option.equals("seed")) {
+            seed = Long.parseLong(value);
+        } else {
+            for (int i=0; i<OPERATIONS.length; i++) {
+                if (OPERATIONS[i].equals(option)) {
+                    weights[i] = Integer.parseInt(value);
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("unknown option " + option);
+        }
+    }
+
+    /**
+     * load: create new stores and fill them with generated data.
+     *
+     */
+
+    public void load() {
+        long start = System.nanoTime();
+        WorkloadGenerator generator = new WorkloadGenerator(seed);
+        userStore = new UserStore();
+        User[] users = generator.generateUsers(numUsers);
+        for (int i=0; i<users.length; i++) {
+            userStore.addUser(users[i]);
+        }
+        weetStore = new WeetStore();
+        Weet[] weets = generator.generateWeets(numWeets, numUsers);
+        for (int i=0; i<weets.length; i++) {
+            weetStore.addWeet(weets[i]);
+        }
+        followerStore = new FollowerStore();
+        WorkloadGenerator.Edges edges = generator.generateFollows(numUsers, followsPerUser);
+        for (int i=0; i<edges.size; i++) {
+            followerStore.addFollower(edges.followers[i], edges.followed[i], new Date(edges.dates[i]));
+        }
+        nextUid = new AtomicInteger(numUsers);
+        nextWid = new AtomicInteger(numWeets);
+        System.out.printf("loaded %d users, %d weets and %d follows in %.1fs%n", numUsers, numWeets, edges.size,
+            (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * run: run the mix on every thread for the given number of seconds, then
+     * print the throughput and latencies.
+     *
+     */
+
+    public void run() throws InterruptedException {
+        int totalWeight = 0;
+        for (int i=0; i<weights.length; i++) {
+            totalWeight += weights[i];
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("at least one operation needs a weight");
+        }
+        final int[] cumulative = new int[weights.length];
+        int sum = 0;
+        for (int i=0; i<weights.length; i++) {
+            sum += weights[i];
+            cumulative[i] = sum;
+        }
+        final int weightTotal = totalWeight;
+        final LatencyHistogram[][] histograms = new LatencyHistogram[threads][OPERATIONS.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long runNanos = (long) (seconds * 1e9);
+        for (int t=0; t<threads; t++) {
+            final int thread = t;
+            for (int op=0; op<OPERATIONS.length; op++) {
+                histograms[t][op] = new LatencyHistogram();
+            }
+            Thread worker = new Thread(() -> {
+                WorkloadGenerator generator = new WorkloadGenerator(seed * 31 + thread + 1);
+                Random random = generator.getRandom();
+                WorkloadGenerator.Zipf userZipf = new WorkloadGenerator.Zipf(numUsers, 1.1, random);
+                // count down however the thread finishes, so run never waits for a thread that has stopped
+                try {
+                    start.await();
+                    long end = System.nanoTime() + runNanos;
+                    while (System.nanoTime() < end) {
+                        // pick an operation using the weights
+                        int pick = random.nextInt(weightTotal);
+                        int op = 0;
+                        while (cumulative[op] <= pick) {
+                            op++;
+                        }
+                        long begin = System.nanoTime();
+                        execute(op, generator, random, userZipf);
+                        histograms[thread][op].record(System.nanoTime() - begin);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "replay-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+
+        // add the threads histograms together and print them
+        LatencyHistogram all = new LatencyHistogram();
+        System.out.printf("%d threads for %.1fs%n", threads, seconds);
+        for (int op=0; op<OPERATIONS.length; op++) {
+            LatencyHistogram total = new LatencyHistogram();
+            for (int t=0; t<threads; t++) {
+                total.add(histograms[t][op]);
+            }
+            if (total.getCount() > 0) {
+                System.out.printf("%-20s %10.0f ops/s  %s%n", OPERATIONS[op], total.getCount() / seconds, total.summary());
+                all.add(total);
+            }
+        }
+        System.out.printf("%-20s %10.0f ops/s  %s%n", "total", all.getCount() / seconds, all.summary());
+    }
+
+    // carry out one operation, holding the lock for its store
+    private void execute(int op, WorkloadGenerator generator, Random random, WorkloadGenerator.Zipf userZipf) {
+        if (op <= REMOVE_USER) {
+            // create the new user or name before taking the lock
+            User user = null;
+            String name = null;
+            if (op == ADD_USER) {
+                int uid = nextUid.incrementAndGet();
+                user = new User("New User" + uid, uid, new Date());
+            } else if (op == UPDATE_USER_NAME) {
+                name = generator.nextName();
+            }
+            Lock lock = WRITES[op] ? userLock.writeLock() : userLock.readLock();
+            lock.lock();
+            try {
+                if (op == GET_USER) {
+                    userStore.getUser(userZipf.next() + 1);
+                } else if (op == GET_USERS_CONTAINING) {
+                    userStore.getUsersContaining(NAME_QUERIES[random.nextInt(NAME_QUERIES.length)]);
+                } else if (op == ADD_USER) {
+                    userStore.addUser(user);
+                } else if (op == UPDATE_USER_NAME) {
+                    userStore.updateUserName(userZipf.next() + 1, name);
+                } else {
+                    userStore.removeUser(addedId(numUsers, nextUid, random));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } else if (op <= REMOVE_WEET) {
+            // create the new weet before taking the lock
+            Weet weet = null;
+            String tag = null;
+            if (op == ADD_WEET) {
+                weet = new Weet(nextWid.incrementAndGet(), userZipf.next() + 1, generator.nextMessage(), new Date());
+            } else if (op == GET_WEETS_CONTAINING) {
+                tag = generator.nextTag();
+            }
+            Lock lock = WRITES[op] ? weetLock.writeLock() : weetLock.readLock();
+            lock.lock();
+            try {
+                if (op == GET_WEET) {
+                    weetStore.getWeet(random.nextInt(numWeets) + 1);
+                } else if (op == GET_WEETS_BY_USER) {
+                    weetStore.getWeetsByUser(new User("", userZipf.next() + 1, new Date()));
+                } else if (op == GET_WEETS_CONTAINING) {
+                    weetStore.getWeetsContaining(tag);
+                } else if (op == GET_TRENDING) {
+                    weetStore.getTrending();
+                } else if (op == ADD_WEET) {
+                    weetStore.addWeet(weet);
+                } else {
+                    weetStore.removeWeet(addedId(numWeets, nextWid, random));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            int hot = userZipf.next() + 1;
+            int other = random.nextInt(numUsers) + 1;
+            Lock lock = WRITES[op] ? followerLock.writeLock() : followerLock.readLock();
+            lock.lock();
+            try {
+                if (op == GET_FOLLOWERS) {
+                    followerStore.getFollowers(hot);
+                } else if (op == GET_FOLLOWS) {
+                    followerStore.getFollows(other);
+                } else if (op == IS_A_FOLLOWER) {
+                    followerStore.isAFollower(other, hot);
+                } else if (op == GET_TOP_USERS) {
+                    followerStore.getTopUsers();
+                } else if (op == ADD_FOLLOWER) {
+                    followerStore.addFollower(other, hot, new Date());
+                } else {
+                    followerStore.removeFollower(other, hot);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // pick one of the ids given out during the run, after the loaded ones, or the first if there are none yet
+    private static int addedId(int loaded, AtomicInteger next, Random random) {
+        int added = next.get() - loaded;
+        return loaded + 1 + (added > 0 ? random.nextInt(added) : 0);
+    }
+}
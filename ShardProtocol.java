@@ -0,0 +1,191 @@
+/**
+ * ShardProtocol is the format used between RemoteShard and ShardServer. Each
+ * request is a one byte operation code followed by its arguments, and the
+ * server writes back the result. Everything is written with DataOutputStream,
+ * strings as an int length and UTF-8 bytes, dates as milliseconds and arrays
+ * as an int length followed by the elements. A null user or weet is written
+ * as a false boolean.
+ *
+ * If the server gets an exception carrying out a request it writes the ERROR
+ * status and the message instead of the result, which RemoteShard throws as an
+ * IllegalStateException.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+final class ShardProtocol {
+
+    static final byte ADD_USER = 1;
+    static final byte GET_USER = 2;
+    static final byte GET_USERS = 3;
+    static final byte GET_USERS_CONTAINING = 4;
+    static final byte GET_USERS_JOINED_BEFORE = 5;
+    static final byte ADD_WEET = 6;
+    static final byte GET_WEET = 7;
+    static final byte GET_WEETS = 8;
+    static final byte GET_WEETS_BY_USER = 9;
+    static final byte GET_WEETS_CONTAINING = 10;
+    static final byte GET_WEETS_ON = 11;
+    static final byte GET_WEETS_BEFORE = 12;
+    static final byte GET_TAG_COUNTS = 13;
+    static final byte ADD_FOLLOWER = 14;
+    static final byte GET_FOLLOWER_LIST = 15;
+    static final byte GET_FOLLOW_LIST = 16;
+    static final byte IS_A_FOLLOWER = 17;
+    static final byte GET_NUM_FOLLOWERS = 18;
+    static final byte GET_TOP_USERS = 19;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private ShardProtocol() {
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeBoolean(user != null);
+        if (user != null) {
+            out.writeInt(user.getId());
+            writeString(out, user.getName());
+            out.writeLong(user.getDateJoined().getTime());
+        }
+    }
+
+    static User readUser(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int id = in.readInt();
+        String name = readString(in);
+        return new User(name, id, new Date(in.readLong()));
+    }
+
+    static void writeUsers(DataOutputStream out, User[] users) throws IOException {
+        out.writeInt(users.length);
+        for (int i=0; i<users.length; i++) {
+            writeUser(out, users[i]);
+        }
+    }
+
+    static User[] readUsers(DataInputStream in) throws IOException {
+        User[] users = new User[in.readInt()];
+        for (int i=0; i<users.length; i++) {
+            users[i] = readUser(in);
+        }
+        return users;
+    }
+
+    static void writeWeet(DataOutputStream out, Weet weet) throws IOException {
+        out.writeBoolean(weet != null);
+        if (weet != null) {
+            out.writeInt(weet.getId());
+            out.writeInt(weet.getUserId());
+            writeString(out, weet.getMessage());
+            out.writeLong(weet.getDateWeeted().getTime());
+        }
+    }
+
+    static Weet readWeet(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int id = in.readInt();
+        int userId = in.readInt();
+        String message = readString(in);
+        return new Weet(id, userId, message, new Date(in.readLong()));
+    }
+
+    static void writeWeets(DataOutputStream out, Weet[] weets) throws IOException {
+        out.writeInt(weets.length);
+        for (int i=0; i<weets.length; i++) {
+            writeWeet(out, weets[i]);
+        }
+    }
+
+    static Weet[] readWeets(DataInputStream in) throws IOException {
+        Weet[] weets = new Weet[in.readInt()];
+        for (int i=0; i<weets.length; i++) {
+            weets[i] = readWeet(in);
+        }
+        return weets;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int i=0; i<values.length; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int i=0; i<values.length; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    static long[] readLongs(DataInputStream in) throws IOException {
+        long[] values = new long[in.readInt()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    static void writeFollowList(DataOutputStream out, FollowerStore.FollowList list) throws IOException {
+        writeInts(out, list.uids);
+        writeLongs(out, list.times);
+    }
+
+    static FollowerStore.FollowList readFollowList(DataInputStream in) throws IOException {
+        int[] uids = readInts(in);
+        return new FollowerStore.FollowList(uids, readLongs(in));
+    }
+
+    static void writeTagCounts(DataOutputStream out, WeetStore.TagCounts tagCounts) throws IOException {
+        out.writeInt(tagCounts.tags.length);
+        for (int i=0; i<tagCounts.tags.length; i++) {
+            writeString(out, tagCounts.tags[i]);
+        }
+        writeInts(out, tagCounts.counts);
+        writeLongs(out, tagCounts.lastUsed);
+    }
+
+    static WeetStore.TagCounts readTagCounts(DataInputStream in) throws IOException {
+        String[] tags = new String[in.readInt()];
+        for (int i=0; i<tags.length; i++) {
+            tags[i] = readString(in);
+        }
+        int[] counts = readInts(in);
+        return new WeetStore.TagCounts(tags, counts, readLongs(in));
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * ShardServer makes a StoreShard available to other processes on the same
+ * machine. It listens on a loopback port and carries out the requests sent by
+ * RemoteShard, using the format in ShardProtocol. Each connection is handled
+ * by its own thread, and the requests on a connection are handled one at a
+ * time in order.
+ *
+ * It can be run as its own process with
+ *     java uk.ac.warwick.java.cs126.services.ShardServer port
+ * which serves a new, empty LocalShard until the process is stopped.
+ *
+ * A connection that fails with an IOException is closed, and the failure is
+ * counted and kept, so it can be seen with getFailedConnections and
+ * getLastFailure rather than being lost.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardServer implements AutoCloseable {
+
+    private final StoreShard shard;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private volatile boolean running;
+    // connections closed because of an IOException, and the last one's exception
+    private final AtomicLong failedConnections = new AtomicLong();
+    private volatile IOException lastFailure;
+
+    /**
+     * Start serving the shard on the given port of the loopback address. A
+     * port of 0 picks any free port, which can be found with getPort.
+     *
+     */
+
+    public ShardServer(StoreShard shard, int port) throws IOException {
+        this.shard = shard;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        running = true;
+        acceptor = new Thread(this::acceptLoop, "shard-server-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        ShardServer server = new ShardServer(new LocalShard(), port);
+        System.out.println("shard listening on port " + server.getPort());
+        server.acceptor.join();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * getFailedConnections, getLastFailure: the number of connections closed
+     * because reading or writing them failed, and the exception that closed
+     * the last of them, or null if none have.
+     *
+     */
+
+    public long getFailedConnections() {
+        return failedConnections.get();
+    }
+
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread handler = new Thread(() -> handle(socket), "shard-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // the server socket has been closed
+                return;
+            }
+        }
+    }
+
+    // carry out the requests on one connection until it is closed
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            // each result is built here first, so a request that fails part way sends only the error
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            while (true) {
+                byte operation;
+                try {
+                    operation = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                // the arguments are read first so the stream stays in step if the request fails
+                Object[] args = readArguments(operation, in);
+                result.reset();
+                try {
+                    execute(operation, args, new DataOutputStream(result));
+                    out.writeByte(ShardProtocol.OK);
+                    result.writeTo(out);
+                } catch (RuntimeException e) {
+                    out.writeByte(ShardProtocol.ERROR);
+                    ShardProtocol.writeString(out, String.valueOf(e));
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // the client has gone away
+        } catch (IOException e) {
+            lastFailure = e;
+            failedConnections.incrementAndGet();
+        }
+    }
+
+    private static Object[] readArguments(byte operation, DataInputStream in) throws IOException {
+        switch (operation) {
+            case ShardProtocol.ADD_USER:
+                return new Object[] {ShardProtocol.readUser(in)};
+            case ShardProtocol.GET_USER:
+            case ShardProtocol.GET_WEET:
+            case ShardProtocol.GET_FOLLOWER_LIST:
+            case ShardProtocol.GET_FOLLOW_LIST:
+            case ShardProtocol.GET_NUM_FOLLOWERS:
+                return new Object[] {in.readInt()};
+            case ShardProtocol.GET_USERS_CONTAINING:
+            case ShardProtocol.GET_WEETS_CONTAINING:
+                return new Object[] {ShardProtocol.readString(in)};
+            case ShardProtocol.GET_USERS_JOINED_BEFORE:
+            case ShardProtocol.GET_WEETS_ON:
+            case ShardProtocol.GET_WEETS_BEFORE:
+                return new Object[] {new Date(in.readLong())};
+            case ShardProtocol.ADD_WEET:
+                return new Object[] {ShardProtocol.readWeet(in)};
+            case ShardProtocol.GET_WEETS_BY_USER:
+                return new Object[] {ShardProtocol.readUser(in)};
+            case ShardProtocol.ADD_FOLLOWER:
+                return new Object[] {in.readInt(), in.readInt(), new Date(in.readLong())};
+            case ShardProtocol.IS_A_FOLLOWER:
+                return new Object[] {in.readInt(), in.readInt()};
+            case ShardProtocol.GET_USERS:
+            case ShardProtocol.GET_WEETS:
+            case ShardProtocol.GET_TAG_COUNTS:
+            case ShardProtocol.GET_TOP_USERS:
+                return new Object[0];
+            default:
+                throw new IOException("unknown operation " + operation);
+        }
+    }
+
+    // carry out a request and write its result
+    private void execute(byte operation, Object[] args, DataOutputStream out) throws IOException {
+        switch (operation) {
+            case ShardProtocol.ADD_USER: {
+                boolean added = shard.addUser((User) args[0]);
+                out.writeBoolean(added);
+                break;
+            }
+            case ShardProtocol.GET_USER:
+                ShardProtocol.writeUser(out, shard.getUser((Integer) args[0]));
+                break;
+            case ShardProtocol.GET_USERS:
+                ShardProtocol.writeUsers(out, shard.getUsers());
+                break;
+            case ShardProtocol.GET_USERS_CONTAINING:
+                ShardProtocol.writeUsers(out, shard.getUsersContaining((String) args[0]));
+                break;
+            case ShardProtocol.GET_USERS_JOINED_BEFORE:
+                ShardProtocol.writeUsers(out, shard.getUsersJoinedBefore((Date) args[0]));
+                break;
+            case ShardProtocol.ADD_WEET: {
+                boolean added = shard.addWeet((Weet) args[0]);
+                out.writeBoolean(added);
+                break;
+            }
+            case ShardProtocol.GET_WEET:
+                ShardProtocol.writeWeet(out, shard.getWeet((Integer) args[0]));
+                break;
+            case ShardProtocol.GET_WEETS:
+                ShardProtocol.writeWeets(out, shard.getWeets());
+                break;
+            case ShardProtocol.GET_WEETS_BY_USER:
+                ShardProtocol.writeWeets(out, shard.getWeetsByUser((User) args[0]));
+                break;
+            case ShardProtocol.GET_WEETS_CONTAINING:
+                ShardProtocol.writeWeets(out, shard.getWeetsContaining((String) args[0]));
+                break;
+            case ShardProtocol.GET_WEETS_ON:
+                ShardProtocol.writeWeets(out, shard.getWeetsOn((Date) args[0]));
+                break;
+            case ShardProtocol.GET_WEETS_BEFORE:
+                ShardProtocol.writeWeets(out, shard.getWeetsBefore((Date) args[0]));
+                break;
+            case ShardProtocol.GET_TAG_COUNTS:
+                ShardProtocol.writeTagCounts(out, shard.getTagCounts());
+                break;
+            case ShardProtocol.ADD_FOLLOWER: {
+                boolean added = shard.addFollower((Integer) args[0], (Integer) args[1], (Date) args[2]);
+                out.writeBoolean(added);
+                break;
+            }
+            case ShardProtocol.GET_FOLLOWER_LIST:
+                ShardProtocol.writeFollowList(out, shard.getFollowerList((Integer) args[0]));
+                break;
+            case ShardProtocol.GET_FOLLOW_LIST:
+                ShardProtocol.writeFollowList(out, shard.getFollowList((Integer) args[0]));
+                break;
+            case ShardProtocol.IS_A_FOLLOWER: {
+                boolean follower = shard.isAFollower((Integer) args[0], (Integer) args[1]);
+                out.writeBoolean(follower);
+                break;
+            }
+            case ShardProtocol.GET_NUM_FOLLOWERS: {
+                int followers = shard.getNumFollowers((Integer) args[0]);
+                out.writeInt(followers);
+                break;
+            }
+            case ShardProtocol.GET_TOP_USERS: {
+                int[] counts = new int[10];
+                int[] users = shard.getTopUsers(counts);
+                ShardProtocol.writeInts(out, users);
+                ShardProtocol.writeInts(out, counts);
+                break;
+            }
+            default:
+                throw new IllegalStateException("unknown operation " + operation);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * ShardedStores spreads the users, weets and follow relationships over several
+ * StoreShards, so the data can be bigger than one set of stores can hold and
+ * the queries can be run on every shard at the same time. It implements all
+ * three store interfaces, so it can be used anywhere the stores are.
+ *
+ * Each user is kept on the shard picked by hashing their id. Each weet is kept
+ * on the shard picked by hashing the weet's id, so the shard that owns an id
+ * is the only one that can have it: addWeet's duplicate check is done by that
+ * shard's own addWeet, under its lock, so two weets with the same id can't
+ * both be added, and getWeet only asks that one shard. The cost is that a
+ * user's weets are spread over every shard, so getWeetsByUser has to ask them
+ * all. A follow relationship is kept on the shard of the user being followed, so
+ * getFollowers, getNumFollowers and isAFollower only ask one shard, and every
+ * user's follower count is complete on their own shard, so the top users of
+ * each shard can simply be merged. Because of this each shard's follower matrix
+ * only has the users followed on that shard and their followers, rather than
+ * every user, which keeps the n^2 matrix much smaller.
+ *
+ * Queries over everything, like getWeets or the searches, are sent to every
+ * shard at once using a thread for each shard. Each shard returns its results
+ * sorted most recent first, so they only have to be merged, which is O(r k)
+ * for r results from k shards, rather than sorted again. getFollows has to ask
+ * every shard too, since the users being followed can be on any shard.
+ *
+ * The trending topics are worked out by adding up the count of every tag on
+ * every shard, as the top 10 of each shard may not include the top 10 overall.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ShardedStores implements IUserStore, IWeetStore, IFollowerStore, AutoCloseable {
+
+    /**
+     * ShardQuery: a query run on each shard by scatter.
+     *
+     */
+    private interface ShardQuery {
+        Object run(StoreShard shard);
+    }
+
+    private final StoreShard[] shards;
+    private final ExecutorService executor;
+
+    /**
+     * Make a ShardedStores with the given number of LocalShards.
+     *
+     */
+
+    public ShardedStores(int shardCount) {
+        this(localShards(shardCount));
+    }
+
+    public ShardedStores(StoreShard[] shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("there must be at least one shard");
+        }
+        this.shards = shards.clone();
+        executor = Executors.newFixedThreadPool(shards.length, runnable -> {
+            Thread thread = new Thread(runnable, "shard-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static StoreShard[] localShards(int shardCount) {
+        StoreShard[] shards = new StoreShard[shardCount];
+        for (int i=0; i<shardCount; i++) {
+            shards[i] = new LocalShard();
+        }
+        return shards;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * getShard: return the shard that keeps the user with the given id and the
+     * relationships where they are followed.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public StoreShard getShard(int uid) {
+        return shards[shardIndex(uid)];
+    }
+
+    /**
+     * getWeetShard: return the shard that keeps the weet with the given id.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public StoreShard getWeetShard(int wid) {
+        return shards[shardIndex(wid)];
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    // UserStore
+
+    public boolean addUser(User usr) {
+        return getShard(usr.getId()).addUser(usr);
+    }
+
+    public User getUser(int uid) {
+        return getShard(uid).getUser(uid);
+    }
+
+    public User[] getUsers() {
+        return mergeUsers(scatter(shard -> shard.getUsers()));
+    }
+
+    public User[] getUsersContaining(String query) {
+        return mergeUsers(scatter(shard -> shard.getUsersContaining(query)));
+    }
+
+    public User[] getUsersJoinedBefore(Date dateBefore) {
+        return mergeUsers(scatter(shard -> shard.getUsersJoinedBefore(dateBefore)));
+    }
+
+    // WeetStore
+
+    /**
+     * addWeet: add the weet to the shard that owns its id. No other shard can
+     * have a weet with the same id, so the shard's own duplicate check is
+     * enough.
+     *
+     * Algorithm Complexity: O(1), the same as WeetStore.addWeet
+     *
+     */
+
+    public boolean addWeet(Weet weet) {
+        return getWeetShard(weet.getId()).addWeet(weet);
+    }
+
+    public Weet getWeet(int wid) {
+        return getWeetShard(wid).getWeet(wid);
+    }
+
+    public Weet[] getWeets() {
+        return mergeWeets(scatter(shard -> shard.getWeets()));
+    }
+
+    public Weet[] getWeetsByUser(User usr) {
+        return mergeWeets(scatter(shard -> shard.getWeetsByUser(usr)));
+    }
+
+    public Weet[] getWeetsContaining(String query) {
+        Weet[] weets = mergeWeets(scatter(shard -> shard.getWeetsContaining(query)));
+        // WeetStore returns null when nothing matches
+        return weets.length == 0 ? null : weets;
+    }
+
+    public Weet[] getWeetsOn(Date dateOn) {
+        return mergeWeets(scatter(shard -> shard.getWeetsOn(dateOn)));
+    }
+
+    public Weet[] getWeetsBefore(Date dateBefore) {
+        return mergeWeets(scatter(shard -> shard.getWeetsBefore(dateBefore)));
+    }
+
+    /**
+     * getTrending: return the 10 most used tags over every shard, with the most
+     * used first. Ties are broken by which tag was used most recently, as in
+     * WeetStore.
+     *
+     * Algorithm Complexity: O(t)
+     * where t is the number of different tags on all of the shards
+     *
+     */
+
+    public String[] getTrending() {
+        Object[] results = scatter(shard -> shard.getTagCounts());
+        // add up the counts of each tag, keeping the index of the tag in the combined arrays
+        HashMap<String, Integer> indexes = new HashMap<>();
+        int total = 0;
+        for (int i=0; i<results.length; i++) {
+            total += ((WeetStore.TagCounts) results[i]).tags.length;
+        }
+        String[] tags = new String[total];
+        int[] counts = new int[total];
+        long[] lastUsed = new long[total];
+        int tag_count = 0;
+        for (int i=0; i<results.length; i++) {
+            WeetStore.TagCounts tagCounts = (WeetStore.TagCounts) results[i];
+            for (int j=0; j<tagCounts.tags.length; j++) {
+                Integer index = indexes.get(tagCounts.tags[j]);
+                if (index == null) {
+                    indexes.put(tagCounts.tags[j], tag_count);
+                    tags[tag_count] = tagCounts.tags[j];
+                    counts[tag_count] = tagCounts.counts[j];
+                    lastUsed[tag_count] = tagCounts.lastUsed[j];
+                    tag_count++;
+                } else {
+                    counts[index] += tagCounts.counts[j];
+                    lastUsed[index] = Math.max(lastUsed[index], tagCounts.lastUsed[j]);
+                }
+            }
+        }
+        // find the top 10 by inserting each tag into a sorted array
+        int[] top = new int[10];
+        int top_count = 0;
+        for (int i=0; i<tag_count; i++) {
+            int j = top_count;
+            while (j > 0 && (counts[i] > counts[top[j-1]]
+                    || (counts[i] == counts[top[j-1]] && lastUsed[i] > lastUsed[top[j-1]]))) {
+                j--;
+            }
+            if (j < 10) {
+                int last = top_count < 10 ? top_count : 9;
+                for (int k=last; k>j; k--) {
+                    top[k] = top[k-1];
+                }
+                top[j] = i;
+                if (top_count < 10) {
+                    top_count++;
+                }
+            }
+        }
+        String[] topics = new String[top_count];
+        for (int m=0; m<top_count; m++) {
+            topics[m] = tags[top[m]];
+        }
+        return topics;
+    }
+
+    // FollowerStore
+
+    public boolean addFollower(int uid1, int uid2, Date followDate) {
+        return getShard(uid2).addFollower(uid1, uid2, followDate);
+    }
+
+    public int[] getFollowers(int uid) {
+        return getShard(uid).getFollowerList(uid).uids;
+    }
+
+    /**
+     * getFollows: return the users the given user follows, most recent first.
+     * The users followed can be on any shard, so every shard is asked and the
+     * lists are merged by the time of the follow.
+     *
+     * Algorithm Complexity: O(k n) + O(m k)
+     * where k is the number of shards
+     * where n is the number of users in each shard's matrix
+     * where m is the number of users the given user follows
+     *
+     */
+
+    public int[] getFollows(int uid) {
+        return mergeFollowLists(scatter(shard -> shard.getFollowList(uid))).uids;
+    }
+
+    public boolean isAFollower(int uidFollower, int uidFollows) {
+        return getShard(uidFollows).isAFollower(uidFollower, uidFollows);
+    }
+
+    public int getNumFollowers(int uid) {
+        return getShard(uid).getNumFollowers(uid);
+    }
+
+    public int[] getMutualFollowers(int uid1, int uid2) {
+        return intersect(getShard(uid1).getFollowerList(uid1), getShard(uid2).getFollowerList(uid2));
+    }
+
+    public int[] getMutualFollows(int uid1, int uid2) {
+        Object[] results = scatter(shard -> new FollowerStore.FollowList[] {shard.getFollowList(uid1), shard.getFollowList(uid2)});
+        Object[] follows1 = new Object[results.length];
+        Object[] follows2 = new Object[results.length];
+        for (int i=0; i<results.length; i++) {
+            follows1[i] = ((FollowerStore.FollowList[]) results[i])[0];
+            follows2[i] = ((FollowerStore.FollowList[]) results[i])[1];
+        }
+        return intersect(mergeFollowLists(follows1), mergeFollowLists(follows2));
+    }
+
+    /**
+     * getTopUsers: return the 10 users with the most followers. A user's
+     * followers are all on their own shard, so the top 10 of each shard are
+     * merged by their follower counts. A user who follows someone on another
+     * shard is in that shard's matrix too, with no followers, so a user is
+     * only taken from their own shard and users with no followers are left
+     * out.
+     *
+     * Algorithm Complexity: O(k n)
+     * where k is the number of shards
+     * where n is the number of users in each shard's matrix
+     *
+     */
+
+    public int[] getTopUsers() {
+        Object[] results = scatter(shard -> {
+            int[] counts = new int[10];
+            int[] users = shard.getTopUsers(counts);
+            return new int[][] {users, counts};
+        });
+        int[] topUsers = new int[10];
+        int[] topCount = new int[10];
+        int top_count = 0;
+        for (int i=0; i<results.length; i++) {
+            int[] users = ((int[][]) results[i])[0];
+            int[] counts = ((int[][]) results[i])[1];
+            for (int j=0; j<users.length; j++) {
+                if (counts[j] == 0 || getShard(users[j]) != shards[i]) {
+                    continue;
+                }
+                int k = top_count;
+                while (k > 0 && counts[j] > topCount[k-1]) {
+                    k--;
+                }
+                if (k < 10) {
+                    int last = top_count < 10 ? top_count : 9;
+                    for (int n=last; n>k; n--) {
+                        topUsers[n] = topUsers[n-1];
+                        topCount[n] = topCount[n-1];
+                    }
+                    topUsers[k] = users[j];
+                    topCount[k] = counts[j];
+                    if (top_count < 10) {
+                        top_count++;
+                    }
+                }
+            }
+        }
+        return topUsers;
+    }
+
+    // pick a shard by mixing the bits of the user or weet id, so ids that follow a pattern are still spread out
+    private int shardIndex(int id) {
+        int hash = id * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % shards.length;
+    }
+
+    // run the query on every shard at once and return the results in shard order
+    private Object[] scatter(ShardQuery query) {
+        Future<?>[] futures = new Future<?>[shards.length];
+        for (int i=0; i<shards.length; i++) {
+            final StoreShard shard = shards[i];
+            futures[i] = executor.submit(() -> query.run(shard));
+        }
+        Object[] results = new Object[shards.length];
+        try {
+            for (int i=0; i<shards.length; i++) {
+                results[i] = futures[i].get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("shard query failed", e.getCause());
+        }
+        return results;
+    }
+
+    // merge the sorted lists of users from each shard, most recently joined first
+    private static User[] mergeUsers(Object[] results) {
+        User[][] lists = new User[results.length][];
+        int total = 0;
+        for (int i=0; i<results.length; i++) {
+            lists[i] = (User[]) results[i];
+            total += lists[i].length;
+        }
+        int[] positions = new int[lists.length];
+        User[] merged = new User[total];
+        for (int m=0; m<total; m++) {
+            // take the most recent of the first users left in each list
+            int best = -1;
+            for (int i=0; i<lists.length; i++) {
+                if (positions[i] < lists[i].length && (best == -1
+                        || lists[i][positions[i]].getDateJoined().after(lists[best][positions[best]].getDateJoined()))) {
+                    best = i;
+                }
+            }
+            merged[m] = lists[best][positions[best]++];
+        }
+        return merged;
+    }
+
+    // merge the sorted lists of weets from each shard, most recent first
+    private static Weet[] mergeWeets(Object[] results) {
+        Weet[][] lists = new Weet[results.length][];
+        int total = 0;
+        for (int i=0; i<results.length; i++) {
+            lists[i] = (Weet[]) results[i];
+            total += lists[i].length;
+        }
+        int[] positions = new int[lists.length];
+        Weet[] merged = new Weet[total];
+        for (int m=0; m<total; m++) {
+            int best = -1;
+            for (int i=0; i<lists.length; i++) {
+                if (positions[i] < lists[i].length && (best == -1
+                        || lists[i][positions[i]].getDateWeeted().after(lists[best][positions[best]].getDateWeeted()))) {
+                    best = i;
+                }
+            }
+            merged[m] = lists[best][positions[best]++];
+        }
+        return merged;
+    }
+
+    // merge the sorted follow lists from each shard, most recent first
+    private static FollowerStore.FollowList mergeFollowLists(Object[] results) {
+        FollowerStore.FollowList[] lists = new FollowerStore.FollowList[results.length];
+        int total = 0;
+        for (int i=0; i<results.length; i++) {
+            lists[i] = (FollowerStore.FollowList) results[i];
+            total += lists[i].uids.length;
+        }
+        int[] positions = new int[lists.length];
+        FollowerStore.FollowList merged = new FollowerStore.FollowList(new int[total], new long[total]);
+        for (int m=0; m<total; m++) {
+            int best = -1;
+            for (int i=0; i<lists.length; i++) {
+                if (positions[i] < lists[i].uids.length && (best == -1
+                        || lists[i].times[positions[i]] > lists[best].times[positions[best]])) {
+                    best = i;
+                }
+            }
+            merged.uids[m] = lists[best].uids[positions[best]];
+            merged.times[m] = lists[best].times[positions[best]];
+            positions[best]++;
+        }
+        return merged;
+    }
+
+    /**
+     * intersect: return the users in both follow lists, sorted by the earlier
+     * of their two follow times with the most recent first, which is the same
+     * order FollowerStore uses for the mutual followers and follows.
+     *
+     * Algorithm Complexity: O(a + b) + O(m^2) = O(a + b + m^2)
+     * where a and b are the lengths of the lists
+     * where m is the number of users in both, though the sort is close to
+     * O(m) as the second list is already sorted by its own times
+     *
+     */
+
+    private static int[] intersect(FollowerStore.FollowList list1, FollowerStore.FollowList list2) {
+        HashMap<Integer, Long> times = new HashMap<>();
+        for (int i=0; i<list1.uids.length; i++) {
+            times.put(list1.uids[i], list1.times[i]);
+        }
+        int[] uids = new int[Math.min(list1.uids.length, list2.uids.length)];
+        long[] earliest = new long[uids.length];
+        int mutual_count = 0;
+        for (int j=0; j<list2.uids.length; j++) {
+            Long time = times.get(list2.uids[j]);
+            if (time != null) {
+                uids[mutual_count] = list2.uids[j];
+                earliest[mutual_count] = Math.min(time, list2.times[j]);
+                mutual_count++;
+            }
+        }
+        // insertion sort by time, as the users are already nearly in order
+        for (int k=1; k<mutual_count; k++) {
+            int uid = uids[k];
+            long time = earliest[k];
+            int m = k - 1;
+            while (m >= 0 && earliest[m] < time) {
+                uids[m+1] = uids[m];
+                earliest[m+1] = earliest[m];
+                m--;
+            }
+            uids[m+1] = uid;
+            earliest[m+1] = time;
+        }
+        int[] mutual = new int[mutual_count];
+        for (int n=0; n<mutual_count; n++) {
+            mutual[n] = uids[n];
+        }
+        return mutual;
+    }
+}
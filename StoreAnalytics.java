@@ -0,0 +1,478 @@
+/**
+ * StoreAnalytics keeps approximate counts for the dashboards: how many
+ * different users weeted in each hour, how many different users used a
+ * hashtag each day, and how many different users follow a set of users, the
+ * audience a weet from them could reach. Counting these exactly means keeping
+ * a set of every user seen for every hour, tag and account, or going through
+ * every weet with getWeets, so they are kept as HyperLogLog sketches instead,
+ * which use a fixed amount of memory however many users are counted.
+ *
+ * It is updated as weets and follows are added, by setting it on a WeetStore
+ * and a FollowerStore with setAnalytics. Sketches can't have anything taken
+ * out, so removing a weet or a follow doesn't change the counts.
+ *
+ * The counts by time are kept in rings of sketches, one for each hour or day,
+ * with the oldest thrown away as new ones start, so only a fixed number of
+ * hours and days are kept. Counting over a range of hours merges their
+ * sketches, which gives the number of different users across the whole range
+ * rather than the sum of the hours.
+ *
+ * There can be any number of hashtags and users being followed, so their
+ * sketches are kept in caches which keep a fixed number of them and throw
+ * away the ones that are used least. The tags are kept in a QueryCache. The
+ * users are kept in an AudienceTable, which works the same way but is found
+ * by the user id in an int array rather than a String, as it is looked up for
+ * every follow added. The tags and users used all the time stay in the
+ * protected part of the cache, so it is only the rarely used ones whose
+ * counts can be lost and start again.
+ *
+ * Every sketch has the same precision, so the sketches returned by the get
+ * methods can be merged with the ones from other stores, such as the other
+ * shards of a ShardedStores, to count across all of them.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class StoreAnalytics {
+
+    /**
+     * BucketRing: a sketch for each of the last few buckets of time, kept in a
+     * ring so the sketch of an old bucket is reused for a new one. The sketches
+     * are only made when something is first added to their bucket.
+     *
+     */
+    private static class BucketRing {
+        public final long span;
+        public final HyperLogLog[] sketches;
+        // the bucket each sketch is for, time / span
+        public final long[] buckets;
+
+        public BucketRing(long span, int count) {
+            this.span = span;
+            this.sketches = new HyperLogLog[count];
+            this.buckets = new long[count];
+        }
+
+        public void add(long time, long key, int precision) {
+            long bucket = Math.floorDiv(time, span);
+            int slot = (int) Math.floorMod(bucket, (long) sketches.length);
+            if (sketches[slot] == null) {
+                sketches[slot] = new HyperLogLog(precision);
+                buckets[slot] = bucket;
+            } else if (buckets[slot] != bucket) {
+                if (buckets[slot] > bucket) {
+                    // older than every bucket being kept
+                    return;
+                }
+                sketches[slot].clear();
+                buckets[slot] = bucket;
+            }
+            sketches[slot].add(key);
+        }
+
+        // merge the sketches of the buckets from the time from up to the time to into the target
+        public void mergeInto(HyperLogLog target, long from, long to) {
+            long first = Math.floorDiv(from, span);
+            long last = Math.floorDiv(to - 1, span);
+            for (int slot=0; slot<sketches.length; slot++) {
+                if (sketches[slot] != null && buckets[slot] >= first && buckets[slot] <= last) {
+                    target.merge(sketches[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * AudienceTable: the audience sketches of up to capacity users, found
+     * with an open addressing hash table over int arrays, like the one in
+     * PostingIndex, so looking a user up doesn't make a key object. The
+     * entries are kept in a segmented LRU like QueryCache's, with the lists
+     * linked through the previous and next arrays. Once it is full the least
+     * recently used entry is given to the new user, with its sketch cleared
+     * rather than a new one made.
+     *
+     */
+    private static class AudienceTable {
+        public final int capacity;
+        public final int protectedCapacity;
+        // the user and sketch of each entry, and its neighbours in its LRU list, -1 for none
+        public final int[] uids;
+        public final HyperLogLog[] sketches;
+        public final int[] previous;
+        public final int[] next;
+        public final boolean[] isProtected;
+        // table[slot] is the entry in the slot + 1, 0 for empty
+        public final int[] table;
+        public int size;
+        public int protectedSize;
+        // heads and tails of the probation and protected LRU lists, head is most recently used
+        public int probationHead = -1;
+        public int probationTail = -1;
+        public int protectedHead = -1;
+        public int protectedTail = -1;
+
+        public AudienceTable(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be at least 1");
+            }
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * 4 / 5;
+            this.uids = new int[capacity];
+            this.sketches = new HyperLogLog[capacity];
+            this.previous = new int[capacity];
+            this.next = new int[capacity];
+            this.isProtected = new boolean[capacity];
+            // at most half full
+            this.table = new int[Integer.highestOneBit(capacity) * 4];
+        }
+
+        // return the user's sketch, or null, moving it to the head of the protected list
+        public HyperLogLog get(int uid) {
+            int slot = find(uid);
+            if (slot == -1) {
+                return null;
+            }
+            int entry = table[slot] - 1;
+            unlink(entry);
+            addProtected(entry);
+            return sketches[entry];
+        }
+
+        // return the user's sketch, adding an empty one to the probation list if they aren't kept
+        public HyperLogLog getOrAdd(int uid, int precision) {
+            HyperLogLog sketch = get(uid);
+            if (sketch != null) {
+                return sketch;
+            }
+            int entry;
+            if (size < capacity) {
+                entry = size++;
+                sketches[entry] = new HyperLogLog(precision);
+            } else {
+                // evict from probation first, then from protected
+                entry = probationTail != -1 ? probationTail : protectedTail;
+                removeSlot(find(uids[entry]));
+                unlink(entry);
+                sketches[entry].clear();
+            }
+            uids[entry] = uid;
+            int mask = table.length - 1;
+            int slot = hash(uid) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+            addProbation(entry);
+            return sketches[entry];
+        }
+
+        public long getMemory(long sketchMemory) {
+            return 5 * 16L + capacity * (4L + 4 + 4 + 4 + 1 + sketchMemory) + 16L + 4L * table.length;
+        }
+
+        // the slot in the table holding the user, or -1
+        private int find(int uid) {
+            int mask = table.length - 1;
+            int slot = hash(uid) & mask;
+            while (table[slot] != 0) {
+                if (uids[table[slot] - 1] == uid) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        // empty the slot, moving back any later entries in the run that would no longer be found
+        private void removeSlot(int slot) {
+            int mask = table.length - 1;
+            int hole = slot;
+            int current = (slot + 1) & mask;
+            while (table[current] != 0) {
+                int home = hash(uids[table[current] - 1]) & mask;
+                if (((current - home) & mask) >= ((current - hole) & mask)) {
+                    table[hole] = table[current];
+                    hole = current;
+                }
+                current = (current + 1) & mask;
+            }
+            table[hole] = 0;
+        }
+
+        // add an entry to the head of the protected list, demoting its tail to probation if full
+        private void addProtected(int entry) {
+            if (protectedSize == protectedCapacity && protectedTail != -1) {
+                int demoted = protectedTail;
+                unlink(demoted);
+                addProbation(demoted);
+            }
+            if (protectedCapacity == 0) {
+                addProbation(entry);
+                return;
+            }
+            isProtected[entry] = true;
+            previous[entry] = -1;
+            next[entry] = protectedHead;
+            if (protectedHead != -1) {
+                previous[protectedHead] = entry;
+            } else {
+                protectedTail = entry;
+            }
+            protectedHead = entry;
+            protectedSize++;
+        }
+
+        // add an entry to the head of the probation list
+        private void addProbation(int entry) {
+            isProtected[entry] = false;
+            previous[entry] = -1;
+            next[entry] = probationHead;
+            if (probationHead != -1) {
+                previous[probationHead] = entry;
+            } else {
+                probationTail = entry;
+            }
+            probationHead = entry;
+        }
+
+        // remove an entry from whichever LRU list it is in
+        private void unlink(int entry) {
+            if (previous[entry] != -1) {
+                next[previous[entry]] = next[entry];
+            } else if (isProtected[entry]) {
+                protectedHead = next[entry];
+            } else {
+                probationHead = next[entry];
+            }
+            if (next[entry] != -1) {
+                previous[next[entry]] = previous[entry];
+            } else if (isProtected[entry]) {
+                protectedTail = previous[entry];
+            } else {
+                probationTail = previous[entry];
+            }
+            if (isProtected[entry]) {
+                protectedSize--;
+            }
+            previous[entry] = -1;
+            next[entry] = -1;
+        }
+
+        // spread the bits of the id so that sequential ids dont cluster
+        private static int hash(int uid) {
+            int h = uid * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private final int precision;
+    private final BucketRing weeters;
+    private final long tagSpan;
+    private final int tagBuckets;
+    private final QueryCache<BucketRing> tagUsers;
+    private final AudienceTable audiences;
+    private final int maxTags;
+
+    /**
+     * By default: unique weeters for each hour of the last week, unique users
+     * of each of 512 hashtags for each of the last 14 days, and the audience
+     * of 4096 users, with 2^11 registers (2KB, about 2.3% error) per sketch.
+     *
+     */
+
+    public StoreAnalytics() {
+        this(60L * 60 * 1000, 24 * 7, 24L * 60 * 60 * 1000, 14, 512, 4096, 11);
+    }
+
+    public StoreAnalytics(long weeterSpan, int weeterBuckets, long tagSpan, int tagBuckets,
+                          int maxTags, int maxAudiences, int precision) {
+        if (weeterSpan <= 0 || tagSpan <= 0 || weeterBuckets < 1 || tagBuckets < 1) {
+            throw new IllegalArgumentException("spans must be positive and there must be at least one bucket");
+        }
+        // check the precision now rather than on the first weet
+        new HyperLogLog(precision);
+        this.precision = precision;
+        this.weeters = new BucketRing(weeterSpan, weeterBuckets);
+        this.tagSpan = tagSpan;
+        this.tagBuckets = tagBuckets;
+        this.maxTags = maxTags;
+        this.tagUsers = new QueryCache<>(maxTags);
+        this.audiences = new AudienceTable(maxAudiences);
+    }
+
+    /**
+     * weetAdded: count the user as weeting at the time, and as using each tag
+     * in the message. Called by WeetStore as each weet is added.
+     *
+     * Algorithm Complexity: O(c)
+     * where c is the length of the message
+     *
+     */
+
+    public void weetAdded(int userId, long time, String message) {
+        weeters.add(time, userId, precision);
+        int length = message.length();
+        int i = 0;
+        while (i < length) {
+            int end = WeetStore.tagEnd(message, i);
+            if (end != -1) {
+                String tag = message.substring(i, end);
+                BucketRing ring = tagUsers.get(tag);
+                if (ring == null) {
+                    ring = new BucketRing(tagSpan, tagBuckets);
+                    tagUsers.put(tag, ring);
+                }
+                ring.add(time, userId, precision);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * followAdded: count the follower in the audience of the user they
+     * followed. Called by FollowerStore as each follow is added.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void followAdded(int follower, int followed, long time) {
+        audiences.getOrAdd(followed, precision).add(follower);
+    }
+
+    /**
+     * estimateWeeters: return the estimated number of different users who
+     * weeted from the time from up to the time to, in milliseconds. Only the
+     * buckets still kept are counted, and a bucket is counted if any of it is
+     * in the range.
+     *
+     * Algorithm Complexity: O(b * m)
+     * where b is the number of buckets kept
+     * where m is the number of registers in a sketch
+     *
+     */
+
+    public long estimateWeeters(long from, long to) {
+        return getWeeterSketch(from, to).estimate();
+    }
+
+    /**
+     * getWeeterCounts: return the estimated number of different users who
+     * weeted in each bucket from the time from up to the time to, one count
+     * for each bucket, for plotting unique weeters per hour.
+     *
+     * Algorithm Complexity: O(n * b)
+     * where n is the number of buckets in the range
+     * where b is the number of buckets kept
+     *
+     */
+
+    public long[] getWeeterCounts(long from, long to) {
+        if (to <= from) {
+            return new long[0];
+        }
+        long span = weeters.span;
+        long first = Math.floorDiv(from, span);
+        long last = Math.floorDiv(to - 1, span);
+        if (last - first + 1 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many buckets: " + (last - first + 1));
+        }
+        long[] counts = new long[(int) (last - first + 1)];
+        for (int i=0; i<counts.length; i++) {
+            long start = (first + i) * span;
+            counts[i] = estimateWeeters(start, start + span);
+        }
+        return counts;
+    }
+
+    public HyperLogLog getWeeterSketch(long from, long to) {
+        HyperLogLog sketch = new HyperLogLog(precision);
+        if (to > from) {
+            weeters.mergeInto(sketch, from, to);
+        }
+        return sketch;
+    }
+
+    /**
+     * estimateTagUsers: return the estimated number of different users who
+     * used the tag, including the '#', from the time from up to the time to.
+     * Returns 0 for a tag that isn't being kept.
+     *
+     * Algorithm Complexity: O(b * m)
+     * where b is the number of days kept
+     * where m is the number of registers in a sketch
+     *
+     */
+
+    public long estimateTagUsers(String tag, long from, long to) {
+        return getTagUserSketch(tag, from, to).estimate();
+    }
+
+    public HyperLogLog getTagUserSketch(String tag, long from, long to) {
+        HyperLogLog sketch = new HyperLogLog(precision);
+        BucketRing ring = tagUsers.get(tag);
+        if (ring != null && to > from) {
+            ring.mergeInto(sketch, from, to);
+        }
+        return sketch;
+    }
+
+    /**
+     * estimateAudience: return the estimated number of different users who
+     * follow at least one of the given users, the audience of a weet from all
+     * of them. A user who follows several of them is only counted once.
+     *
+     * Algorithm Complexity: O(u * m)
+     * where u is the number of users given
+     * where m is the number of registers in a sketch
+     *
+     */
+
+    public long estimateAudience(int[] uids) {
+        HyperLogLog sketch = new HyperLogLog(precision);
+        for (int i=0; i<uids.length; i++) {
+            HyperLogLog audience = audiences.get(uids[i]);
+            if (audience != null) {
+                sketch.merge(audience);
+            }
+        }
+        return sketch.estimate();
+    }
+
+    /**
+     * getAudienceSketch: return a copy of the sketch of the user's followers,
+     * which is empty if the user isn't being kept.
+     *
+     */
+
+    public HyperLogLog getAudienceSketch(int uid) {
+        HyperLogLog sketch = new HyperLogLog(precision);
+        HyperLogLog audience = audiences.get(uid);
+        if (audience != null) {
+            sketch.merge(audience);
+        }
+        return sketch;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * getMemory: an estimate of the most memory the sketches can use, in bytes,
+     * once every bucket, tag and audience is in use. It doesn't depend on how
+     * many weets, users or follows have been added.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public long getMemory() {
+        long sketch = new HyperLogLog(precision).getMemory();
+        long ring = 16L + 4L * tagBuckets + 16L + 8L * tagBuckets + tagBuckets * sketch;
+        return weeters.sketches.length * (sketch + 12L) + (long) maxTags * ring + audiences.getMemory(sketch);
+    }
+}
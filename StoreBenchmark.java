@@ -0,0 +1,364 @@
+/**
+ * StoreBenchmark times every public method of the user, weet and follower
+ * stores, so that a change to one of the stores can be measured rather than
+ * just argued about using the Algorithm Complexity comments.
+ *
+ * The stores are filled with data from a WorkloadGenerator for each of the
+ * sizes given on the command line. User ids that are looked up and weeted about
+ * are picked with a Zipf distribution, as a few users get most of the attention,
+ * which means the number of weets per user follows a power law. Follows are made
+ * with preferential attachment, so a few users have most of the followers.
+ * Each method is warmed up first so the JIT has compiled it, then run for a
+ * fixed time. The average time, operations per second and bytes allocated per
+ * operation are printed.
+ *
+ * The searches are given queries made up by the WorkloadGenerator, with the
+ * popular ones repeated but thousands of others, so the search caches miss as
+ * well as hit, as they would in use. The removes can only remove what is
+ * there, so removeUser and removeWeet remove the users and weets added by the
+ * addUser and addWeet benchmarks, and removeFollower the follow relationships
+ * in the store, each stopping early if it runs out. The allocation comes from
+ * the JVM's per-thread allocation counter, which is what the GC profiler in
+ * JMH reads too.
+ *
+ * The last benchmark for each size runs a mix of reads and writes on several
+ * threads at once. The stores are not thread safe, so each store is guarded
+ * by its own lock, the same as it would have to be when used by a server.
+ *
+ * Every user follows up to FOLLOWS_PER_USER of the users that joined before
+ * them, so the number of follow edges scales with the size too.
+ *
+ * Usage: java uk.ac.warwick.java.cs126.services.StoreBenchmark [sizes] [threads] [seconds]
+ * e.g.   java uk.ac.warwick.java.cs126.services.StoreBenchmark 10000,100000,1000000 4 2
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StoreBenchmark {
+
+    /**
+     * Operation: a single call to a store. i is the number of the call, which
+     * is used to pick the arguments, and the result is returned so that the
+     * JIT can't remove the call.
+     *
+     */
+    private interface Operation {
+        long run(int i);
+    }
+
+    // number of users each user follows when the follower store is filled
+    private static final int FOLLOWS_PER_USER = 10;
+    // number of arguments generated up front for each benchmark
+    private static final int SAMPLES = 1 << 16;
+
+    private final long runNanos;
+    private final int threads;
+    private final long seed;
+    // results of the operations are added to sink so they are not optimised away
+    private long sink;
+
+    public StoreBenchmark(long runNanos, int threads, long seed) {
+        this.runNanos = runNanos;
+        this.threads = threads;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String sizes = args.length > 0 ? args[0] : "10000,100000,1000000";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        StoreBenchmark benchmark = new StoreBenchmark((long) (seconds * 1e9), threads, 126);
+        String[] parts = sizes.split(",");
+        for (int i=0; i<parts.length; i++) {
+            benchmark.runAll(Integer.parseInt(parts[i].trim()));
+        }
+        // print the sink so it is used
+        System.out.println("# sink " + benchmark.sink);
+    }
+
+    /**
+     * runAll: fill the stores with size users, weets and follow edges then
+     * benchmark every method on them.
+     *
+     */
+
+    public void runAll(int size) throws InterruptedException {
+        System.out.println("# size " + size);
+        System.out.printf("%-36s %14s %14s %14s%n", "benchmark", "ns/op", "ops/s", "bytes/op");
+        final int numUsers = size;
+        final WorkloadGenerator generator = new WorkloadGenerator(seed + size);
+        final Random random = generator.getRandom();
+        final WorkloadGenerator.Zipf userZipf = new WorkloadGenerator.Zipf(numUsers, 1.1, random);
+
+        final UserStore userStore = new UserStore();
+        final User[] users = generator.generateUsers(numUsers);
+        for (int i=0; i<numUsers; i++) {
+            userStore.addUser(users[i]);
+        }
+
+        // the author of each weet is Zipf distributed, giving power law weet counts
+        final WeetStore weetStore = new WeetStore();
+        final int numWeets = size;
+        Weet[] weets = generator.generateWeets(numWeets, numUsers);
+        for (int i=0; i<numWeets; i++) {
+            weetStore.addWeet(weets[i]);
+        }
+        final long firstDate = weets[0].getDateWeeted().getTime();
+        final long lastDate = weets[numWeets - 1].getDateWeeted().getTime();
+        weets = null;
+
+        // follows are made with preferential attachment, so followers are skewed too
+        final FollowerStore followerStore = new FollowerStore();
+        WorkloadGenerator.Edges edges = generator.generateFollows(numUsers, FOLLOWS_PER_USER);
+        for (int i=0; i<edges.size; i++) {
+            followerStore.addFollower(edges.followers[i], edges.followed[i], new Date(edges.dates[i]));
+        }
+        edges = null;
+
+        // arguments for the read benchmarks
+        final int[] hotUids = new int[SAMPLES];
+        final int[] otherUids = new int[SAMPLES];
+        final int[] wids = new int[SAMPLES];
+        final Date[] dates = new Date[SAMPLES];
+        final String[] nameQueries = new String[SAMPLES];
+        final String[] wordQueries = new String[SAMPLES];
+        final String[] names = new String[SAMPLES];
+        for (int i=0; i<SAMPLES; i++) {
+            hotUids[i] = userZipf.next() + 1;
+            otherUids[i] = random.nextInt(numUsers) + 1;
+            wids[i] = random.nextInt(numWeets) + 1;
+            dates[i] = new Date(firstDate + (long) (random.nextDouble() * (lastDate - firstDate)));
+            // search terms are skewed towards a few popular ones, but most are different
+            nameQueries[i] = generator.nextNameQuery();
+            wordQueries[i] = generator.nextWordQuery();
+            names[i] = generator.nextName();
+        }
+        final int mask = SAMPLES - 1;
+
+        // UserStore, the writes are run last so they don't change the size for the reads
+        final int[] nextUid = {numUsers + 1};
+        run("UserStore.getUser", i -> userStore.getUser(hotUids[i & mask]).getId());
+        run("UserStore.getUsers", i -> userStore.getUsers().length);
+        run("UserStore.getUsersContaining", i -> userStore.getUsersContaining(nameQueries[i & mask]).length);
+        run("UserStore.getUsersJoinedBefore", i -> userStore.getUsersJoinedBefore(dates[i & mask]).length);
+        run("UserStore.updateUserName", i -> userStore.updateUserName(hotUids[i & mask], names[i & mask]) ? 1 : 0);
+        run("UserStore.addUser", i -> {
+            int uid = nextUid[0]++;
+            return userStore.addUser(new User("New User", uid, new Date(lastDate + uid))) ? 1 : 0;
+        });
+        // remove the users just added, oldest first
+        final int addedUsers = nextUid[0] - numUsers - 1;
+        run("UserStore.removeUser", addedUsers, i -> userStore.removeUser(numUsers + 1 + i) ? 1 : 0);
+
+        // WeetStore
+        final int[] nextWid = {numWeets + 1};
+        run("WeetStore.getWeet", i -> weetStore.getWeet(wids[i & mask]).getId());
+        run("WeetStore.getWeets", i -> weetStore.getWeets().length);
+        run("WeetStore.getWeetsByUser", i -> weetStore.getWeetsByUser(users[hotUids[i & mask] - 1]).length);
+        run("WeetStore.getWeetsContaining", i -> length(weetStore.getWeetsContaining(wordQueries[i & mask])));
+        run("WeetStore.getWeetsOn", i -> weetStore.getWeetsOn(dates[i & mask]).length);
+        run("WeetStore.getWeetsBefore", i -> weetStore.getWeetsBefore(dates[i & mask]).length);
+        run("WeetStore.getTrending", i -> weetStore.getTrending().length);
+        run("WeetStore.addWeet", i -> {
+            int wid = nextWid[0]++;
+            return weetStore.addWeet(new Weet(wid, hotUids[i & mask], generator.nextMessage(), new Date(lastDate + wid))) ? 1 : 0;
+        });
+        final int addedWeets = nextWid[0] - numWeets - 1;
+        run("WeetStore.removeWeet", addedWeets, i -> weetStore.removeWeet(numWeets + 1 + i) ? 1 : 0);
+
+        // FollowerStore
+        run("FollowerStore.getFollowers", i -> followerStore.getFollowers(hotUids[i & mask]).length);
+        run("FollowerStore.getFollows", i -> followerStore.getFollows(otherUids[i & mask]).length);
+        run("FollowerStore.isAFollower", i -> followerStore.isAFollower(otherUids[i & mask], hotUids[i & mask]) ? 1 : 0);
+        run("FollowerStore.getNumFollowers", i -> followerStore.getNumFollowers(hotUids[i & mask]));
+        run("FollowerStore.getMutualFollowers", i -> followerStore.getMutualFollowers(hotUids[i & mask], hotUids[(i + 1) & mask]).length);
+        run("FollowerStore.getMutualFollows", i -> followerStore.getMutualFollows(otherUids[i & mask], otherUids[(i + 1) & mask]).length);
+        run("FollowerStore.getTopUsers", i -> followerStore.getTopUsers().length);
+        run("FollowerStore.addFollower", i -> followerStore.addFollower(otherUids[i & mask], hotUids[i & mask], new Date(lastDate + i)) ? 1 : 0);
+        // remove follow relationships picked evenly from the whole store
+        final int[] removeFollowers = new int[SAMPLES];
+        final int[] removeFollowed = new int[SAMPLES];
+        final int[] removeCount = {0};
+        final int edgeStep = Math.max(1, followerStore.getNumEdges() / SAMPLES);
+        final int[] edgeIndex = {0};
+        followerStore.forEachFollow((follower, followed, time) -> {
+            if (edgeIndex[0]++ % edgeStep == 0 && removeCount[0] < SAMPLES) {
+                removeFollowers[removeCount[0]] = follower;
+                removeFollowed[removeCount[0]] = followed;
+                removeCount[0]++;
+            }
+        });
+        run("FollowerStore.removeFollower", removeCount[0],
+            i -> followerStore.removeFollower(removeFollowers[i], removeFollowed[i]) ? 1 : 0);
+
+        // a mix of 90% point reads and 10% writes across all three stores, on several threads
+        final ReentrantLock userLock = new ReentrantLock();
+        final ReentrantLock weetLock = new ReentrantLock();
+        final ReentrantLock followerLock = new ReentrantLock();
+        final AtomicLong mixedWid = new AtomicLong(nextWid[0] + 1000000L);
+        runConcurrent("mixed (" + threads + " threads)", i -> {
+            int kind = i % 10;
+            long result;
+            if (kind < 3) {
+                userLock.lock();
+                try {
+                    result = userStore.getUser(hotUids[i & mask]).getId();
+                } finally {
+                    userLock.unlock();
+                }
+            } else if (kind < 6) {
+                weetLock.lock();
+                try {
+                    result = weetStore.getWeet(wids[i & mask]).getId();
+                } finally {
+                    weetLock.unlock();
+                }
+            } else if (kind < 9) {
+                followerLock.lock();
+                try {
+                    result = followerStore.isAFollower(otherUids[i & mask], hotUids[i & mask]) ? 1 : 0;
+                } finally {
+                    followerLock.unlock();
+                }
+            } else {
+                int wid = (int) mixedWid.incrementAndGet();
+                weetLock.lock();
+                try {
+                    result = weetStore.addWeet(new Weet(wid, hotUids[i & mask], "mixed #load", new Date(lastDate + wid))) ? 1 : 0;
+                } finally {
+                    weetLock.unlock();
+                }
+            }
+            return result;
+        });
+        System.out.println();
+    }
+
+    /**
+     * run: warm up an operation, then call it repeatedly for runNanos on the
+     * current thread and print the results.
+     *
+     */
+
+    private void run(String name, Operation operation) {
+        run(name, Integer.MAX_VALUE, operation);
+    }
+
+    /**
+     * run: the same, but stop after maxOps calls in total, counting the warm
+     * up, for operations that can only be called so many times, like removing
+     * the users that were added.
+     *
+     */
+
+    private void run(String name, int maxOps, Operation operation) {
+        // warm up for a quarter of the run time, or a quarter of the calls
+        long warmupEnd = System.nanoTime() + runNanos / 4;
+        int warmupOps = maxOps / 4;
+        int i = 0;
+        while (i < warmupOps && System.nanoTime() < warmupEnd) {
+            sink += operation.run(i++);
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + runNanos;
+        long ops = 0;
+        long now = start;
+        // check the time every few calls so nanoTime isn't most of the cost of fast methods
+        while (now < end && i < maxOps) {
+            int calls = Math.min(16, maxOps - i);
+            for (int j=0; j<calls; j++) {
+                sink += operation.run(i++);
+            }
+            ops += calls;
+            now = System.nanoTime();
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (ops == 0) {
+            System.out.printf("%-36s %14s%n", name, "nothing to run");
+            return;
+        }
+        report(name, now - start, ops, allocated);
+    }
+
+    /**
+     * runConcurrent: run an operation on several threads at once for runNanos,
+     * and print the combined results.
+     *
+     */
+
+    private void runConcurrent(String name, final Operation operation) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong totalOps = new AtomicLong();
+        final AtomicLong totalAllocated = new AtomicLong();
+        final AtomicLong totalSink = new AtomicLong();
+        for (int t=0; t<threads; t++) {
+            final int offset = t * 7919;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long localSink = 0;
+                int i = offset;
+                // warm up before measuring
+                long warmupEnd = System.nanoTime() + runNanos / 4;
+                while (System.nanoTime() < warmupEnd) {
+                    localSink += operation.run(i++);
+                }
+                long allocatedBefore = allocatedBytes();
+                long end = System.nanoTime() + runNanos;
+                long ops = 0;
+                while (System.nanoTime() < end) {
+                    for (int j=0; j<16; j++) {
+                        localSink += operation.run(i++);
+                    }
+                    ops += 16;
+                }
+                totalAllocated.addAndGet(allocatedBytes() - allocatedBefore);
+                totalOps.addAndGet(ops);
+                totalSink.addAndGet(localSink);
+                done.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+        done.await();
+        sink += totalSink.get();
+        // every thread was measured for runNanos
+        report(name, runNanos * threads, totalOps.get(), totalAllocated.get());
+    }
+
+    private static void report(String name, long nanos, long ops, long allocated) {
+        double nsPerOp = (double) nanos / ops;
+        System.out.printf("%-36s %14.1f %14.0f %14.1f%n", name, nsPerOp, 1e9 / nsPerOp, (double) allocated / ops);
+    }
+
+    // number of bytes allocated by the current thread so far, or 0 if the JVM can't tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static int length(Object[] array) {
+        return array == null ? 0 : array.length;
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * StoreMetrics holds the latency recorders, counters and gauges for one of the
+ * stores, and publishes them through JMX so they can be watched with jconsole
+ * or any other JMX client while the program is running.
+ *
+ * The recorders and counters are made when the StoreMetrics is created, so
+ * recording on the hot path is just an array lookup by a fixed index and an
+ * atomic increment. Gauges are only read when a JMX client asks for them, so
+ * they can do more work, like walking the hash table to find the longest list
+ * of buckets.
+ *
+ * It is a DynamicMBean so that each store can have its own set of attributes
+ * without an MBean interface with a getter for every one. Each recorder has
+ * the attributes name.count, name.meanMicros, name.p50Micros, name.p99Micros,
+ * name.p999Micros and name.maxMicros, and each counter and gauge has an
+ * attribute with its name. There is also a reset operation.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public class StoreMetrics implements DynamicMBean {
+
+    /**
+     * Gauge: a value that is worked out when it is read, such as how full the
+     * hash table is.
+     *
+     */
+    public interface Gauge {
+        double read();
+    }
+
+    private static final String[] RECORDER_ATTRIBUTES = {"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"};
+
+    private final String storeName;
+    private final LatencyRecorder[] recorders;
+    private final String[] counterNames;
+    private final AtomicLongArray counters;
+    private String[] gaugeNames;
+    private Gauge[] gauges;
+    private int gaugeCount;
+    private ObjectName objectName;
+
+    public StoreMetrics(String storeName, String[] operations, String[] counterNames) {
+        this.storeName = storeName;
+        recorders = new LatencyRecorder[operations.length];
+        for (int i=0; i<operations.length; i++) {
+            recorders[i] = new LatencyRecorder(operations[i]);
+        }
+        this.counterNames = counterNames.clone();
+        counters = new AtomicLongArray(counterNames.length);
+        gaugeNames = new String[8];
+        gauges = new Gauge[8];
+        gaugeCount = 0;
+    }
+
+    /**
+     * record: record how long the operation with the given index took, where
+     * start is the System.nanoTime() when it started.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void record(int operation, long start) {
+        recorders[operation].record(System.nanoTime() - start);
+    }
+
+    /**
+     * increment: add amount to the counter with the given index.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void increment(int counter, long amount) {
+        counters.addAndGet(counter, amount);
+    }
+
+    /**
+     * addGauge: add a gauge that is read whenever a JMX client asks for it.
+     * Gauges should be added before the metrics are registered.
+     *
+     */
+
+    public synchronized void addGauge(String name, Gauge gauge) {
+        if (gaugeCount == gauges.length) {
+            String[] tempNames = new String[gaugeCount * 2];
+            Gauge[] tempGauges = new Gauge[gaugeCount * 2];
+            for (int i=0; i<gaugeCount; i++) {
+                tempNames[i] = gaugeNames[i];
+                tempGauges[i] = gauges[i];
+            }
+            gaugeNames = tempNames;
+            gauges = tempGauges;
+        }
+        gaugeNames[gaugeCount] = name;
+        gauges[gaugeCount] = gauge;
+        gaugeCount++;
+    }
+
+    public LatencyRecorder getRecorder(int operation) {
+        return recorders[operation];
+    }
+
+    public long getCounter(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * register: publish the metrics with the platform MBean server under the
+     * name uk.ac.warwick.java.cs126:type=StoreMetrics,name=storeName.
+     *
+     */
+
+    public synchronized void register() throws JMException {
+        if (objectName != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("uk.ac.warwick.java.cs126:type=StoreMetrics,name=" + ObjectName.quote(storeName));
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    /**
+     * unregister: remove the metrics from the platform MBean server.
+     *
+     */
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * reset: clear every recorder and counter.
+     *
+     */
+
+    public void reset() {
+        for (int i=0; i<recorders.length; i++) {
+            recorders[i].reset();
+        }
+        for (int j=0; j<counterNames.length; j++) {
+            counters.set(j, 0);
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        // a counter or gauge
+        for (int i=0; i<counterNames.length; i++) {
+            if (counterNames[i].equals(attribute)) {
+                return counters.get(i);
+            }
+        }
+        synchronized (this) {
+            for (int i=0; i<gaugeCount; i++) {
+                if (gaugeNames[i].equals(attribute)) {
+                    return gauges[i].read();
+                }
+            }
+        }
+        // a recorder attribute, as recorder.attribute
+        int dot = attribute.lastIndexOf('.');
+        if (dot != -1) {
+            String operation = attribute.substring(0, dot);
+            String value = attribute.substring(dot + 1);
+            for (int i=0; i<recorders.length; i++) {
+                if (recorders[i].getName().equals(operation)) {
+                    LatencyHistogram histogram = recorders[i].snapshot();
+                    if (value.equals("count")) {
+                        return histogram.getCount();
+                    } else if (value.equals("meanMicros")) {
+                        return histogram.getMean() / 1000.0;
+                    } else if (value.equals("p50Micros")) {
+                        return histogram.getValueAtPercentile(50) / 1000.0;
+                    } else if (value.equals("p99Micros")) {
+                        return histogram.getValueAtPercentile(99) / 1000.0;
+                    } else if (value.equals("p999Micros")) {
+                        return histogram.getValueAtPercentile(99.9) / 1000.0;
+                    } else if (value.equals("maxMicros")) {
+                        return histogram.getMax() / 1000.0;
+                    }
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (int i=0; i<attributes.length; i++) {
+            try {
+                list.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+            } catch (AttributeNotFoundException e) {
+                // attributes that don't exist are left out, as the DynamicMBean contract says
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("reset")) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public synchronized MBeanInfo getMBeanInfo() {
+        int total = recorders.length * RECORDER_ATTRIBUTES.length + counterNames.length + gaugeCount;
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[total];
+        int a = 0;
+        for (int i=0; i<recorders.length; i++) {
+            for (int j=0; j<RECORDER_ATTRIBUTES.length; j++) {
+                String type = j == 0 ? "long" : "double";
+                attributes[a++] = new MBeanAttributeInfo(recorders[i].getName() + "." + RECORDER_ATTRIBUTES[j], type,
+                    RECORDER_ATTRIBUTES[j] + " of " + recorders[i].getName(), true, false, false);
+            }
+        }
+        for (int i=0; i<counterNames.length; i++) {
+            attributes[a++] = new MBeanAttributeInfo(counterNames[i], "long", "counter", true, false, false);
+        }
+        for (int i=0; i<gaugeCount; i++) {
+            attributes[a++] = new MBeanAttributeInfo(gaugeNames[i], "double", "gauge", true, false, false);
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "clear every recorder and counter", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(getClass().getName(), "metrics for " + storeName, attributes, null, operations, null);
+    }
+}
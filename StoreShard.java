@@ -0,0 +1,65 @@
+/**
+ * StoreShard is one part of a sharded set of stores. Every user and the follow
+ * relationships where they are the user being followed are kept on the same
+ * shard, picked by hashing their user id, and each weet on the shard picked
+ * by hashing the weet's id. ShardedStores sends each query to the shard that
+ * has the data, or to every shard and merges the results.
+ *
+ * The lists returned are sorted the same way as the stores sort them, most
+ * recent first, so that ShardedStores only has to merge them. Unlike
+ * getWeetsContaining in WeetStore, getWeetsContaining here returns an empty
+ * array rather than null when nothing matches.
+ *
+ * LocalShard keeps the stores in the same process, and RemoteShard talks to a
+ * ShardServer running in another process over a socket.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+
+public interface StoreShard {
+
+    boolean addUser(User usr);
+
+    User getUser(int uid);
+
+    User[] getUsers();
+
+    User[] getUsersContaining(String query);
+
+    User[] getUsersJoinedBefore(Date dateBefore);
+
+    boolean addWeet(Weet weet);
+
+    Weet getWeet(int wid);
+
+    Weet[] getWeets();
+
+    Weet[] getWeetsByUser(User usr);
+
+    Weet[] getWeetsContaining(String query);
+
+    Weet[] getWeetsOn(Date dateOn);
+
+    Weet[] getWeetsBefore(Date dateBefore);
+
+    WeetStore.TagCounts getTagCounts();
+
+    boolean addFollower(int uid1, int uid2, Date followDate);
+
+    FollowerStore.FollowList getFollowerList(int uid);
+
+    FollowerStore.FollowList getFollowList(int uid);
+
+    boolean isAFollower(int uidFollower, int uidFollows);
+
+    int getNumFollowers(int uid);
+
+    // fills counts with the number of followers of each user returned
+    int[] getTopUsers(int[] counts);
+}
@@ -0,0 +1,236 @@
+/**
+ * SymbolTable gives each different token, like a hashtag or a user's name, a
+ * small int id, and keeps only one copy of its text in a TextArena. The stores
+ * then keep and compare the ids instead of Strings: counting a tag is an array
+ * lookup by its id, and checking whether two names are the same is an int
+ * comparison.
+ *
+ * The ids start at 0 and go up by one for each new token, so they can be used
+ * as indexes into arrays kept by the stores. Tokens are never removed, so an id
+ * always means the same token.
+ *
+ * The ids are found with an open addressing hash table of the UTF-8 bytes of
+ * each token, with linear probing. Tokens can be interned straight from part
+ * of a String, such as a tag inside a weet's message, without making a
+ * substring first; the characters are encoded into a reused buffer.
+ *
+ * Like the stores, a SymbolTable is not thread safe.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+public class SymbolTable {
+
+    private final TextArena arena;
+    // handles[id] is the handle of the token's text in the arena
+    private long[] handles;
+    private int[] hashes;
+    private int size;
+    // table holds id + 1 for each token, 0 for an empty slot
+    private int[] table;
+    private int mask;
+    // the last token encoded by encode
+    private byte[] scratch;
+    private int scratchLength;
+
+    public SymbolTable() {
+        this(new TextArena());
+    }
+
+    /**
+     * Make a SymbolTable that keeps its tokens in the given arena, so they can
+     * share it with other text.
+     *
+     */
+
+    public SymbolTable(TextArena arena) {
+        this.arena = arena;
+        handles = new long[64];
+        hashes = new int[64];
+        size = 0;
+        table = new int[128];
+        mask = table.length - 1;
+        scratch = new byte[64];
+    }
+
+    /**
+     * intern: return the id of the token, adding it if it is not already in
+     * the table.
+     *
+     * Algorithm Complexity: O(c) on average
+     * where c is the number of characters in the token
+     *
+     */
+
+    public int intern(String text) {
+        return intern(text, 0, text.length());
+    }
+
+    /**
+     * intern: the same as intern(text), for the characters of text from start
+     * up to but not including end.
+     *
+     * Algorithm Complexity: O(c) on average
+     * where c is the number of characters in the token
+     *
+     */
+
+    public int intern(String text, int start, int end) {
+        encode(text, start, end);
+        int hash = hashScratch();
+        int slot = findSlot(hash);
+        if (table[slot] != 0) {
+            return table[slot] - 1;
+        }
+        // a new token, add its text to the arena
+        if (size == handles.length) {
+            long[] tempHandles = new long[size * 2];
+            int[] tempHashes = new int[size * 2];
+            for (int i=0; i<size; i++) {
+                tempHandles[i] = handles[i];
+                tempHashes[i] = hashes[i];
+            }
+            handles = tempHandles;
+            hashes = tempHashes;
+        }
+        handles[size] = arena.add(scratch, 0, scratchLength);
+        hashes[size] = hash;
+        table[slot] = size + 1;
+        size++;
+        // keep the table no more than half full
+        if (size * 2 > table.length) {
+            grow();
+        }
+        return size - 1;
+    }
+
+    /**
+     * find: return the id of the token, or -1 if it is not in the table.
+     *
+     * Algorithm Complexity: O(c) on average
+     * where c is the number of characters in the token
+     *
+     */
+
+    public int find(String text) {
+        return find(text, 0, text.length());
+    }
+
+    public int find(String text, int start, int end) {
+        encode(text, start, end);
+        int slot = findSlot(hashScratch());
+        return table[slot] - 1;
+    }
+
+    /**
+     * get: return the token with the given id as a String.
+     *
+     * Algorithm Complexity: O(c)
+     * where c is the number of characters in the token
+     *
+     */
+
+    public String get(int id) {
+        return arena.get(handles[id]);
+    }
+
+    /**
+     * getHandle: return the handle of the token's text in the arena, so it can
+     * be searched without making a String.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public long getHandle(int id) {
+        return handles[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TextArena getArena() {
+        return arena;
+    }
+
+    /**
+     * getMemory: an estimate of the memory used by the table in bytes, not
+     * counting the text in the arena.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public long getMemory() {
+        return 16L + 8L * handles.length + 16L + 4L * hashes.length + 16L + 4L * table.length + 16L + scratch.length;
+    }
+
+    // find the slot holding the token in scratch, or the empty slot where it would go
+    private int findSlot(int hash) {
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && arena.equals(handles[id], scratch, 0, scratchLength)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // double the size of the hash table, putting every id back in
+    private void grow() {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        for (int id=0; id<size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    // FNV-1a hash of the bytes in scratch
+    private int hashScratch() {
+        int hash = 0x811c9dc5;
+        for (int i=0; i<scratchLength; i++) {
+            hash ^= scratch[i] & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // encode the characters from start to end as UTF-8 into scratch
+    private void encode(String text, int start, int end) {
+        if (scratch.length < (end - start) * 3) {
+            scratch = new byte[(end - start) * 3];
+        }
+        int length = 0;
+        for (int i=start; i<end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                scratch[length++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[length++] = (byte) (0xc0 | (c >> 6));
+                scratch[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                scratch[length++] = (byte) (0xf0 | (codePoint >> 18));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                scratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // a surrogate on its own is written as '?', the same as String.getBytes
+                scratch[length++] = (byte) '?';
+            } else {
+                scratch[length++] = (byte) (0xe0 | (c >> 12));
+                scratch[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                scratch[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        scratchLength = length;
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * TextArena keeps text as UTF-8 bytes packed one after another in large shared
+ * byte arrays (slabs), rather than as a separate String for every message or
+ * name. Each String on the heap costs a 24 byte object and a 16 byte array
+ * header on top of its characters, which for short text like names and tags is
+ * more than the text itself, and keeping the Weet and Date objects around
+ * just to hold the message adds another 48 bytes. In the arena a piece of text
+ * costs only its bytes and an 8 byte handle.
+ *
+ * The handle returned by add packs which slab the text is in, where it starts
+ * and how many bytes long it is into a long, so nothing has to be allocated to
+ * find the text again. Text is never moved once added, so handles stay valid.
+ * Text longer than a slab is given a slab of its own. The first slab is small
+ * and each new one is twice the size of the last, up to 1MB, so an arena with
+ * little in it doesn't take up much memory.
+ *
+ * Nothing is reused when text is freed, as it would mean moving the text
+ * around and updating the handles. The arena just counts the bytes freed, so
+ * it can be seen how much is wasted; the stores mostly add and rarely remove.
+ *
+ * contains searches the bytes directly, without making a String. Since UTF-8
+ * never encodes one character as part of another, the bytes of the query
+ * appear in the bytes of the text exactly when the query appears in the text.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.nio.charset.StandardCharsets;
+
+public class TextArena {
+
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int FIRST_SLAB_SIZE = 1 << 14;
+    private static final int OFFSET_BITS = 20;
+    private static final int LENGTH_BITS = 24;
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    private byte[][] slabs;
+    private int slabCount;
+    // the slab being filled and the next free position in it
+    private int current;
+    private int position;
+    private int currentSize;
+    private long usedBytes;
+    private long freedBytes;
+
+    public TextArena() {
+        slabs = new byte[8][];
+        slabCount = 0;
+        current = -1;
+        currentSize = 0;
+        position = 0;
+    }
+
+    /**
+     * add: copy the text into the arena and return the handle used to get it
+     * back.
+     *
+     * Algorithm Complexity: O(c)
+     * where c is the number of characters in the text
+     *
+     */
+
+    public long add(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * add: copy length bytes of UTF-8 text, starting at offset, into the arena
+     * and return the handle used to get it back.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of bytes
+     *
+     */
+
+    public long add(byte[] bytes, int offset, int length) {
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("text of " + length + " bytes is too long for the arena");
+        }
+        int slab;
+        int start;
+        if (length > SLAB_SIZE) {
+            // too big for a normal slab, so it gets one of its own
+            slab = newSlab(length);
+            start = 0;
+        } else {
+            if (position + length > currentSize) {
+                // start a new slab twice the size of the last, big enough for the text
+                int size = currentSize == 0 ? FIRST_SLAB_SIZE : Math.min(currentSize * 2, SLAB_SIZE);
+                while (size < length) {
+                    size *= 2;
+                }
+                current = newSlab(size);
+                currentSize = size;
+                position = 0;
+            }
+            slab = current;
+            start = position;
+            position += length;
+        }
+        System.arraycopy(bytes, offset, slabs[slab], start, length);
+        usedBytes += length;
+        return ((long) slab << (OFFSET_BITS + LENGTH_BITS)) | ((long) start << LENGTH_BITS) | length;
+    }
+
+    /**
+     * get: return the text with the given handle as a String.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of bytes in the text
+     *
+     */
+
+    public String get(long handle) {
+        return new String(slabs[slabOf(handle)], offsetOf(handle), lengthOf(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * contains: return true if the text with the given handle contains the
+     * UTF-8 bytes of the query. An empty query is in every text.
+     *
+     * Algorithm Complexity: O(b q)
+     * where b is the number of bytes in the text
+     * where q is the number of bytes in the query
+     *
+     */
+
+    public boolean contains(long handle, byte[] query) {
+        byte[] slab = slabs[slabOf(handle)];
+        int start = offsetOf(handle);
+        int last = start + lengthOf(handle) - query.length;
+        if (query.length == 0) {
+            return true;
+        }
+        byte first = query[0];
+        for (int i=start; i<=last; i++) {
+            if (slab[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < query.length && slab[i + j] == query[j]) {
+                j++;
+            }
+            if (j == query.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * equals: return true if the text with the given handle is exactly the
+     * length bytes starting at offset.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of bytes in the text
+     *
+     */
+
+    public boolean equals(long handle, byte[] bytes, int offset, int length) {
+        if (lengthOf(handle) != length) {
+            return false;
+        }
+        byte[] slab = slabs[slabOf(handle)];
+        int start = offsetOf(handle);
+        for (int i=0; i<length; i++) {
+            if (slab[start + i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * copyTo: copy the bytes of the text with the given handle into dest,
+     * starting at offset, and return how many bytes were copied.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of bytes in the text
+     *
+     */
+
+    public int copyTo(long handle, byte[] dest, int offset) {
+        int length = lengthOf(handle);
+        System.arraycopy(slabs[slabOf(handle)], offsetOf(handle), dest, offset, length);
+        return length;
+    }
+
+    /**
+     * free: record that the text with the given handle is no longer used. The
+     * space is not reused.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public void free(long handle) {
+        freedBytes += lengthOf(handle);
+    }
+
+    public static int lengthOf(long handle) {
+        return (int) (handle & MAX_LENGTH);
+    }
+
+    /**
+     * Methods used to monitor the arena: the bytes of text added, the bytes
+     * freed since, and the memory used by the slabs in bytes.
+     *
+     * Algorithm Complexity: O(1), except getMemory which is O(s)
+     * where s is the number of slabs
+     *
+     */
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getFreedBytes() {
+        return freedBytes;
+    }
+
+    public long getMemory() {
+        long memory = 16L + 4L * slabs.length;
+        for (int i=0; i<slabCount; i++) {
+            memory += 16L + slabs[i].length;
+        }
+        return memory;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> (OFFSET_BITS + LENGTH_BITS));
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) (handle >>> LENGTH_BITS) & (SLAB_SIZE - 1);
+    }
+
+    // add a slab of the given size, doubling the array of slabs if it is full
+    private int newSlab(int size) {
+        if (slabCount == slabs.length) {
+            byte[][] temp = new byte[slabCount * 2][];
+            for (int i=0; i<slabCount; i++) {
+                temp[i] = slabs[i];
+            }
+            slabs = temp;
+        }
+        slabs[slabCount] = new byte[size];
+        return slabCount++;
+    }
+}
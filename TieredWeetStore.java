@@ -0,0 +1,474 @@
+/**
+ * TieredWeetStore keeps recent weets in a normal WeetStore, the hot segment,
+ * and moves older weets into sealed, memory mapped WeetSegments on disk. Almost
+ * every read is for recent weets, so they stay as fast as they were, while the
+ * history, which is most of the weets, takes almost nothing on the heap. The
+ * heap then stays about the same size however much history there is.
+ *
+ * Time is split into windows of segmentSpan milliseconds. The hot segment
+ * keeps the window of the newest weet and the one before it, so weets that
+ * arrive a little late still go into the hot segment. When a weet arrives in
+ * a new window, every hot weet from before the previous window is sealed into
+ * a new segment, sorted by date, and taken out of the hot segment. A weet that
+ * arrives much later than its date is just added to the hot segment and sealed
+ * with the next rollover, so segments can overlap in time.
+ *
+ * Each segment keeps its earliest and latest dates, so getWeetsBefore and
+ * getWeetsOn skip every segment that can't have a weet in the range and
+ * binary search the dates of the rest. getWeet skips the segments whose ids
+ * don't cover the id. Searches by user or message still have to go through
+ * every segment, but only read the columns they need from the mapped files.
+ *
+ * The trending topics cover every weet, hot or sealed, as the hot segment
+ * keeps counting the tags of the weets it seals. Removing a sealed weet marks
+ * it as deleted in its segment and takes it out of the tag counts.
+ *
+ * Every segment reads its messages with the same WeetSegment.BlockCache, so
+ * there is one Inflater and one set of buffers however many segments there
+ * are, and they are released by close.
+ *
+ * The segment files are made in the given directory and deleted by close.
+ * Like the other stores it is not thread safe.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.zip.Deflater;
+
+public class TieredWeetStore implements IWeetStore, AutoCloseable {
+
+    private final Path directory;
+    private final long segmentSpan;
+    private final int compressionLevel;
+    private final WeetStore hot;
+    // the sealed segments, in the order they were sealed
+    private WeetSegment[] segments;
+    private int segmentCount;
+    // the window of the newest weet added
+    private long newestWindow;
+    // shared by every segment for inflating their messages
+    private final WeetSegment.BlockCache blockCache = new WeetSegment.BlockCache();
+
+    public TieredWeetStore(Path directory) {
+        this(directory, 24L * 60 * 60 * 1000, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * The segment span is the length of each window in milliseconds, and the
+     * compression level the Deflater level used for the messages.
+     *
+     */
+
+    public TieredWeetStore(Path directory, long segmentSpan, int compressionLevel) {
+        if (segmentSpan <= 0) {
+            throw new IllegalArgumentException("segmentSpan must be positive, was " + segmentSpan);
+        }
+        this.directory = directory;
+        this.segmentSpan = segmentSpan;
+        this.compressionLevel = compressionLevel;
+        hot = new WeetStore();
+        // keep the hot weets in date order, so the ones to seal are found without sorting
+        hot.enableTimeline();
+        segments = new WeetSegment[16];
+        segmentCount = 0;
+        newestWindow = Long.MIN_VALUE;
+    }
+
+    /**
+     * addWeet: add the weet to the hot segment, returning false if a weet with
+     * the same id is already in the store, hot or sealed. If the weet is in a
+     * new window, the weets from before the previous window are sealed.
+     *
+     * Algorithm Complexity: O(k + s), plus the cost of sealing
+     * where k is the cost of WeetStore.addWeet
+     * where s is the number of segments
+     *
+     */
+
+    public boolean addWeet(Weet weet) {
+        // most new ids are above every sealed id, so the segments are skipped
+        for (int s=0; s<segmentCount; s++) {
+            if (segments[s].findRow(weet.getId()) != -1) {
+                return false;
+            }
+        }
+        if (!hot.addWeet(weet)) {
+            return false;
+        }
+        long window = Math.floorDiv(weet.getDateWeeted().getTime(), segmentSpan);
+        if (window > newestWindow) {
+            newestWindow = window;
+            sealBefore((window - 1) * segmentSpan);
+        }
+        return true;
+    }
+
+    /**
+     * sealBefore: move every hot weet dated before the time into a new sealed
+     * segment, returning the number of weets moved. This is done by addWeet
+     * as time moves on, but can be called to seal more.
+     *
+     * Algorithm Complexity: O(log n + m logm) + O(b)
+     * where n is the number of hot weets
+     * where m is the number of weets sealed
+     * where b is the number of bytes in their messages
+     *
+     */
+
+    public int sealBefore(long time) {
+        Weet[] old = hot.getWeetsBefore(new Date(time));
+        if (old.length == 0) {
+            return 0;
+        }
+        // the segment wants the earliest first
+        for (int i=0, j=old.length-1; i<j; i++, j--) {
+            Weet temp = old[i];
+            old[i] = old[j];
+            old[j] = temp;
+        }
+        WeetSegment segment;
+        try {
+            Path file = Files.createTempFile(directory, "weets-", ".seg");
+            segment = WeetSegment.write(file, old, old.length, compressionLevel, blockCache);
+        } catch (IOException e) {
+            throw new UncheckedIOException("sealing " + old.length + " weets", e);
+        }
+        if (segmentCount == segments.length) {
+            WeetSegment[] temp = new WeetSegment[segmentCount * 2];
+            System.arraycopy(segments, 0, temp, 0, segmentCount);
+            segments = temp;
+        }
+        segments[segmentCount++] = segment;
+        // take them out of the hot segment, still counting their tags
+        for (int i=0; i<old.length; i++) {
+            hot.evictWeet(old[i].getId());
+        }
+        // the arena doesn't reuse the space of the sealed messages, so copy out the rest
+        TextArena text = hot.getText();
+        if (text.getFreedBytes() > text.getUsedBytes() / 2) {
+            hot.compactText();
+        }
+        return old.length;
+    }
+
+    /**
+     * removeWeet: remove the weet with the given id, from the hot segment or
+     * by marking it as deleted in its sealed segment. Returns false if there
+     * is no weet with the id.
+     *
+     * Algorithm Complexity: O(k + s log n)
+     * where k is the cost of WeetStore.removeWeet
+     * where s is the number of segments
+     * where n is the number of weets in a segment
+     *
+     */
+
+    public boolean removeWeet(int wid) {
+        if (hot.removeWeet(wid)) {
+            return true;
+        }
+        for (int s=segmentCount-1; s>=0; s--) {
+            int row = segments[s].findRow(wid);
+            if (row != -1) {
+                segments[s].delete(row);
+                hot.uncountTags(segments[s].getMessage(row), segments[s].getDate(row));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * getWeet: return the weet with the given id, looking in the hot segment
+     * first, or null if there isn't one.
+     *
+     * Algorithm Complexity: O(k + s log n)
+     * where k is the cost of WeetStore.getWeet
+     * where s is the number of segments
+     * where n is the number of weets in a segment
+     *
+     */
+
+    public Weet getWeet(int wid) {
+        Weet weet = hot.getWeet(wid);
+        if (weet != null) {
+            return weet;
+        }
+        return findSealed(wid);
+    }
+
+    /**
+     * getWeets: return every weet, with the most recent first.
+     *
+     * Algorithm Complexity: O(n * s)
+     * where n is the number of weets
+     * where s is the number of segments
+     *
+     */
+
+    public Weet[] getWeets() {
+        Weet[][] lists = new Weet[segmentCount + 1][];
+        lists[0] = hot.getWeets();
+        for (int s=0; s<segmentCount; s++) {
+            lists[s + 1] = readRows(segments[s], 0, segments[s].size());
+        }
+        return mergeNewestFirst(lists);
+    }
+
+    /**
+     * getWeetsByUser: return every weet by the user, with the most recent
+     * first. Only the user id column of each segment is read to find them.
+     *
+     * Algorithm Complexity: O(n * s)
+     * where n is the number of weets
+     * where s is the number of segments
+     *
+     */
+
+    public Weet[] getWeetsByUser(User usr) {
+        final int userId = usr.getId();
+        Weet[][] lists = new Weet[segmentCount + 1][];
+        lists[0] = hot.getWeetsByUser(usr);
+        for (int s=0; s<segmentCount; s++) {
+            final WeetSegment segment = segments[s];
+            lists[s + 1] = readRows(segment, 0, segment.size(), row -> segment.getUserId(row) == userId);
+        }
+        return mergeNewestFirst(lists);
+    }
+
+    /**
+     * getWeetsContaining: return every weet containing the query, with the
+     * most recent first, or null if none do, as WeetStore does. The messages
+     * in the segments are searched as bytes once inflated.
+     *
+     * Algorithm Complexity: O(b)
+     * where b is the number of bytes in every message
+     *
+     */
+
+    public Weet[] getWeetsContaining(String query) {
+        final byte[] queryBytes = query.getBytes(StandardCharsets.UTF_8);
+        Weet[][] lists = new Weet[segmentCount + 1][];
+        Weet[] hotWeets = hot.getWeetsContaining(query);
+        lists[0] = hotWeets == null ? new Weet[0] : hotWeets;
+        for (int s=0; s<segmentCount; s++) {
+            final WeetSegment segment = segments[s];
+            lists[s + 1] = readRows(segment, 0, segment.size(), row -> segment.messageContains(row, queryBytes));
+        }
+        Weet[] weets = mergeNewestFirst(lists);
+        return weets.length == 0 ? null : weets;
+    }
+
+    /**
+     * getWeetsOn: return every weet made on the same day as the given date,
+     * with the most recent first. Segments outside the day are skipped, and
+     * the day is found in the rest with a binary search.
+     *
+     * Algorithm Complexity: O(k + s log n + m)
+     * where k is the cost of WeetStore.getWeetsOn
+     * where s is the number of segments
+     * where n is the number of weets in a segment
+     * where m is the number of weets returned
+     *
+     */
+
+    public Weet[] getWeetsOn(Date dateOn) {
+        // the day in the default time zone, as WeetStore compares the dates
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(dateOn);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long dayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        long dayEnd = calendar.getTimeInMillis();
+        Weet[][] lists = new Weet[segmentCount + 1][];
+        lists[0] = hot.getWeetsOn(dateOn);
+        for (int s=0; s<segmentCount; s++) {
+            WeetSegment segment = segments[s];
+            if (segment.getMaxTime() < dayStart || segment.getMinTime() >= dayEnd) {
+                lists[s + 1] = new Weet[0];
+            } else {
+                lists[s + 1] = readRows(segment, segment.countBefore(dayStart), segment.countBefore(dayEnd));
+            }
+        }
+        return mergeNewestFirst(lists);
+    }
+
+    /**
+     * getWeetsBefore: return every weet made before the given date, with the
+     * most recent first. Segments starting after the date are skipped.
+     *
+     * Algorithm Complexity: O(k + s log n + m)
+     * where k is the cost of WeetStore.getWeetsBefore
+     * where s is the number of segments
+     * where n is the number of weets in a segment
+     * where m is the number of weets returned
+     *
+     */
+
+    public Weet[] getWeetsBefore(Date dateBefore) {
+        long before = dateBefore.getTime();
+        Weet[][] lists = new Weet[segmentCount + 1][];
+        lists[0] = hot.getWeetsBefore(dateBefore);
+        for (int s=0; s<segmentCount; s++) {
+            WeetSegment segment = segments[s];
+            if (segment.getMinTime() >= before) {
+                lists[s + 1] = new Weet[0];
+            } else {
+                lists[s + 1] = readRows(segment, 0, segment.countBefore(before));
+            }
+        }
+        return mergeNewestFirst(lists);
+    }
+
+    public String[] getTrending() {
+        return hot.getTrending();
+    }
+
+    /**
+     * Methods used to monitor the tiers: the number of hot weets, the number
+     * of segments and the live weets in them, the bytes of the segment files,
+     * and an estimate of the heap used by the hot segment and the segments.
+     *
+     * Algorithm Complexity: O(s)
+     * where s is the number of segments
+     *
+     */
+
+    public int getHotSize() {
+        return hot.getSize();
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getSealedSize() {
+        long sealed = 0;
+        for (int s=0; s<segmentCount; s++) {
+            sealed += segments[s].getLiveCount();
+        }
+        return sealed;
+    }
+
+    public long getSegmentBytes() {
+        long bytes = 0;
+        for (int s=0; s<segmentCount; s++) {
+            bytes += segments[s].getFileBytes();
+        }
+        return bytes;
+    }
+
+    public long getHeapMemory() {
+        long memory = hot.getIndexMemory() + hot.getTextMemory() + 16L + 4L * segments.length + blockCache.getHeapMemory();
+        for (int s=0; s<segmentCount; s++) {
+            memory += segments[s].getHeapMemory();
+        }
+        return memory;
+    }
+
+    /**
+     * close: close the segments, delete their files and release the Inflater
+     * and buffers they shared.
+     *
+     */
+
+    public void close() throws IOException {
+        for (int s=0; s<segmentCount; s++) {
+            segments[s].close();
+            Files.deleteIfExists(segments[s].getFile());
+            segments[s] = null;
+        }
+        segmentCount = 0;
+        blockCache.release();
+    }
+
+    /**
+     * RowFilter: used to pick the rows of a segment returned by readRows.
+     *
+     */
+    private interface RowFilter {
+        boolean matches(int row);
+    }
+
+    // find a weet that has been sealed, newest segment first
+    private Weet findSealed(int wid) {
+        for (int s=segmentCount-1; s>=0; s--) {
+            int row = segments[s].findRow(wid);
+            if (row != -1) {
+                return segments[s].getWeet(row);
+            }
+        }
+        return null;
+    }
+
+    // the live rows from start up to end, most recent first
+    private static Weet[] readRows(WeetSegment segment, int start, int end) {
+        return readRows(segment, start, end, null);
+    }
+
+    // the live rows from start up to end that match the filter, most recent first
+    private static Weet[] readRows(WeetSegment segment, int start, int end, RowFilter filter) {
+        Weet[] temp = new Weet[end - start];
+        int weet_count = 0;
+        for (int row=end-1; row>=start; row--) {
+            if (!segment.isDeleted(row) && (filter == null || filter.matches(row))) {
+                temp[weet_count++] = segment.getWeet(row);
+            }
+        }
+        Weet[] weets = new Weet[weet_count];
+        System.arraycopy(temp, 0, weets, 0, weet_count);
+        return weets;
+    }
+
+    // merge lists that are each sorted with the most recent first
+    private static Weet[] mergeNewestFirst(Weet[][] lists) {
+        int total = 0;
+        int nonEmpty = 0;
+        Weet[] only = null;
+        for (int i=0; i<lists.length; i++) {
+            total += lists[i].length;
+            if (lists[i].length > 0) {
+                nonEmpty++;
+                only = lists[i];
+            }
+        }
+        if (nonEmpty == 0) {
+            return new Weet[0];
+        }
+        if (nonEmpty == 1) {
+            return only;
+        }
+        Weet[] merged = new Weet[total];
+        int[] positions = new int[lists.length];
+        for (int k=0; k<total; k++) {
+            // take the most recent of the heads of the lists
+            int best = -1;
+            long bestTime = 0;
+            for (int i=0; i<lists.length; i++) {
+                if (positions[i] < lists[i].length) {
+                    long time = lists[i][positions[i]].getDateWeeted().getTime();
+                    if (best == -1 || time > bestTime) {
+                        best = i;
+                        bestTime = time;
+                    }
+                }
+            }
+            merged[k] = lists[best][positions[best]++];
+        }
+        return merged;
+    }
+}
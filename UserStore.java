@@ -25,44 +25,110 @@
  * uses more space than other algorithms, but as I explained about, that is not
  * to much of an issue.
  *
- * 
+ * Searches by name are cached with a QueryCache, as the same few queries are
+ * searched for most of the time. Adding, removing or renaming a user only
+ * invalidates the cached results for queries that match their name.
+ *
+ * Many users share the same name, so rather than keeping a User object and a
+ * String for every user, each bucket keeps the user's id, the id given to
+ * their name by a SymbolTable and the date they joined, and a new User is made
+ * when one is returned. The text of each different name is only kept once, as
+ * UTF-8 bytes in a TextArena. The lower case version of each name is given an
+ * id as well, so a search only has to check each different name once and then
+ * compare ids for every user.
+ *
+ * This means getUser, and every method returning users, doesn't return the
+ * User given to addUser but an equal one made from the bucket, so users
+ * should be compared by id rather than with ==. The User made by getUser is
+ * kept in its bucket by a SoftReference and returned again, by getUser and by
+ * anything else returning that user, until the garbage collector needs the
+ * memory or the user is renamed. The other methods reuse a kept User but
+ * don't keep the ones they make, so going through every user doesn't give
+ * every bucket a reference.
+ *
+ * The users are also kept in a JoinDateIndex, sorted by the date they joined,
+ * so the users who joined before, after or between dates can be found with a
+ * binary search, and the dashboards can count signups per day or week without
+ * going through every user. As the index is already in order, getUsers reads
+ * the users straight from it rather than sorting them, and getUsersView gives
+ * a read-only List of every user without copying anything.
+ *
+ * Most lookups for ids that don't exist, such as the duplicate check when a
+ * user is added, can optionally be answered by a BloomFilter of the ids
+ * without going through the hash table at all.
+ *
  */
 
 package uk.ac.warwick.java.cs126.services;
 
 import uk.ac.warwick.java.cs126.models.User;
 
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.Date;
+import java.util.List;
 
 public class UserStore implements IUserStore {
 
+    /**
+     * UserVisitor: called by forEachUser for each user.
+     *
+     */
+    public interface UserVisitor {
+        void visit(int uid, int name, long dateJoined);
+    }
+
+    // states of a name in a search, other than 0 for not checked yet
+    private static final byte MATCH = 1;
+    private static final byte NO_MATCH = 2;
 
     /**
      * Bucket: Class used in the hash table as the bucket. Implimented as a linked
      * list, with a bucket linking to the next bucket along in the chain.
-     * Buckets are added to the end of the chain.
+     * Buckets are added to the end of the chain, or to the front when the id
+     * filter shows the id is new, as the chain doesn't need checking.
      *
      */
-    private class Bucket<User> {
-        // bucket stores the user and the next bucket in the list
-        public User user;
+    private class Bucket {
+        // bucket stores the user's id, name id and date joined
+        public int id;
+        public int name;
+        public long dateJoined;
+        // the User last made by getUser, until the garbage collector clears it or they are renamed
+        public volatile SoftReference<User> cached;
         // will be null if last bucket in list
-        public Bucket<User> next;
+        public Bucket next;
 
-        public Bucket(User user, Bucket<User> next) {
-            this.user = user;
-            this.next = next;
+        public Bucket(int id, int name, long dateJoined) {
+            this.id = id;
+            this.name = name;
+            this.dateJoined = dateJoined;
         }
     }
 
-    private Bucket<User>[] table;
+    private Bucket[] table;
     private int tableCapacity;
     private int tableSize;
+    // names gives every name, and the lower case of every name, an id
+    private SymbolTable names;
+    // lowerNames[id] is the id of the lower case version of the name with the id
+    private int[] lowerNames;
+    // joinDates keeps the user ids sorted by date joined
+    private JoinDateIndex joinDates;
+    // idFilter holds every id added, if enabled, so missing ids can be ruled out quickly
+    private BloomFilter idFilter;
+    // searchCache holds the results of recent getUsersContaining queries, keyed in lower case
+    private QueryCache<User[]> searchCache;
 
     public UserStore() {
         tableCapacity = 130147;
         table = new Bucket[tableCapacity];
         tableSize = 0;
+        names = new SymbolTable();
+        lowerNames = new int[1024];
+        joinDates = new JoinDateIndex();
+        searchCache = new QueryCache<>(256);
     }
 
     /**
@@ -70,35 +136,121 @@ public class UserStore implements IUserStore {
      * true if succesfully added (not already in the table) and false if not
      * (already in the table).
      *
-     * Algorithm Complexity: O(k) + O(k) = O(k)
+     * Algorithm Complexity: O(k) + O(c) = O(k), or O(c) if the id filter shows the id is new
      * where k is the number of bucket in list (On average is tableSize/tableCapacity)
+     * where c is the number of cached searches
      *
      */
 
     public boolean addUser(User usr) {
-        // check if the user exists already in the table
-        if (getUser(usr.getId()) != null) {
+        if (!insertUser(usr)) {
             return false;
         }
-        // create a bucket for the new user
-        Bucket<User> userBucket = new Bucket<>(usr, null);
+        // the cached searches matching the name are now out of date
+        searchCache.invalidateMatching(usr.getName().toLowerCase());
+        return true;
+    }
+
+    /**
+     * addUsers: add the first count users in the array, in order, setting
+     * added[i] to what addUser would have returned for users[i]. This is used
+     * to load users in batches, as the cached searches only have to be checked
+     * once for the whole batch. Returns the number of users added.
+     *
+     * Algorithm Complexity: O(bk) + O(c * b)
+     * where b is the number of users in the batch
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     * where c is the number of cached searches
+     *
+     */
+
+    public int addUsers(User[] users, int count, boolean[] added) {
+        String[] addedNames = new String[count];
+        int added_count = 0;
+        for (int i=0; i<count; i++) {
+            added[i] = insertUser(users[i]);
+            if (added[i]) {
+                addedNames[added_count++] = users[i].getName().toLowerCase();
+            }
+        }
+        // the cached searches matching any of the names are now out of date
+        searchCache.invalidateMatchingAny(addedNames, added_count);
+        return added_count;
+    }
+
+    // add the user to the hash table and join date index, returning false if the id is already used
+    private boolean insertUser(User usr) {
         // calculate the hash and get the head bucket
-        int hash = usr.getId() % tableCapacity;
-        Bucket<User> bucket = table[hash];
-        // add the bucket to the list
+        int uid = usr.getId();
+        int hash = uid % tableCapacity;
+        Bucket bucket = table[hash];
+        if (idFilter != null && !idFilter.mightContain(uid)) {
+            // the id is definitely new, so the bucket can go at the front of the list
+            bucket = null;
+        } else if (bucket != null) {
+            // find the end of the list, checking the user doesn't already exist
+            while (true) {
+                if (bucket.id == uid) {
+                    return false;
+                }
+                if (bucket.next == null) {
+                    break;
+                }
+                bucket = bucket.next;
+            }
+        }
+        // create a bucket for the new user and add it to the list
+        Bucket userBucket = new Bucket(uid, internName(usr.getName()), usr.getDateJoined().getTime());
         if (bucket == null) {
+            userBucket.next = table[hash];
             table[hash] = userBucket;
         } else {
-            while (bucket.next != null) {
-                bucket = bucket.next;
-            }
             bucket.next = userBucket;
         }
+        if (idFilter != null) {
+            idFilter.put(uid);
+        }
         // incease the table size by one
         tableSize++;
+        joinDates.add(userBucket.dateJoined, userBucket.id);
         return true;
     }
 
+    /**
+     * enableIdFilter: put a Bloom filter in front of the hash table, made for
+     * the expected number of users with the given false positive rate. Looking
+     * up, adding, removing or renaming a user whose id is not in the table is
+     * then usually O(1), without going through a list of buckets. The ids
+     * already in the table are added to the filter.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the number of users in the table
+     *
+     */
+
+    public void enableIdFilter(long expectedUsers, double falsePositiveRate) {
+        enableIdFilter(new BloomFilter(expectedUsers, falsePositiveRate));
+    }
+
+    public void enableIdFilter(BloomFilter filter) {
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                filter.put(bucket.id);
+                bucket = bucket.next;
+            }
+        }
+        idFilter = filter;
+    }
+
+    public void disableIdFilter() {
+        idFilter = null;
+    }
+
+    public BloomFilter getIdFilter() {
+        return idFilter;
+    }
+
     /**
      * getUser: method used to return a user from the hash table given the id
      * of the user.
@@ -109,13 +261,17 @@ public class UserStore implements IUserStore {
      */
 
     public User getUser(int uid) {
+        // most ids that aren't in the table can be ruled out without looking
+        if (idFilter != null && !idFilter.mightContain(uid)) {
+            return null;
+        }
         // calculate the hash and retrive the head bucket from the table
         int hash = uid % tableCapacity;
-        Bucket<User> bucket = table[hash];
+        Bucket bucket = table[hash];
         // iterate through list of buckets
         while (bucket != null) {
-            if (bucket.user.getId() == uid) {
-                return bucket.user;
+            if (bucket.id == uid) {
+                return toCachedUser(bucket);
             }
             bucket = bucket.next;
         }
@@ -123,96 +279,397 @@ public class UserStore implements IUserStore {
         return null;
     }
 
+    /**
+     * removeUser: remove the user with the given id from the hash table,
+     * returning true if the user was removed and false if there was no user
+     * with that id. The bucket is unlinked from its list straight away so the
+     * list does not get any longer for later lookups.
+     *
+     * Only the user is removed. Their weets and follow relationships are kept
+     * in the WeetStore and FollowerStore, which the UserStore knows nothing
+     * about, so they stay there until removed with removeWeet and
+     * removeFollower, for example for each of getWeetsByUser, getFollowers
+     * and getFollows of the user.
+     *
+     * Algorithm Complexity: O(k) + O(n) = O(n)
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     * where n is the number of users, to remove them from the join date index
+     *
+     */
+
+    public boolean removeUser(int uid) {
+        if (idFilter != null && !idFilter.mightContain(uid)) {
+            return false;
+        }
+        // calculate the hash and retrive the head bucket from the table
+        int hash = uid % tableCapacity;
+        Bucket bucket = table[hash];
+        Bucket previous = null;
+        // iterate through list of buckets, keeping track of the previous one
+        while (bucket != null) {
+            if (bucket.id == uid) {
+                // unlink the bucket from the list
+                if (previous == null) {
+                    table[hash] = bucket.next;
+                } else {
+                    previous.next = bucket.next;
+                }
+                tableSize--;
+                joinDates.remove(bucket.dateJoined, uid);
+                searchCache.invalidateMatching(names.get(lowerNames[bucket.name]));
+                return true;
+            }
+            previous = bucket;
+            bucket = bucket.next;
+        }
+        // no users found in the table with the given id.
+        return false;
+    }
+
+    /**
+     * updateUserName: change the name of the user with the given id. The user
+     * keeps their id and date joined. Returns true if the user was updated and
+     * false if there is no user with that id.
+     *
+     * Algorithm Complexity: O(k)
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     *
+     */
+
+    public boolean updateUserName(int uid, String name) {
+        if (idFilter != null && !idFilter.mightContain(uid)) {
+            return false;
+        }
+        // calculate the hash and retrive the head bucket from the table
+        int hash = uid % tableCapacity;
+        Bucket bucket = table[hash];
+        while (bucket != null) {
+            if (bucket.id == uid) {
+                // searches matching either the old or the new name are out of date
+                searchCache.invalidateMatching(names.get(lowerNames[bucket.name]));
+                searchCache.invalidateMatching(name.toLowerCase());
+                // change the name in the bucket, keeping the date they joined
+                bucket.name = internName(name);
+                bucket.cached = null;
+                return true;
+            }
+            bucket = bucket.next;
+        }
+        return false;
+    }
+
     /**
      * getUsers: retrive and return all of the users from the table. The array
-     * returned is sorted by recently joined users being at the start.
+     * returned is sorted by recently joined users being at the start. The ids
+     * are read in order from the join date index, so nothing is sorted.
      *
-     * Algorithm Complexity: O(nk) + O(n logn) = O(n logn)
+     * Algorithm Complexity: O(nk)
      * where n is the number users in the table
      * where k is the number of buckets in list (On average is tableSize/tableCapacity)
      *
      */
 
     public User[] getUsers() {
-        // create an empty array with size equal to num of users
-        User[] users = new User[tableSize];
-        int cur_index = 0;
-        // iterate through the hash table, and then the list of buckets
-        for (int i=0; i<tableCapacity; i++) {
-            // get the head bucket at each table index
-            Bucket<User> bucket = table[i];
-            while (bucket != null) {
-                // add the user to the array from each bucket
-                users[cur_index++] = bucket.user;
-                bucket = bucket.next;
+        return toUsers(joinDates.all());
+    }
+
+    /**
+     * getUsersView: return a read-only List of every user, with the most
+     * recently joined first, in the same order as getUsers. The List is a view
+     * of the store rather than a copy, so it changes as users are added and
+     * removed, and each User is only made when it is read.
+     *
+     * Algorithm Complexity: O(1), and O(k) for each user read
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     *
+     */
+
+    public List<User> getUsersView() {
+        return new AbstractList<User>() {
+            public User get(int index) {
+                return toUser(findBucket(joinDates.uidAt(index)));
             }
-        }
-        // sort the array by date joined and return it
-        sort(users, tableSize);
-        return users;
+
+            public int size() {
+                return joinDates.size();
+            }
+        };
     }
 
     /**
      * getUsersContaining: return an array of users who's name conatins the
      * given query, sorted such that the most recently joined user is first.
+     * Results are kept in the searchCache so that repeated queries do not have
+     * to go through every user again.
      *
-     * Algorithm Complexity: O(n logn) + O(n) + O(m) = O(n logn)
+     * Algorithm Complexity: O(m) if cached, otherwise O(n) + O(d) + O(m logm)
      * where n is the number users in the table
+     * where d is the number of different names
      * where m is the number of users' names matching the query
      *
      */
 
     public User[] getUsersContaining(String query) {
-        // get all the users from the table in joinDate order
-        User[] allUsers = getUsers();
+        String lowerQuery = query.toLowerCase();
+        // check if the query has been searched for recently
+        User[] cached = searchCache.get(lowerQuery);
+        if (cached == null) {
+            cached = findUsersContaining(lowerQuery);
+            searchCache.put(lowerQuery, cached);
+        }
+        // return a copy so the cached array can't be changed
+        User[] users = new User[cached.length];
+        for (int i=0; i<cached.length; i++) {
+            users[i] = cached[i];
+        }
+        return users;
+    }
+
+    /**
+     * getSearchCache: return the cache used by getUsersContaining, so that its
+     * hit, miss and eviction statistics can be read.
+     *
+     */
+
+    public QueryCache<User[]> getSearchCache() {
+        return searchCache;
+    }
+
+    // go through every user to find the ones whose name contains the lower case query
+    private User[] findUsersContaining(String lowerQuery) {
+        byte[] queryBytes = lowerQuery.getBytes(StandardCharsets.UTF_8);
+        // whether each lower case name matches, worked out the first time it is seen
+        byte[] matches = new byte[names.size()];
+        TextArena text = names.getArena();
         User[] tempUsers = new User[tableSize];
         int users_count = 0;
-        // iterate through the users in allUsers, checking if they match the query
-        for (int i=0; i<tableSize; i++) {
-            String name = allUsers[i].getName().toLowerCase();
-            if (name.contains(query.toLowerCase())) {
-                tempUsers[users_count++] = allUsers[i];
+        // iterate through the hash table, and then the list of buckets
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                int lower = lowerNames[bucket.name];
+                if (matches[lower] == 0) {
+                    matches[lower] = text.contains(names.getHandle(lower), queryBytes) ? MATCH : NO_MATCH;
+                }
+                if (matches[lower] == MATCH) {
+                    tempUsers[users_count++] = toUser(bucket);
+                }
+                bucket = bucket.next;
             }
         }
-        // remove the null elements from the array and return
+        // remove the null elements from the array, sort by date joined and return
         User[] users = new User[users_count];
         for (int j=0; j<users_count; j++) {
             users[j] = tempUsers[j];
         }
+        sort(users, users_count);
         return users;
     }
 
+    // give the name and its lower case version ids, returning the id of the name
+    private int internName(String name) {
+        int id = names.intern(name);
+        int lower = names.intern(name.toLowerCase());
+        // make room in lowerNames for the new ids
+        int name_total = names.size();
+        if (name_total > lowerNames.length) {
+            int[] temp = new int[Math.max(lowerNames.length * 2, name_total)];
+            for (int i=0; i<lowerNames.length; i++) {
+                temp[i] = lowerNames[i];
+            }
+            lowerNames = temp;
+        }
+        lowerNames[id] = lower;
+        lowerNames[lower] = lower;
+        return id;
+    }
+
+    // return the User kept in the bucket, or make one from the fields kept in the bucket
+    private User toUser(Bucket bucket) {
+        SoftReference<User> cached = bucket.cached;
+        User user = cached == null ? null : cached.get();
+        if (user == null) {
+            user = new User(names.get(bucket.name), bucket.id, new Date(bucket.dateJoined));
+        }
+        return user;
+    }
+
+    // the same as toUser, but keep the User it makes in the bucket for the next lookup
+    private User toCachedUser(Bucket bucket) {
+        SoftReference<User> cached = bucket.cached;
+        User user = cached == null ? null : cached.get();
+        if (user == null) {
+            user = new User(names.get(bucket.name), bucket.id, new Date(bucket.dateJoined));
+            bucket.cached = new SoftReference<>(user);
+        }
+        return user;
+    }
+
     /**
      * getUsersJoinedBefore: return an array of the users joined before the
      * given date, sorted such that the most recently joined user is first in
      * the list.
      *
-     * Algorithm Complexity: O(n logn) + O(n) + O(r) = O(n logn)
+     * Algorithm Complexity: O(log n) + O(r k) = O(log n + r)
      * where n is the number users in the table
      * where r is the number of users joined before dateBefore
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
      *
      */
 
     public User[] getUsersJoinedBefore(Date dateBefore) {
-        // get all users in joinDate order
-        User[] allUsers = getUsers();
-        User[] tempUsers = new User[tableSize];
-        int user_count = 0;
-        // iterate through the users in allUsers, checking if they joined before dateBefore
-        for (int i=0; i<tableSize; i++) {
-            Date joinDate = allUsers[i].getDateJoined();
-            if (joinDate.compareTo(dateBefore) < 0) {
-                tempUsers[user_count++] = allUsers[i];
-            }
-        }
-        // remove the null elements from the array and return
-        User[] users = new User[user_count];
-        for (int j=0; j<user_count; j++) {
-            users[j] = tempUsers[j];
+        return toUsers(joinDates.before(dateBefore.getTime()));
+    }
+
+    /**
+     * getUsersJoinedAfter: return an array of the users joined after the given
+     * date, sorted such that the most recently joined user is first.
+     *
+     * Algorithm Complexity: O(log n) + O(r k) = O(log n + r)
+     * where n is the number users in the table
+     * where r is the number of users joined after dateAfter
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     *
+     */
+
+    public User[] getUsersJoinedAfter(Date dateAfter) {
+        return toUsers(joinDates.after(dateAfter.getTime()));
+    }
+
+    /**
+     * getUsersJoinedBetween: return an array of the users joined on or after
+     * dateFrom and before dateTo, sorted such that the most recently joined
+     * user is first.
+     *
+     * Algorithm Complexity: O(log n) + O(r k) = O(log n + r)
+     * where n is the number users in the table
+     * where r is the number of users joined in the range
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     *
+     */
+
+    public User[] getUsersJoinedBetween(Date dateFrom, Date dateTo) {
+        return toUsers(joinDates.between(dateFrom.getTime(), dateTo.getTime()));
+    }
+
+    /**
+     * getSignupHistogram: count the users that joined in each interval of
+     * intervalMillis milliseconds, starting at dateFrom and ending at dateTo.
+     * See JoinDateIndex.histogram.
+     *
+     * Algorithm Complexity: O(b log n)
+     * where b is the number of intervals
+     * where n is the number users in the table
+     *
+     */
+
+    public int[] getSignupHistogram(Date dateFrom, Date dateTo, long intervalMillis) {
+        return joinDates.histogram(dateFrom.getTime(), dateTo.getTime(), intervalMillis);
+    }
+
+    /**
+     * countUsersJoinedBefore: return the number of users joined before the
+     * given date, without making the users.
+     *
+     * Algorithm Complexity: O(log n)
+     * where n is the number users in the table
+     *
+     */
+
+    public int countUsersJoinedBefore(Date dateBefore) {
+        return joinDates.countBefore(dateBefore.getTime());
+    }
+
+    // make the Users with the given ids, in the same order
+    private User[] toUsers(int[] uids) {
+        User[] users = new User[uids.length];
+        for (int i=0; i<uids.length; i++) {
+            users[i] = toUser(findBucket(uids[i]));
         }
         return users;
     }
 
+    // find the bucket of a user known to be in the table
+    private Bucket findBucket(int uid) {
+        Bucket bucket = table[uid % tableCapacity];
+        while (bucket.id != uid) {
+            bucket = bucket.next;
+        }
+        return bucket;
+    }
+
+    /**
+     * forEachUser: call the visitor for every user, with the earliest joined
+     * first, without making a User for each. The name is given as its id in
+     * the SymbolTable returned by getNames, so it can be written out without
+     * making a String. Used to export the users.
+     *
+     * Algorithm Complexity: O(nk)
+     * where n is the number users in the table
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     *
+     */
+
+    public void forEachUser(final UserVisitor visitor) {
+        joinDates.forEach((uid, time) -> visitor.visit(uid, findBucket(uid).name, time));
+    }
+
+    SymbolTable getNames() {
+        return names;
+    }
+
+    /**
+     * Methods used to monitor the hash table: the number of users, the average
+     * and longest length of the lists of buckets, and an estimate of the memory
+     * used by the table, buckets, name ids, join date index and id filter in
+     * bytes. The estimate assumes 4 byte references and 40 byte buckets, as on
+     * a 64 bit JVM with compressed references, not counting the Users kept by
+     * getUser. getTextMemory is the memory used by the arena holding the names,
+     * and getNameCount the number of different names and lower case names.
+     *
+     * Algorithm Complexity: O(1), except getLongestChain which is O(c)
+     * where c is the table capacity, and getTextMemory which is O(s)
+     * where s is the number of slabs in the arena
+     *
+     */
+
+    public int getSize() {
+        return tableSize;
+    }
+
+    public double getLoadFactor() {
+        return (double) tableSize / tableCapacity;
+    }
+
+    public int getLongestChain() {
+        int longest = 0;
+        for (int i=0; i<tableCapacity; i++) {
+            int length = 0;
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                length++;
+                bucket = bucket.next;
+            }
+            if (length > longest) {
+                longest = length;
+            }
+        }
+        return longest;
+    }
+
+    public long getIndexMemory() {
+        return 16L + 4L * tableCapacity + 40L * tableSize + 16L + 4L * lowerNames.length + names.getMemory()
+            + joinDates.getMemory() + (idFilter == null ? 0 : idFilter.getMemory());
+    }
+
+    public long getTextMemory() {
+        return names.getArena().getMemory();
+    }
+
+    public int getNameCount() {
+        return names.size();
+    }
+
     /**
      * Methods for the sorting algorithm used to sort the users by date joined
      *
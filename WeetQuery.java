@@ -0,0 +1,180 @@
+/**
+ * WeetQuery describes a search of a WeetStore that the IWeetStore methods
+ * can't do on their own, such as the weets by a user containing a word before
+ * a date, so it doesn't need getWeetsByUser followed by filtering and sorting
+ * by hand. Each method adds a condition and returns the query, so they can be
+ * chained, and a weet has to match every condition to be returned:
+ *
+ *     store.query(new WeetQuery().byUser(42).withWord("#java").before(date).limit(20));
+ *
+ * withWord matches a weet with the word in its message, where the words are
+ * split on whitespace, so it includes the punctuation next to it and can be a
+ * tag. It is answered from an index of the words. containing matches any part
+ * of the message, the same as getWeetsContaining, which can't be looked up,
+ * so it is only checked on the weets the other conditions find.
+ *
+ * Making a query doesn't look at the store, so the same query can be run
+ * again, or on several stores. See WeetStore.query for how it is run.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.util.Date;
+
+public class WeetQuery {
+
+    private boolean hasUser;
+    private int userId;
+    private String[] words = new String[2];
+    private int wordCount;
+    private String[] texts = new String[2];
+    private int textCount;
+    // the times from (inclusive) and before (exclusive), in milliseconds
+    private long from = Long.MIN_VALUE;
+    private long before = Long.MAX_VALUE;
+    private int limit = Integer.MAX_VALUE;
+
+    /**
+     * byUser: only weets by the user with the id.
+     *
+     */
+
+    public WeetQuery byUser(int uid) {
+        hasUser = true;
+        userId = uid;
+        return this;
+    }
+
+    /**
+     * withWord: only weets with the word, split on whitespace, in their
+     * message. Adding several words means a weet must have all of them.
+     *
+     */
+
+    public WeetQuery withWord(String word) {
+        if (word.isEmpty()) {
+            throw new IllegalArgumentException("word must not be empty");
+        }
+        if (wordCount == words.length) {
+            words = grow(words);
+        }
+        words[wordCount++] = word;
+        return this;
+    }
+
+    /**
+     * containing: only weets with the text anywhere in their message. Adding
+     * several means a weet must contain all of them.
+     *
+     */
+
+    public WeetQuery containing(String text) {
+        if (textCount == texts.length) {
+            texts = grow(texts);
+        }
+        texts[textCount++] = text;
+        return this;
+    }
+
+    /**
+     * from: only weets made at or after the date.
+     *
+     */
+
+    public WeetQuery from(Date date) {
+        from = date.getTime();
+        return this;
+    }
+
+    /**
+     * before: only weets made before the date, the same as getWeetsBefore.
+     *
+     */
+
+    public WeetQuery before(Date date) {
+        before = date.getTime();
+        return this;
+    }
+
+    /**
+     * limit: return at most this many weets, the most recent that match. The
+     * search stops as soon as it has found them.
+     *
+     */
+
+    public WeetQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative, was " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public boolean hasUser() {
+        return hasUser;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public String getWord(int i) {
+        return words[i];
+    }
+
+    public int getTextCount() {
+        return textCount;
+    }
+
+    public String getText(int i) {
+        return texts[i];
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getBefore() {
+        return before;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder("WeetQuery[");
+        if (hasUser) {
+            builder.append(" user=").append(userId);
+        }
+        for (int i=0; i<wordCount; i++) {
+            builder.append(" word=").append(words[i]);
+        }
+        for (int i=0; i<textCount; i++) {
+            builder.append(" containing=").append(texts[i]);
+        }
+        if (from != Long.MIN_VALUE) {
+            builder.append(" from=").append(from);
+        }
+        if (before != Long.MAX_VALUE) {
+            builder.append(" before=").append(before);
+        }
+        if (limit != Integer.MAX_VALUE) {
+            builder.append(" limit=").append(limit);
+        }
+        return builder.append(" ]").toString();
+    }
+
+    private static String[] grow(String[] array) {
+        String[] temp = new String[array.length * 2];
+        for (int i=0; i<array.length; i++) {
+            temp[i] = array[i];
+        }
+        return temp;
+    }
+}
@@ -0,0 +1,607 @@
+/**
+ * WeetSegment is an immutable, sorted file of weets, used by TieredWeetStore
+ * for older weets that are rarely read. It is memory mapped, so the weets
+ * are read straight from the page cache when they are needed and take no
+ * space on the heap, and the operating system can drop the pages that
+ * aren't being used.
+ *
+ * The weets are sorted by date, earliest first, and the file keeps the ids,
+ * user ids and dates as fixed width columns, so the weets in a date range are
+ * found with a binary search on the dates. The file also keeps the rows in id
+ * order, so getWeet is a binary search too, and the earliest and latest dates
+ * and the smallest and largest ids, so a whole segment can be skipped by a
+ * query that can't match anything in it.
+ *
+ * The messages are the bulk of the file, so they are compressed, in blocks of
+ * 64 weets. Each block is a list of UTF-8 messages, each after its length as
+ * a varint, compressed with a Deflater. Reading a message means inflating its
+ * block, so the last block inflated is kept, as queries usually read the
+ * messages of neighbouring rows one after another.
+ *
+ * The Inflater and the buffers for the inflated block are kept in a
+ * BlockCache. An Inflater holds native memory as well as its heap, so rather
+ * than every segment having its own, a TieredWeetStore gives one BlockCache to
+ * all of its segments: a query reads the segments one at a time, so they can
+ * take turns with the same buffers, and the memory used for reading doesn't
+ * grow with the number of segments. A segment opened on its own makes its own
+ * BlockCache the first time it reads a message and releases it when closed.
+ *
+ * The file can't be changed once written, so removing a weet just marks its
+ * row as deleted in a BitSet on the heap, a tombstone, and the row is skipped
+ * from then on.
+ *
+ * File layout, all big endian:
+ *     magic, version, rows, blocks, min time, max time, min id, max id
+ *     ids[rows], user ids[rows], dates[rows], rows in id order[rows]
+ *     block offsets[blocks + 1]
+ *     blocks: inflated length, then the deflated messages
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class WeetSegment {
+
+    // "WSEG"
+    private static final int MAGIC = 0x57534547;
+    private static final int VERSION = 1;
+    private static final int HEADER = 40;
+    private static final int BLOCK_ROWS = 64;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final int rows;
+    private final int blocks;
+    private final long minTime;
+    private final long maxTime;
+    private final int minId;
+    private final int maxId;
+    // where each column starts in the file
+    private final int idsStart;
+    private final int userIdsStart;
+    private final int datesStart;
+    private final int idOrderStart;
+    private final int blockOffsetsStart;
+    // tombstones for removed rows, made when the first is removed
+    private BitSet deleted;
+    private int deletedCount;
+    // where the blocks are inflated, shared with other segments unless made by this one
+    private BlockCache cache;
+    private final boolean ownsCache;
+
+    /**
+     * BlockCache: the Inflater and buffers used to read messages, and which
+     * block of which segment was last inflated into them. Nothing is allocated
+     * until the first block is read, and release frees it all again, after
+     * which it can still be used. Like the segments it is not thread safe.
+     *
+     */
+    public static class BlockCache {
+        private Inflater inflater;
+        private WeetSegment segment;
+        private int block = -1;
+        private byte[] blockBytes = new byte[0];
+        private byte[] compressed = new byte[0];
+        // where each message of the block starts and ends in blockBytes
+        private final int[] messageStarts = new int[BLOCK_ROWS];
+        private final int[] messageEnds = new int[BLOCK_ROWS];
+
+        /**
+         * getHeapMemory: an estimate of the heap used by the buffers in bytes,
+         * not counting the Inflater's native memory.
+         *
+         */
+
+        public long getHeapMemory() {
+            return 96L + 8L * BLOCK_ROWS + blockBytes.length + compressed.length;
+        }
+
+        /**
+         * release: end the Inflater and drop the buffers.
+         *
+         */
+
+        public void release() {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+            segment = null;
+            block = -1;
+            blockBytes = new byte[0];
+            compressed = new byte[0];
+        }
+    }
+
+    private WeetSegment(Path file, MappedByteBuffer buffer, BlockCache cache) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        this.cache = cache;
+        this.ownsCache = cache == null;
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a weet segment");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported segment version " + buffer.getInt(4));
+        }
+        rows = buffer.getInt(8);
+        blocks = buffer.getInt(12);
+        minTime = buffer.getLong(16);
+        maxTime = buffer.getLong(24);
+        minId = buffer.getInt(32);
+        maxId = buffer.getInt(36);
+        idsStart = HEADER;
+        userIdsStart = idsStart + 4 * rows;
+        datesStart = userIdsStart + 4 * rows;
+        idOrderStart = datesStart + 8 * rows;
+        blockOffsetsStart = idOrderStart + 4 * rows;
+    }
+
+    /**
+     * write: write the first count weets, which must be sorted by date with the
+     * earliest first, to a new segment file and open it, reading its messages
+     * with the given BlockCache, or one of its own if it is null.
+     *
+     * Algorithm Complexity: O(n logn) + O(b)
+     * where n is the number of weets
+     * where b is the number of bytes in their messages
+     *
+     */
+
+    public static WeetSegment write(Path file, Weet[] weets, int count, int compressionLevel) throws IOException {
+        return write(file, weets, count, compressionLevel, null);
+    }
+
+    public static WeetSegment write(Path file, Weet[] weets, int count, int compressionLevel, BlockCache cache)
+            throws IOException {
+        if (count == 0) {
+            throw new IllegalArgumentException("a segment needs at least one weet");
+        }
+        int blockCount = (count + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        // the rows in id order, for getWeet
+        int[] idOrder = new int[count];
+        for (int i=0; i<count; i++) {
+            idOrder[i] = i;
+        }
+        sortById(idOrder, weets, count);
+        // compress the messages a block at a time
+        byte[][] blockData = new byte[blockCount][];
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            byte[] raw = new byte[1024];
+            byte[] out = new byte[1024];
+            for (int b=0; b<blockCount; b++) {
+                int length = 0;
+                for (int i=b*BLOCK_ROWS; i<count && i<(b+1)*BLOCK_ROWS; i++) {
+                    byte[] message = weets[i].getMessage().getBytes(StandardCharsets.UTF_8);
+                    if (length + message.length + 5 > raw.length) {
+                        byte[] temp = new byte[Math.max(raw.length * 2, length + message.length + 5)];
+                        System.arraycopy(raw, 0, temp, 0, length);
+                        raw = temp;
+                    }
+                    length = writeVarInt(raw, length, message.length);
+                    System.arraycopy(message, 0, raw, length, message.length);
+                    length += message.length;
+                }
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                int compressedLength = 4;
+                while (!deflater.finished()) {
+                    if (compressedLength == out.length) {
+                        byte[] temp = new byte[out.length * 2];
+                        System.arraycopy(out, 0, temp, 0, compressedLength);
+                        out = temp;
+                    }
+                    compressedLength += deflater.deflate(out, compressedLength, out.length - compressedLength);
+                }
+                ByteBuffer.wrap(out).putInt(0, length);
+                blockData[b] = new byte[compressedLength];
+                System.arraycopy(out, 0, blockData[b], 0, compressedLength);
+            }
+        } finally {
+            deflater.end();
+        }
+        // the header and columns, then the block offsets
+        long columnsLength = HEADER + 20L * count + 8L * (blockCount + 1);
+        long fileLength = columnsLength;
+        for (int b=0; b<blockCount; b++) {
+            fileLength += blockData[b].length;
+        }
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException("segment of " + fileLength + " bytes is too big to map");
+        }
+        ByteBuffer columns = ByteBuffer.allocate((int) columnsLength);
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (int i=0; i<count; i++) {
+            minId = Math.min(minId, weets[i].getId());
+            maxId = Math.max(maxId, weets[i].getId());
+        }
+        columns.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(blockCount)
+            .putLong(weets[0].getDateWeeted().getTime()).putLong(weets[count-1].getDateWeeted().getTime())
+            .putInt(minId).putInt(maxId);
+        for (int i=0; i<count; i++) {
+            columns.putInt(weets[i].getId());
+        }
+        for (int i=0; i<count; i++) {
+            columns.putInt(weets[i].getUserId());
+        }
+        for (int i=0; i<count; i++) {
+            columns.putLong(weets[i].getDateWeeted().getTime());
+        }
+        for (int i=0; i<count; i++) {
+            columns.putInt(idOrder[i]);
+        }
+        long offset = columnsLength;
+        for (int b=0; b<blockCount; b++) {
+            columns.putLong(offset);
+            offset += blockData[b].length;
+        }
+        columns.putLong(offset);
+        columns.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, columns);
+            for (int b=0; b<blockCount; b++) {
+                writeFully(channel, ByteBuffer.wrap(blockData[b]));
+            }
+            channel.force(false);
+        }
+        return open(file, cache);
+    }
+
+    /**
+     * open: map an existing segment file, reading its messages with the given
+     * BlockCache, or one of its own if it is null.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public static WeetSegment open(Path file) throws IOException {
+        return open(file, null);
+    }
+
+    public static WeetSegment open(Path file, BlockCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("segment " + file + " is too big to map");
+            }
+            // the mapping stays valid after the channel is closed
+            return new WeetSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cache);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * getLiveCount: the number of rows that haven't been removed.
+     *
+     */
+
+    public int getLiveCount() {
+        return rows - deletedCount;
+    }
+
+    public long getMinTime() {
+        return minTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public int getMinId() {
+        return minId;
+    }
+
+    public int getMaxId() {
+        return maxId;
+    }
+
+    public long getFileBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * getHeapMemory: an estimate of the heap used by the segment in bytes. The
+     * mapped file itself isn't on the heap, and neither is a shared BlockCache
+     * counted, as it belongs to whatever shares it.
+     *
+     */
+
+    public long getHeapMemory() {
+        long memory = 96L + (deleted == null ? 0 : 16L + rows / 8);
+        if (ownsCache && cache != null) {
+            memory += cache.getHeapMemory();
+        }
+        return memory;
+    }
+
+    /**
+     * findRow: return the row of the weet with the given id, or -1 if it isn't
+     * in the segment or has been removed.
+     *
+     * Algorithm Complexity: O(log n)
+     * where n is the number of rows
+     *
+     */
+
+    public int findRow(int wid) {
+        if (wid < minId || wid > maxId) {
+            return -1;
+        }
+        int low = 0;
+        int high = rows - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int row = buffer.getInt(idOrderStart + 4 * middle);
+            int id = getId(row);
+            if (id < wid) {
+                low = middle + 1;
+            } else if (id > wid) {
+                high = middle - 1;
+            } else {
+                return isDeleted(row) ? -1 : row;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * countBefore: return the number of rows, removed or not, dated before the
+     * given time. These are the rows from 0 up to the count.
+     *
+     * Algorithm Complexity: O(log n)
+     * where n is the number of rows
+     *
+     */
+
+    public int countBefore(long time) {
+        int low = 0;
+        int high = rows;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getDate(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public int getId(int row) {
+        return buffer.getInt(idsStart + 4 * row);
+    }
+
+    public int getUserId(int row) {
+        return buffer.getInt(userIdsStart + 4 * row);
+    }
+
+    public long getDate(int row) {
+        return buffer.getLong(datesStart + 8 * row);
+    }
+
+    /**
+     * getMessage: return the message of the row, inflating its block if it
+     * isn't the one last used.
+     *
+     * Algorithm Complexity: O(1), or O(s) to inflate the block
+     * where s is the size of a block
+     *
+     */
+
+    public String getMessage(int row) {
+        int b = row / BLOCK_ROWS;
+        BlockCache block = loadBlock(b);
+        int i = row - b * BLOCK_ROWS;
+        return new String(block.blockBytes, block.messageStarts[i], block.messageEnds[i] - block.messageStarts[i],
+            StandardCharsets.UTF_8);
+    }
+
+    public Weet getWeet(int row) {
+        return new Weet(getId(row), getUserId(row), getMessage(row), new Date(getDate(row)));
+    }
+
+    /**
+     * messageContains: return true if the message of the row contains the
+     * UTF-8 bytes of a query, searching the inflated bytes without making a
+     * String.
+     *
+     * Algorithm Complexity: O(c), plus O(s) to inflate the block
+     * where c is the number of bytes in the message
+     * where s is the size of a block
+     *
+     */
+
+    public boolean messageContains(int row, byte[] query) {
+        int b = row / BLOCK_ROWS;
+        BlockCache block = loadBlock(b);
+        byte[] blockBytes = block.blockBytes;
+        int i = row - b * BLOCK_ROWS;
+        int last = block.messageEnds[i] - query.length;
+        for (int p=block.messageStarts[i]; p<=last; p++) {
+            int q = 0;
+            while (q < query.length && blockBytes[p + q] == query[q]) {
+                q++;
+            }
+            if (q == query.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isDeleted(int row) {
+        return deleted != null && deleted.get(row);
+    }
+
+    /**
+     * delete: mark the row as removed. Returns false if it already was.
+     *
+     * Algorithm Complexity: O(1)
+     *
+     */
+
+    public boolean delete(int row) {
+        if (deleted == null) {
+            deleted = new BitSet(rows);
+        }
+        if (deleted.get(row)) {
+            return false;
+        }
+        deleted.set(row);
+        deletedCount++;
+        return true;
+    }
+
+    /**
+     * close: release the BlockCache if it is the segment's own, or stop a
+     * shared one from holding on to the segment.
+     *
+     */
+
+    public void close() {
+        if (cache == null) {
+            return;
+        }
+        if (ownsCache) {
+            cache.release();
+            cache = null;
+        } else if (cache.segment == this) {
+            cache.segment = null;
+            cache.block = -1;
+        }
+    }
+
+    // inflate block b into the cache's buffers, if it isn't already there, and find where each message starts
+    private BlockCache loadBlock(int b) {
+        if (cache == null) {
+            cache = new BlockCache();
+        }
+        if (cache.segment == this && cache.block == b) {
+            return cache;
+        }
+        if (cache.inflater == null) {
+            cache.inflater = new Inflater();
+        }
+        // the buffers are about to be overwritten, so forget what was in them until they are filled
+        cache.segment = null;
+        Inflater inflater = cache.inflater;
+        int offset = (int) buffer.getLong(blockOffsetsStart + 8 * b);
+        int end = (int) buffer.getLong(blockOffsetsStart + 8 * (b + 1));
+        int rawLength = buffer.getInt(offset);
+        int compressedLength = end - offset - 4;
+        if (cache.compressed.length < compressedLength) {
+            cache.compressed = new byte[compressedLength];
+        }
+        if (cache.blockBytes.length < rawLength) {
+            cache.blockBytes = new byte[rawLength];
+        }
+        byte[] compressed = cache.compressed;
+        byte[] blockBytes = cache.blockBytes;
+        buffer.get(offset + 4, compressed, 0, compressedLength);
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < rawLength) {
+                int n = inflater.inflate(blockBytes, inflated, rawLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new UncheckedIOException(new IOException("corrupt block " + b + " in " + file));
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("corrupt block " + b + " in " + file, e));
+        }
+        // each message starts after its length
+        int rowsInBlock = Math.min(BLOCK_ROWS, rows - b * BLOCK_ROWS);
+        int position = 0;
+        for (int i=0; i<rowsInBlock; i++) {
+            int length = 0;
+            int shift = 0;
+            while (true) {
+                byte next = blockBytes[position++];
+                length |= (next & 0x7f) << shift;
+                if (next >= 0) {
+                    break;
+                }
+                shift += 7;
+            }
+            cache.messageStarts[i] = position;
+            position += length;
+            cache.messageEnds[i] = position;
+        }
+        cache.segment = this;
+        cache.block = b;
+        return cache;
+    }
+
+    private static int writeVarInt(byte[] bytes, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    // sort the rows by the id of their weet, using merge sort like the stores
+    private static void sortById(int[] rowOrder, Weet[] weets, int count) {
+        if (count < 2) {
+            return;
+        }
+        int middle = count / 2;
+        int[] left = new int[middle];
+        int[] right = new int[count - middle];
+        System.arraycopy(rowOrder, 0, left, 0, middle);
+        System.arraycopy(rowOrder, middle, right, 0, count - middle);
+        sortById(left, weets, middle);
+        sortById(right, weets, count - middle);
+        int i = 0, j = 0, k = 0;
+        while (i < middle && j < count - middle) {
+            if (weets[left[i]].getId() <= weets[right[j]].getId()) {
+                rowOrder[k++] = left[i++];
+            } else {
+                rowOrder[k++] = right[j++];
+            }
+        }
+        while (i < middle) {
+            rowOrder[k++] = left[i++];
+        }
+        while (j < count - middle) {
+            rowOrder[k++] = right[j++];
+        }
+    }
+}
@@ -4,6 +4,67 @@
  * with storage not being an immediate issue as user experience is the most
  * important thing to increase.
  *
+ * The trending topics are counted as the weets are added, rather than by going
+ * through every weet when getTrending is called. The number of weets using
+ * each tag is kept, so adding or removing a weet only has to update the counts
+ * for the tags in its message. A weet using the same tag twice only counts
+ * once, so repeating a tag can't push it up the trending topics. Tags that no
+ * weet uses any more are dropped lazily: once more than half of the tags are
+ * unused, the tags still in use are given new ids and the rest are freed.
+ *
+ * Searches are cached with a QueryCache, as the same few queries are searched
+ * for most of the time. Adding or removing a weet only invalidates the cached
+ * results for queries that its message contains.
+ *
+ * Rather than keeping the Weet objects given to addWeet, each bucket keeps the
+ * weet's ids and date as numbers and its message as UTF-8 bytes in a
+ * TextArena, and a new Weet is made when one is returned. A weet then takes
+ * about 48 bytes plus its message, instead of about 110 bytes for the Weet,
+ * its Date and its String before the message itself. Searches are done on the
+ * bytes in the arena, so only the weets that match are made into Weets.
+ *
+ * This means getWeet, and every method returning weets, doesn't return the
+ * Weet given to addWeet but an equal one made from the bucket, so weets
+ * should be compared by id rather than with ==. Making a Weet decodes its
+ * message into a new String, so the Weet made by getWeet is kept in its
+ * bucket by a SoftReference and returned again, by getWeet and by anything
+ * else returning that weet, until the garbage collector needs the memory.
+ * The other methods reuse a kept Weet but don't keep the ones they make, so
+ * going through every weet doesn't give every bucket a reference. The
+ * reference is volatile, so threads that only read can share it safely.
+ *
+ * Each tag is given an int id by a SymbolTable, which keeps one copy of the
+ * tag's text in the same arena, and the counts are kept in arrays indexed by
+ * the id. The tags are read straight out of the message without making a
+ * String for each, and getTrending only compares ints.
+ *
+ * Most lookups for ids that don't exist, such as the duplicate check when a
+ * weet is added, can optionally be answered by a BloomFilter of the ids
+ * without going through the hash table at all.
+ *
+ * getWeets has to sort every weet each time it is called, so the store can
+ * also keep a timeline: a RecencyList of the buckets kept in date order as
+ * they are added. Nearly every weet added is the newest, so this is usually
+ * just an append. With the timeline, getWeets and getWeetsBefore don't sort
+ * at all, and getWeetsView gives a read-only List of every weet with the most
+ * recent first, without copying anything.
+ *
+ * Questions like "the weets by this user with this word before this date"
+ * used to mean calling getWeetsByUser, which goes through every weet, then
+ * filtering and sorting the result by hand. query takes a WeetQuery with any
+ * of those conditions and answers it from indexes kept as the weets are
+ * added: a RecencyList of the weets by each user and of the weets using each
+ * word, in a PostingIndex, alongside the timeline for the dates. Every one of
+ * these lists knows exactly how many weets it holds between two dates, in
+ * O(log n), so the query is planned by counting the weets each condition
+ * would give and starting from the list with the fewest. Each weet in it,
+ * most recent first, is then checked against the other conditions, looking
+ * it up in the other lists by its date, and the search stops as soon as the
+ * limit is reached, so a query for the latest few weets never reads the
+ * rest. The word index keeps an entry for every word of every weet, so it is
+ * only made when enableQueryIndexes is called. Without it query still gives
+ * the same answers by checking every weet, like the other searches.
+ *
  */
 
 package uk.ac.warwick.java.cs126.services;
@@ -18,8 +79,13 @@ import java.text.ParseException;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 
 public class WeetStore implements IWeetStore {
@@ -27,29 +93,128 @@ public class WeetStore implements IWeetStore {
     /**
      * Bucket: Class used in the hash table as the bucket. Implimented as a linked
      * list, with a bucket linking to the next bucket along in the chain.
-     * Buckets are added to the end of the chain.
+     * Buckets are added to the end of the chain, or to the front when the id
+     * filter shows the id is new, as the chain doesn't need checking.
      *
      */
-    private class Bucket<Weet> {
-        // bucket stores weet and next bucket in in list
-        public Weet weet;
+    private class Bucket {
+        // bucket stores the weet's fields, with the message kept in the arena
+        public int id;
+        public int userId;
+        public long date;
+        public long message;
+        // the Weet last made by getWeet, until the garbage collector clears it
+        public volatile SoftReference<Weet> cached;
         // will be null if last bucket in list
-        public Bucket<Weet> next;
+        public Bucket next;
 
-        public Bucket(Weet weet, Bucket<Weet> next) {
-            this.weet = weet;
-            this.next = next;
+        public Bucket(int id, int userId, long date, long message) {
+            this.id = id;
+            this.userId = userId;
+            this.date = date;
+            this.message = message;
         }
     }
 
-    private Bucket<Weet>[] table;
+    /**
+     * WeetVisitor: called by forEachWeet for each weet. The message is given
+     * as its handle in the TextArena returned by getText.
+     *
+     */
+    public interface WeetVisitor {
+        void visit(int wid, int userId, long date, long message);
+    }
+
+    /**
+     * BucketFilter: used to pick the buckets to be returned by findWeets.
+     *
+     */
+    private interface BucketFilter {
+        boolean matches(Bucket bucket);
+    }
+
+    /**
+     * QueryPlan: how query will answer a WeetQuery. The weets in the driver
+     * list from start, count of them, are read most recent first, and each is
+     * checked against the user, then the probe lists, smallest first, then
+     * the texts. A plan with no driver can't match anything.
+     *
+     */
+    private class QueryPlan {
+        public RecencyList<Bucket> driver;
+        public String driverName;
+        public int start;
+        public int count;
+        public boolean checkUser;
+        public int userId;
+        public RecencyList<Bucket>[] probes;
+        public int[] probeCounts;
+        public String[] probeNames;
+        public int probeCount;
+        public byte[][] texts;
+        // without the query indexes: the words checked on each message, and whether to read the whole table
+        public String[] words;
+        public byte[][] wordBytes;
+        public boolean scanTable;
+        public long from;
+        public long before;
+    }
+
+    /**
+     * TagCounts: every tag in use with the number of weets using it and the
+     * time it was last used, so the counts from several stores can be added
+     * together.
+     *
+     */
+    public static class TagCounts {
+        public String[] tags;
+        public int[] counts;
+        public long[] lastUsed;
+
+        public TagCounts(String[] tags, int[] counts, long[] lastUsed) {
+            this.tags = tags;
+            this.counts = counts;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private Bucket[] table;
     private int tableCapacity;
     private int tableSize;
+    // text holds the messages and the text of the tags
+    private TextArena text;
+    // tags gives every tag an id, used as the index into tagUses and tagLastUsed
+    private SymbolTable tags;
+    private int[] tagUses;
+    // the number of tags with no weets using them, reclaimed once they are most of the tags
+    private int deadTags;
+    // the ids of the tags already counted for the message being counted
+    private int[] messageTags = new int[16];
+    private long[] tagLastUsed;
+    // idFilter holds every id added, if enabled, so missing ids can be ruled out quickly
+    private BloomFilter idFilter;
+    // timeline holds the buckets in date order, if enabled, so they don't need sorting
+    private RecencyList<Bucket> timeline;
+    // searchCache holds the results of recent getWeetsContaining queries
+    private QueryCache<Weet[]> searchCache;
+    // analytics is told about every weet added, if set
+    private StoreAnalytics analytics;
+    // the weets by each user and using each word, if enabled, for query
+    private PostingIndex<Bucket> userWeets;
+    private PostingIndex<Bucket> wordWeets;
+    // words gives each word used in a message an id, in its own arena so compactText leaves it alone
+    private SymbolTable words;
+    private int[] wordIds = new int[64];
 
     public WeetStore() {
         tableCapacity = 130147;
         table = new Bucket[tableCapacity];
         tableSize = 0;
+        text = new TextArena();
+        tags = new SymbolTable(text);
+        tagUses = new int[1024];
+        tagLastUsed = new long[1024];
+        searchCache = new QueryCache<>(256);
     }
 
     /**
@@ -57,35 +222,661 @@ public class WeetStore implements IWeetStore {
      * succesfully added to the table (does not already exist) and false if not
      * (weets already exists with that id in table).
      *
-     * Algorithm Complexity: O(k) + O(k) = O(k)
+     * Algorithm Complexity: O(k) + O(c) = O(k)
+     * where c is the number of cached searches
      * where k is the number of buckets in list (On average is tableSize/tableCapacity)
      *
      */
 
     public boolean addWeet(Weet weet) {
-        // check if a weet already exists with the given id
-        if (getWeet(weet.getId()) != null) {
+        if (!insertWeet(weet)) {
             return false;
         }
-        // create a bucket for the weet
-        Bucket<Weet> weetBucket = new Bucket<>(weet, null);
+        // the cached searches matching the weet are now out of date
+        searchCache.invalidateMatching(weet.getMessage());
+        return true;
+    }
+
+    /**
+     * addWeets: add the first count weets in the array to the hash table, in
+     * order, setting added[i] to what addWeet would have returned for weets[i].
+     * This is used to load or ingest weets in batches, as the cached searches
+     * only have to be checked once for the whole batch rather than once for
+     * every weet. Returns the number of weets added.
+     *
+     * Algorithm Complexity: O(bk) + O(c * b)
+     * where b is the number of weets in the batch
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     * where c is the number of cached searches
+     *
+     */
+
+    public int addWeets(Weet[] weets, int count, boolean[] added) {
+        String[] messages = new String[count];
+        int added_count = 0;
+        for (int i=0; i<count; i++) {
+            added[i] = insertWeet(weets[i]);
+            if (added[i]) {
+                messages[added_count++] = weets[i].getMessage();
+            }
+        }
+        // the cached searches matching any of the weets are now out of date
+        searchCache.invalidateMatchingAny(messages, added_count);
+        return added_count;
+    }
+
+    /**
+     * insertWeet: add a weet to the hash table and count its tags, returning
+     * false if a weet with the same id is already in the table. The list of
+     * buckets is only gone through once, both to check for the id and to find
+     * the end of the list.
+     *
+     * Algorithm Complexity: O(k) + O(t) = O(k), or O(t) if the id filter shows
+     * the id is new
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     * where t is the number of tags in the weet
+     *
+     */
+
+    private boolean insertWeet(Weet weet) {
         // calculate the hash and get the head bucket
-        int hash = weet.getId() % tableCapacity;
-        Bucket<Weet> bucket = table[hash];
-        // add the bucket to the list
+        int wid = weet.getId();
+        int hash = wid % tableCapacity;
+        Bucket bucket = table[hash];
+        if (idFilter != null && !idFilter.mightContain(wid)) {
+            // the id is definitely new, so the bucket can go at the front of the list
+            bucket = null;
+        } else if (bucket != null) {
+            // find the end of the list, checking a weet with the id doesn't already exist
+            while (true) {
+                if (bucket.id == wid) {
+                    return false;
+                }
+                if (bucket.next == null) {
+                    break;
+                }
+                bucket = bucket.next;
+            }
+        }
+        // create a bucket for the weet, copying the message into the arena
+        String message = weet.getMessage();
+        long date = weet.getDateWeeted().getTime();
+        Bucket weetBucket = new Bucket(wid, weet.getUserId(), date, text.add(message));
         if (bucket == null) {
+            weetBucket.next = table[hash];
             table[hash] = weetBucket;
         } else {
-            while (bucket.next != null) {
-                bucket = bucket.next;
-            }
             bucket.next = weetBucket;
         }
+        if (idFilter != null) {
+            idFilter.put(wid);
+        }
+        if (timeline != null) {
+            timeline.add(date, weetBucket);
+        }
+        if (userWeets != null) {
+            indexWeet(weetBucket, message, true);
+        }
         // incrase table size by one
         tableSize++;
+        // count the tags used in the weet
+        updateTags(message, date, 1);
+        if (analytics != null) {
+            analytics.weetAdded(weet.getUserId(), date, message);
+        }
         return true;
     }
 
+    /**
+     * removeWeet: remove the weet with the given id from the hash table. The
+     * counts of the tags used in the weet are reduced so the trending topics
+     * stay correct. Returns true if the weet was removed and false if there was
+     * no weet with the id.
+     *
+     * Algorithm Complexity: O(k) + O(t) = O(k)
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     * where t is the number of tags in the weet
+     *
+     */
+
+    public boolean removeWeet(int wid) {
+        return removeWeet(wid, false);
+    }
+
+    /**
+     * evictWeet: remove the weet from the hash table, but keep counting its
+     * tags in the trending topics. Used by TieredWeetStore when a weet is
+     * moved into a sealed segment, so getTrending still covers every weet.
+     *
+     * Algorithm Complexity: O(k)
+     * where k is the number of buckets in list (On average is tableSize/tableCapacity)
+     *
+     */
+
+    boolean evictWeet(int wid) {
+        return removeWeet(wid, true);
+    }
+
+    /**
+     * uncountTags: take a weet that isn't in the hash table, such as one in a
+     * sealed segment that has been removed, out of the tag counts.
+     *
+     * Algorithm Complexity: O(t)
+     * where t is the number of tags in the weet
+     *
+     */
+
+    void uncountTags(String message, long date) {
+        updateTags(message, date, -1);
+    }
+
+    private boolean removeWeet(int wid, boolean keepTags) {
+        if (idFilter != null && !idFilter.mightContain(wid)) {
+            return false;
+        }
+        // calculate the hash and retrive the head bucket from the table
+        int hash = wid % tableCapacity;
+        Bucket bucket = table[hash];
+        Bucket previous = null;
+        // iterate through list of buckets, keeping track of the previous one
+        while (bucket != null) {
+            if (bucket.id == wid) {
+                // unlink the bucket from the list
+                if (previous == null) {
+                    table[hash] = bucket.next;
+                } else {
+                    previous.next = bucket.next;
+                }
+                tableSize--;
+                if (timeline != null) {
+                    timeline.remove(bucket.date, bucket);
+                }
+                // the weet no longer counts towards its tags or matching searches
+                String message = text.get(bucket.message);
+                if (userWeets != null) {
+                    indexWeet(bucket, message, false);
+                }
+                if (!keepTags) {
+                    updateTags(message, bucket.date, -1);
+                }
+                searchCache.invalidateMatching(message);
+                text.free(bucket.message);
+                return true;
+            }
+            previous = bucket;
+            bucket = bucket.next;
+        }
+        // no weet found with given wid
+        return false;
+    }
+
+    /**
+     * enableIdFilter: put a Bloom filter in front of the hash table, made for
+     * the expected number of weets with the given false positive rate. Looking
+     * up, adding or removing a weet whose id is not in the table is then
+     * usually O(1), without going through a list of buckets. The ids already
+     * in the table are added to the filter.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the number of weets in the table
+     *
+     */
+
+    public void enableIdFilter(long expectedWeets, double falsePositiveRate) {
+        enableIdFilter(new BloomFilter(expectedWeets, falsePositiveRate));
+    }
+
+    public void enableIdFilter(BloomFilter filter) {
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                filter.put(bucket.id);
+                bucket = bucket.next;
+            }
+        }
+        idFilter = filter;
+    }
+
+    public void disableIdFilter() {
+        idFilter = null;
+    }
+
+    public BloomFilter getIdFilter() {
+        return idFilter;
+    }
+
+    /**
+     * setAnalytics: tell the analytics about every weet added from now on, or
+     * stop if it is null.
+     *
+     */
+
+    public void setAnalytics(StoreAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    public StoreAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    /**
+     * enableTimeline: keep the weets in date order as they are added and
+     * removed, so getWeets and getWeetsBefore don't have to sort them. The
+     * weets already in the table are added to the timeline.
+     *
+     * Algorithm Complexity: O(n logn)
+     * where n is the number of weets in the table
+     *
+     */
+
+    public void enableTimeline() {
+        if (timeline != null) {
+            return;
+        }
+        // sort the buckets once, then append them in order
+        Bucket[] buckets = new Bucket[tableSize];
+        int bucket_count = 0;
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                buckets[bucket_count++] = bucket;
+                bucket = bucket.next;
+            }
+        }
+        Arrays.sort(buckets, 0, bucket_count, (a, b) -> Long.compare(a.date, b.date));
+        RecencyList<Bucket> list = new RecencyList<>();
+        for (int j=0; j<bucket_count; j++) {
+            list.add(buckets[j].date, buckets[j]);
+        }
+        timeline = list;
+    }
+
+    public void disableTimeline() {
+        timeline = null;
+    }
+
+    public boolean isTimelineEnabled() {
+        return timeline != null;
+    }
+
+    /**
+     * enableQueryIndexes: keep the weets by each user and using each word in
+     * date order as they are added and removed, so query doesn't have to go
+     * through every weet. The timeline is enabled too, and the weets already
+     * in the table are added, earliest first so each is appended.
+     *
+     * Algorithm Complexity: O(n * w), plus O(n logn) if the timeline isn't
+     * enabled
+     * where n is the number of weets in the table
+     * where w is the number of words in a weet
+     *
+     */
+
+    public void enableQueryIndexes() {
+        // the timeline may have been disabled since
+        enableTimeline();
+        if (userWeets != null) {
+            return;
+        }
+        userWeets = new PostingIndex<>();
+        wordWeets = new PostingIndex<>();
+        words = new SymbolTable();
+        for (int i=timeline.size()-1; i>=0; i--) {
+            Bucket bucket = timeline.get(i);
+            indexWeet(bucket, text.get(bucket.message), true);
+        }
+    }
+
+    public void disableQueryIndexes() {
+        userWeets = null;
+        wordWeets = null;
+        words = null;
+    }
+
+    public boolean isQueryIndexesEnabled() {
+        return userWeets != null;
+    }
+
+    // add the weet to, or remove it from, the lists for its user and each different word in it
+    private void indexWeet(Bucket bucket, String message, boolean add) {
+        if (add) {
+            userWeets.add(bucket.userId, bucket.date, bucket);
+        } else {
+            userWeets.remove(bucket.userId, bucket.date, bucket);
+        }
+        int word_count = 0;
+        int length = message.length();
+        int i = 0;
+        while (i < length) {
+            if (Character.isWhitespace(message.charAt(i))) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < length && !Character.isWhitespace(message.charAt(end))) {
+                end++;
+            }
+            int id = add ? words.intern(message, i, end) : words.find(message, i, end);
+            i = end;
+            if (id == -1) {
+                continue;
+            }
+            // a word used twice in the weet is only in its list once
+            boolean seen = false;
+            for (int j=0; j<word_count; j++) {
+                if (wordIds[j] == id) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (seen) {
+                continue;
+            }
+            if (word_count == wordIds.length) {
+                int[] temp = new int[word_count * 2];
+                for (int j=0; j<word_count; j++) {
+                    temp[j] = wordIds[j];
+                }
+                wordIds = temp;
+            }
+            wordIds[word_count++] = id;
+            if (add) {
+                wordWeets.add(id, bucket.date, bucket);
+            } else {
+                wordWeets.remove(id, bucket.date, bucket);
+            }
+        }
+    }
+
+    /**
+     * query: return the weets matching every condition of the query, sorted
+     * such that the most recent weet is first, at most the query's limit of
+     * them.
+     *
+     * The list the search starts from is the one with the fewest weets in the
+     * query's dates: the weets by the user, the weets with one of the words,
+     * or every weet. The weets in it are checked against the rest of the
+     * conditions until the limit is found, so it reads at most the number of
+     * weets in that list, and usually far fewer when there is a limit.
+     *
+     * Without the query indexes every weet in the dates is read instead, with
+     * the user and words checked on each, from the timeline if it is enabled,
+     * or else from the table, in which case the matches have to be sorted. The
+     * indexes are never made here, as that takes far longer than a scan.
+     *
+     * Algorithm Complexity: O(w log n + r * (p log n + c)), or without the
+     * query indexes O(n * c), plus O(m logm) without the timeline
+     * where m is the number of weets that match
+     * where n is the number of weets in the table
+     * where w is the number of words in the query
+     * where r is the number of weets read from the list, at most its count
+     * where p is the number of other words checked for each weet
+     * where c is the length of the message, if the query has containing
+     *
+     */
+
+    public Weet[] query(WeetQuery query) {
+        QueryPlan plan = planQuery(query);
+        if ((plan.driver == null && !plan.scanTable) || query.getLimit() == 0) {
+            return new Weet[0];
+        }
+        int limit = query.getLimit();
+        if (plan.scanTable) {
+            Weet[] found = findWeets(bucket -> bucket.date >= plan.from && bucket.date < plan.before && matches(plan, bucket));
+            if (found.length <= limit) {
+                return found;
+            }
+            return Arrays.copyOf(found, limit);
+        }
+        Weet[] tempWeets = new Weet[Math.min(limit, plan.count)];
+        int weet_count = 0;
+        Iterator<Bucket> buckets = plan.driver.iterator(plan.start);
+        for (int i=0; i<plan.count && weet_count < limit; i++) {
+            Bucket bucket = buckets.next();
+            if (matches(plan, bucket)) {
+                tempWeets[weet_count++] = toWeet(bucket);
+            }
+        }
+        // remove the null elements from the end of the array
+        Weet[] weets = new Weet[weet_count];
+        for (int j=0; j<weet_count; j++) {
+            weets[j] = tempWeets[j];
+        }
+        return weets;
+    }
+
+    /**
+     * explainQuery: describe the plan query would use for the query, the list
+     * it would start from with the number of weets in it, and the checks made
+     * on each of them, without running it.
+     *
+     * Algorithm Complexity: O(w log n)
+     * where n is the number of weets in the table
+     * where w is the number of words in the query
+     *
+     */
+
+    public String explainQuery(WeetQuery query) {
+        QueryPlan plan = planQuery(query);
+        if (plan.driver == null && !plan.scanTable) {
+            return "no weets can match";
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append("read ").append(plan.count).append(" weets from ").append(plan.driverName);
+        if (plan.checkUser) {
+            builder.append(", check user ").append(plan.userId);
+        }
+        for (int i=0; i<plan.probeCount; i++) {
+            builder.append(", check ").append(plan.probeNames[i]).append(" (").append(plan.probeCounts[i]).append(" weets)");
+        }
+        for (int i=0; i<plan.words.length; i++) {
+            builder.append(", check message for word ").append(plan.words[i]);
+        }
+        for (int i=0; i<plan.texts.length; i++) {
+            builder.append(", check containing ").append(query.getText(i));
+        }
+        if (plan.scanTable) {
+            builder.append(", sort the matches");
+        }
+        if (query.getLimit() != Integer.MAX_VALUE) {
+            builder.append(", stop at ").append(query.getLimit());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * planQuery: count the weets in the query's dates in each list the query
+     * could start from, and start from the smallest. Every other word list
+     * becomes a probe, checked smallest first as it is the most likely to
+     * rule a weet out. Without the query indexes the plan is to read every
+     * weet in the dates and check the rest on each.
+     *
+     * Algorithm Complexity: O(w log n + w^2)
+     * where n is the number of weets in the table
+     * where w is the number of words in the query
+     *
+     */
+
+    @SuppressWarnings("unchecked")
+    private QueryPlan planQuery(WeetQuery query) {
+        QueryPlan plan = new QueryPlan();
+        int word_total = query.getWordCount();
+        plan.probes = (RecencyList<Bucket>[]) new RecencyList<?>[word_total];
+        plan.probeCounts = new int[word_total];
+        plan.probeNames = new String[word_total];
+        plan.texts = new byte[query.getTextCount()][];
+        for (int i=0; i<plan.texts.length; i++) {
+            plan.texts[i] = query.getText(i).getBytes(StandardCharsets.UTF_8);
+        }
+        plan.words = new String[0];
+        long from = query.getFrom();
+        long before = query.getBefore();
+        if (from >= before) {
+            return plan;
+        }
+        // with no indexes, or nothing to look up in them and no timeline, every weet is read
+        if (userWeets == null || (timeline == null && !query.hasUser() && word_total == 0)) {
+            return planScan(plan, query, from, before);
+        }
+        // every weet, from the timeline, if it hasn't been disabled since
+        RecencyList<Bucket> driver = timeline;
+        String driverName = "every weet";
+        boolean driverIsWord = false;
+        int driverCount = timeline == null ? Integer.MAX_VALUE : countBetween(timeline, from, before);
+        // the weets by the user
+        if (query.hasUser()) {
+            RecencyList<Bucket> list = userWeets.get(query.getUserId());
+            if (list == null) {
+                return plan;
+            }
+            int count = countBetween(list, from, before);
+            plan.userId = query.getUserId();
+            plan.checkUser = true;
+            if (count < driverCount) {
+                driver = list;
+                driverName = "user " + query.getUserId();
+                driverCount = count;
+                plan.checkUser = false;
+            }
+        }
+        // the weets with each word, a word nothing uses means nothing matches
+        for (int i=0; i<word_total; i++) {
+            String word = query.getWord(i);
+            int id = words.find(word);
+            RecencyList<Bucket> list = id == -1 ? null : wordWeets.get(id);
+            if (list == null || list.size() == 0) {
+                return plan;
+            }
+            int count = countBetween(list, from, before);
+            String name = "word " + word;
+            if (count < driverCount) {
+                // the old driver becomes a probe, unless it is checked another way
+                if (driverIsWord) {
+                    addProbe(plan, driver, driverCount, driverName);
+                } else if (driver != timeline) {
+                    plan.checkUser = true;
+                }
+                driver = list;
+                driverName = name;
+                driverCount = count;
+                driverIsWord = true;
+            } else {
+                addProbe(plan, list, count, name);
+            }
+        }
+        plan.driver = driver;
+        plan.driverName = driverName;
+        plan.count = driverCount;
+        plan.start = driver.size() - (before == Long.MAX_VALUE ? driver.size() : driver.countBefore(before));
+        return plan;
+    }
+
+    // without the query indexes, read every weet in the dates and check the user and words on each
+    private QueryPlan planScan(QueryPlan plan, WeetQuery query, long from, long before) {
+        plan.checkUser = query.hasUser();
+        plan.userId = query.getUserId();
+        plan.words = new String[query.getWordCount()];
+        plan.wordBytes = new byte[plan.words.length][];
+        for (int i=0; i<plan.words.length; i++) {
+            plan.words[i] = query.getWord(i);
+            plan.wordBytes[i] = plan.words[i].getBytes(StandardCharsets.UTF_8);
+        }
+        plan.from = from;
+        plan.before = before;
+        if (timeline == null) {
+            plan.scanTable = true;
+            plan.driverName = "every weet in the table";
+            plan.count = tableSize;
+            return plan;
+        }
+        plan.driver = timeline;
+        plan.driverName = "every weet";
+        plan.count = countBetween(timeline, from, before);
+        plan.start = timeline.size() - (before == Long.MAX_VALUE ? timeline.size() : timeline.countBefore(before));
+        return plan;
+    }
+
+    // add a probe to the plan, keeping the probes sorted by count, smallest first
+    private void addProbe(QueryPlan plan, RecencyList<Bucket> list, int count, String name) {
+        int j = plan.probeCount;
+        while (j > 0 && plan.probeCounts[j-1] > count) {
+            plan.probes[j] = plan.probes[j-1];
+            plan.probeCounts[j] = plan.probeCounts[j-1];
+            plan.probeNames[j] = plan.probeNames[j-1];
+            j--;
+        }
+        plan.probes[j] = list;
+        plan.probeCounts[j] = count;
+        plan.probeNames[j] = name;
+        plan.probeCount++;
+    }
+
+    // the number of weets in the list from the time from up to the time before
+    private static int countBetween(RecencyList<Bucket> list, long from, long before) {
+        int end = before == Long.MAX_VALUE ? list.size() : list.countBefore(before);
+        int start = from == Long.MIN_VALUE ? 0 : list.countBefore(from);
+        return end - start;
+    }
+
+    // check the weet from the driver against the rest of the plan
+    private boolean matches(QueryPlan plan, Bucket bucket) {
+        if (plan.checkUser && bucket.userId != plan.userId) {
+            return false;
+        }
+        for (int i=0; i<plan.probeCount; i++) {
+            if (!plan.probes[i].contains(bucket.date, bucket)) {
+                return false;
+            }
+        }
+        for (int i=0; i<plan.words.length; i++) {
+            if (!hasWord(bucket.message, plan.words[i], plan.wordBytes[i])) {
+                return false;
+            }
+        }
+        for (int i=0; i<plan.texts.length; i++) {
+            if (!text.contains(bucket.message, plan.texts[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if the message has the word, split on whitespace the same way as indexWeet
+    private boolean hasWord(long message, String word, byte[] wordBytes) {
+        // most messages don't have the bytes anywhere, and only the ones that do are made into a String
+        if (!text.contains(message, wordBytes)) {
+            return false;
+        }
+        String s = text.get(message);
+        int start = s.indexOf(word);
+        while (start != -1) {
+            int end = start + word.length();
+            if ((start == 0 || Character.isWhitespace(s.charAt(start - 1)))
+                    && (end == s.length() || Character.isWhitespace(s.charAt(end)))) {
+                return true;
+            }
+            start = s.indexOf(word, start + 1);
+        }
+        return false;
+    }
+
+    /**
+     * getWeetsView: return a read-only List of every weet, with the most
+     * recent first, in the same order as getWeets. The List is a view of the
+     * store rather than a copy, so it changes as weets are added and removed,
+     * and each Weet is only made when it is read. The timeline is enabled if
+     * it isn't already.
+     *
+     * Algorithm Complexity: O(1), or O(n logn) if the timeline isn't enabled
+     * where n is the number of weets in the table
+     *
+     */
+
+    public List<Weet> getWeetsView() {
+        enableTimeline();
+        return timeline.asList(this::toWeet);
+    }
+
     /**
      * getWeet: return a weet from the hash table with the given id. Return null
      * if a weet with the id does not exist.
@@ -96,13 +887,17 @@ public class WeetStore implements IWeetStore {
      */
 
     public Weet getWeet(int wid) {
+        // most ids that aren't in the table can be ruled out without looking
+        if (idFilter != null && !idFilter.mightContain(wid)) {
+            return null;
+        }
         // calculate the hash and retrive the head bucket from the table
         int hash = wid % tableCapacity;
-        Bucket<Weet> bucket = table[hash];
+        Bucket bucket = table[hash];
         // iterate through list of buckets
         while (bucket != null) {
-            if (bucket.weet.getId() == wid) {
-                return bucket.weet;
+            if (bucket.id == wid) {
+                return toCachedWeet(bucket);
             }
             bucket = bucket.next;
         }
@@ -112,9 +907,11 @@ public class WeetStore implements IWeetStore {
 
     /**
      * getWeets: return an array of every weet, sorted by date such hat the most
-     * recent weet is the first item in the list.
+     * recent weet is the first item in the list. If the timeline is enabled
+     * the weets are already in order.
      *
-     * Algorithm Complexity: O(nk) + O(n logn) = O(n logn)
+     * Algorithm Complexity: O(nk) + O(n logn) = O(n logn), or O(n) with the
+     * timeline
      * where n is the number of weets in the table
      *  where k is the number of buckets in list (On average is tableSize/tableCapacity)
      *
@@ -124,12 +921,18 @@ public class WeetStore implements IWeetStore {
         // create an array of size of num of weets in table
         Weet[] weets = new Weet[tableSize];
         int cur_index = 0;
+        if (timeline != null) {
+            for (Bucket bucket : timeline) {
+                weets[cur_index++] = toWeet(bucket);
+            }
+            return weets;
+        }
         // iterate through the hash table, and then the list of buckets
         for (int i=0; i<tableCapacity; i++) {
             // get the head bucket at each table index
-            Bucket<Weet> bucket = table[i];
+            Bucket bucket = table[i];
             while (bucket != null) {
-                weets[cur_index++] = bucket.weet;
+                weets[cur_index++] = toWeet(bucket);
                 bucket = bucket.next;
             }
         }
@@ -142,192 +945,511 @@ public class WeetStore implements IWeetStore {
      * getWeetsByUser: return an array of all weets made by the given user,
      * sorted such that the most recent weet is first.
      *
-     * Algorithm Complexity: O(n logn) + O(n) + O(m) = O(n logn)
+     * Algorithm Complexity: O(n) + O(m logm)
      * where n is the number of weets in the table
      * where m is the number of weets by the given user
      *
      */
 
     public Weet[] getWeetsByUser(User usr) {
-        // get all weets in order of date added
-        Weet[] allWeets = getWeets();
-        // create a temp array to hold tweets by given user
-        Weet[] tempWeets = new Weet[tableSize];
-        int weet_count = 0;
         // get the id of the user
-        int userId = usr.getId();
-        // iterate through allWeets, checking if any are from the given user
-        for (int i=0; i<tableSize; i++) {
-            if (allWeets[i].getUserId() == userId) {
-                tempWeets[weet_count++] = allWeets[i];
-            }
-        }
-        // remove the null elements from the array and return
-        Weet[] weets = new Weet[weet_count];
-        for (int j=0; j<weet_count; j++) {
-            weets[j] = tempWeets[j];
-        }
-        return weets;
+        final int userId = usr.getId();
+        // find the weets from the given user, sorted by date
+        return findWeets(bucket -> bucket.userId == userId);
     }
 
     /**
      * getWeetsContaining: return an array of all weets containing the given
      * query, or null if no weets contain the query. The weets are sorted by
      * date such that the most recent weet is first. Search queries are case
-     * insensitive.
+     * insensitive. Results are kept in the searchCache so that repeated
+     * queries do not have to go through every weet again.
      *
-     * Algorithm Complexity: O(n logn) + O(n) + O(m) = O(n logn)
+     * Algorithm Complexity: O(m) if cached, otherwise O(n) + O(m logm)
      * where n is the number of weets in the table
      * where m is the number of weets containing the given query
      *
      */
 
     public Weet[] getWeetsContaining(String query) {
-        // get all weets in order of date added
-        Weet[] allWeets = getWeets();
-        // create a temp array to hold tweets containing query
-        Weet[] tempWeets = new Weet[tableSize];
-        int weet_count = 0;
-        // iterate through allWeets, checking if they contain the query
-        for (int i=0; i<tableSize; i++) {
-            if (allWeets[i].getMessage().contains(query)) {
-                tempWeets[weet_count++] = allWeets[i];
-            }
+        // check if the query has been searched for recently
+        Weet[] cached = searchCache.get(query);
+        if (cached == null) {
+            cached = findWeetsContaining(query);
+            searchCache.put(query, cached);
         }
         // check if there were any weets found containing query
-        if (weet_count == 0) {
+        if (cached.length == 0) {
             return null;
-        } else {
-            // otherwise remove the null elements from the temp array
-            Weet[] weets = new Weet[weet_count];
-            for (int j=0; j<weet_count; j++) {
-                weets[j] = tempWeets[j];
-            }
-            return weets;
         }
+        // return a copy so the cached array can't be changed
+        Weet[] weets = new Weet[cached.length];
+        for (int i=0; i<cached.length; i++) {
+            weets[i] = cached[i];
+        }
+        return weets;
+    }
+
+    /**
+     * getSearchCache: return the cache used by getWeetsContaining, so that its
+     * hit, miss and eviction statistics can be read.
+     *
+     */
+
+    public QueryCache<Weet[]> getSearchCache() {
+        return searchCache;
+    }
+
+    // go through every weet to find the ones containing the query
+    private Weet[] findWeetsContaining(String query) {
+        // search the bytes of each message in the arena, so only matching weets are made
+        final byte[] queryBytes = query.getBytes(StandardCharsets.UTF_8);
+        return findWeets(bucket -> text.contains(bucket.message, queryBytes));
     }
 
     /**
      * getWeetsOn: return an array of all the weets made on the given date. The
      * weers must be sorted such that the most recent weet is first in the list.
      *
-     * Algorithm Complexity: O(n logn) + O(n) + O(m) = O(n logn)
+     * Algorithm Complexity: O(n) + O(m logm)
      * where n is the number of weets in the table
      * where m is the number of weets create on the given date
      *
      */
 
     public Weet[] getWeetsOn(Date dateOn) {
-        // get all weets in order of date added
-        Weet[] allWeets = getWeets();
-        // create a temp array to hold tweets on date
-        Weet[] tempWeets = new Weet[tableSize];
-        int weet_count = 0;
         // format dateOn so that it can be compared TODO: use exceptions
-        String dateOnFormatted = dateOn.toString().substring(0, 10);
-        // iterate through allWeets, checking if any were weeted on the same day
-        for (int i=0; i<tableSize; i++) {
-            // format the date weetd of the weet
-            String weetDateFormatted = allWeets[i].getDateWeeted().toString().substring(0, 10);
-            if (weetDateFormatted.equals(dateOnFormatted)) {
-                tempWeets[weet_count++] = allWeets[i];
-            }
-        }
-        // remove the null elements from the array and return
-        Weet[] weets = new Weet[weet_count];
-        for (int j=0; j<weet_count; j++) {
-            weets[j] = tempWeets[j];
-        }
-        return weets;
+        final String dateOnFormatted = dateOn.toString().substring(0, 10);
+        // check if each weet was weeted on the same day
+        return findWeets(bucket -> new Date(bucket.date).toString().substring(0, 10).equals(dateOnFormatted));
     }
 
     /**
      * getWeetsBefore: return an array of all the weets that were made before
      * the given date. The weets are sorted such that the most recent is first
-     * in the list.
+     * in the list. With the timeline, the weets before the date are found with
+     * a binary search and are already in order.
      *
-     * Algorithm Complexity: O(n logn) + O(n) + O(m) = O(n logn)
+     * Algorithm Complexity: O(n) + O(m logm), or O(log n + m) with the
+     * timeline
      * where n is the number of weets in the table
      * where m is the number of weets created before the given date
      *
      */
 
     public Weet[] getWeetsBefore(Date dateBefore) {
-        // get all weets in order of date added
-        Weet[] allWeets = getWeets();
-        // create a temp array to hold tweets on date
+        // check if the weet date is before the given date
+        final long before = dateBefore.getTime();
+        if (timeline != null) {
+            Weet[] weets = new Weet[timeline.countBefore(before)];
+            Iterator<Bucket> buckets = timeline.iterator(tableSize - weets.length);
+            for (int i=0; i<weets.length; i++) {
+                weets[i] = toWeet(buckets.next());
+            }
+            return weets;
+        }
+        return findWeets(bucket -> bucket.date < before);
+    }
+
+    /**
+     * findWeets: return every weet whose bucket matches the filter, sorted
+     * such that the most recent weet is first. Only the matching weets are
+     * made into Weets and sorted.
+     *
+     * Algorithm Complexity: O(n) + O(m logm)
+     * where n is the number of weets in the table
+     * where m is the number of weets matching the filter
+     *
+     */
+
+    private Weet[] findWeets(BucketFilter filter) {
+        // create a temp array to hold the matching weets
         Weet[] tempWeets = new Weet[tableSize];
         int weet_count = 0;
-        // iterate through allWeets, checking if the weet date if beofe the given date
-        for (int i=0; i<tableSize; i++) {
-            Date weetDate = allWeets[i].getDateWeeted();
-            if (weetDate.before(dateBefore)) {
-                tempWeets[weet_count++] = allWeets[i];
+        // iterate through the hash table, and then the list of buckets
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                if (filter.matches(bucket)) {
+                    tempWeets[weet_count++] = toWeet(bucket);
+                }
+                bucket = bucket.next;
             }
         }
-        // remove the null elements from the array and return
+        // remove the null elements from the array, sort by date and return
         Weet[] weets = new Weet[weet_count];
         for (int j=0; j<weet_count; j++) {
             weets[j] = tempWeets[j];
         }
+        sort(weets, weet_count);
         return weets;
     }
 
+    /**
+     * forEachWeet: call the visitor for every weet, in the order they are in
+     * the hash table, without making a Weet for each. Used to export the
+     * weets, as the messages can be copied straight out of the arena.
+     *
+     * Algorithm Complexity: O(n)
+     * where n is the number of weets in the table
+     *
+     */
+
+    public void forEachWeet(WeetVisitor visitor) {
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                visitor.visit(bucket.id, bucket.userId, bucket.date, bucket.message);
+                bucket = bucket.next;
+            }
+        }
+    }
+
+    TextArena getText() {
+        return text;
+    }
+
+    /**
+     * compactText: copy the messages and tags of the weets still in the table
+     * into a new arena, so the space left by removed weets can be collected.
+     * The arena never reuses freed space itself, so a store that removes lots
+     * of weets, like the hot segment of a TieredWeetStore, should call this
+     * once much of its arena has been freed. The tags still in use are given
+     * new ids and the unused ones are dropped.
+     *
+     * Algorithm Complexity: O(n + u + b)
+     * where n is the number of weets in the table
+     * where u is the number of different tags in the tag table
+     * where b is the number of bytes of text still in use
+     *
+     */
+
+    public void compactText() {
+        TextArena compacted = new TextArena();
+        rebuildTags(compacted);
+        byte[] scratch = new byte[256];
+        for (int i=0; i<tableCapacity; i++) {
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                int length = TextArena.lengthOf(bucket.message);
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                text.copyTo(bucket.message, scratch, 0);
+                bucket.message = compacted.add(scratch, 0, length);
+                bucket = bucket.next;
+            }
+        }
+        text = compacted;
+    }
+
+    // return the Weet kept in the bucket, or make one from the fields kept in the bucket
+    private Weet toWeet(Bucket bucket) {
+        SoftReference<Weet> cached = bucket.cached;
+        Weet weet = cached == null ? null : cached.get();
+        if (weet == null) {
+            weet = new Weet(bucket.id, bucket.userId, text.get(bucket.message), new Date(bucket.date));
+        }
+        return weet;
+    }
+
+    // the same as toWeet, but keep the Weet it makes in the bucket for the next lookup
+    private Weet toCachedWeet(Bucket bucket) {
+        SoftReference<Weet> cached = bucket.cached;
+        Weet weet = cached == null ? null : cached.get();
+        if (weet == null) {
+            weet = new Weet(bucket.id, bucket.userId, text.get(bucket.message), new Date(bucket.date));
+            bucket.cached = new SoftReference<>(weet);
+        }
+        return weet;
+    }
+
     /**
      * getTrending: return an array of the top 10 trending topics from from
      * weets. As per the FAQ, since there could be an arbitrary number of tags
-     * in a weet so this method will extract them all.
-     *
-     * Algorithm Complexity: O(n logn) + O(nm)
-     * where n is
-     *
-     */
-
-    public String[] getTrending() { //TODO: FINISH
-        // get all weets in order of date added
-        Weet[] allWeets = getWeets();
-        // create arrays to hold data about the topics
-        String[] allTopics = new String[tableSize];
-        int[] allTopicsCount = new int[tableSize];
-        int topic_count = 0;
-        // loop backwards through the weets so recently weeted at the end
-        for (int i=tableSize-1; i>-1; i--) {
-            // get the all of the tags in the weet
-            String message = allWeets[i].getMessage();
-            while (getTag(message) != null) {
-                String tag = getTag(message);
-                for (int j=0; j<topic_count; j++) {
-                    // tag in allTopics, add one to count
-                    if (allTopics[j].equals(tag)) {
-                        allTopicsCount[j] += 1;
+     * in a weet so this method will extract them all. Topics used by the same
+     * number of weets are ordered by which was used most recently.
+     *
+     * Algorithm Complexity: O(t)
+     * where t is the number of different tags in the tag table
+     *
+     */
+
+    public String[] getTrending() {
+        // the ids of the top 10 tags, with the most used at the start
+        int[] top = new int[10];
+        int top_count = 0;
+        // go through the count of every tag by its id
+        int tag_total = tags.size();
+        for (int id=0; id<tag_total; id++) {
+            if (tagUses[id] > 0) {
+                // find where the tag belongs in the top 10, if at all
+                int j = top_count;
+                while (j > 0 && isMoreTrending(id, top[j-1])) {
+                    j--;
+                }
+                if (j < 10) {
+                    // shift the less trending tags down one place
+                    int last = top_count < 10 ? top_count : 9;
+                    for (int k=last; k>j; k--) {
+                        top[k] = top[k-1];
                     }
-                    // tag not already in allTopics
-                    if (j == topic_count-1) {
-                        allTopics[j++] = tag;
+                    top[j] = id;
+                    if (top_count < 10) {
+                        top_count++;
                     }
                 }
-                // remove tag from the message and repeat process
-                message.replace(tag, "");
             }
         }
-        // // get the top 10 topics and return them
-        // String topics = new String[10];
-        // for (int j=0; j<10; j++) {
-        //     topics[j] = allTopics[]
-        // }
-        return null;
+        // get the tag names and return them
+        String[] topics = new String[top_count];
+        for (int m=0; m<top_count; m++) {
+            topics[m] = tags.get(top[m]);
+        }
+        return topics;
     }
 
     /**
-     * getTag: get the first occurance of a tag from the weet and return it.
-     * Will only get the first tag even if there are multiple in the weet.
+     * getTagCounts: return every tag that is used by at least one weet, with
+     * its count and when it was last used.
      *
-     * Algorithm Complexity:
-     * where n is
+     * Algorithm Complexity: O(t)
+     * where t is the number of different tags in the tag table
      *
      */
-    private String getTag(String message) {
-        return null;
+
+    public TagCounts getTagCounts() {
+        // count the tags still in use
+        int tag_total = tags.size();
+        int in_use = 0;
+        for (int id=0; id<tag_total; id++) {
+            if (tagUses[id] > 0) {
+                in_use++;
+            }
+        }
+        TagCounts tagCounts = new TagCounts(new String[in_use], new int[in_use], new long[in_use]);
+        int k = 0;
+        for (int id=0; id<tag_total; id++) {
+            if (tagUses[id] > 0) {
+                tagCounts.tags[k] = tags.get(id);
+                tagCounts.counts[k] = tagUses[id];
+                tagCounts.lastUsed[k] = tagLastUsed[id];
+                k++;
+            }
+        }
+        return tagCounts;
+    }
+
+    // true if tag a should come before tag b in the trending topics
+    private boolean isMoreTrending(int a, int b) {
+        if (tagUses[a] != tagUses[b]) {
+            return tagUses[a] > tagUses[b];
+        }
+        return tagLastUsed[a] > tagLastUsed[b];
+    }
+
+    /**
+     * updateTags: add change to the count of every different tag in the
+     * message, giving the tag an id if it doesn't already have one. A tag is
+     * a word starting with a '#', ending at the next whitespace. If most of
+     * the tags are no longer used afterwards they are reclaimed.
+     *
+     * Algorithm Complexity: O(t^2), or O(u) when the tags are reclaimed
+     * where t is the number of tags in the weet
+     * where u is the number of different tags in the tag table
+     *
+     */
+
+    private void updateTags(String message, long date, int change) {
+        int tag_count = 0;
+        int length = message.length();
+        int i = 0;
+        while (i < length) {
+            // find the start of the next tag
+            int end = tagEnd(message, i);
+            if (end == -1) {
+                i++;
+                continue;
+            }
+            int id = change > 0 ? internTag(message, i, end) : tags.find(message, i, end);
+            i = end;
+            if (id == -1) {
+                continue;
+            }
+            // a tag used twice in the weet is only counted once
+            boolean seen = false;
+            for (int j=0; j<tag_count; j++) {
+                if (messageTags[j] == id) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (seen) {
+                continue;
+            }
+            if (tag_count == messageTags.length) {
+                int[] temp = new int[tag_count * 2];
+                for (int j=0; j<tag_count; j++) {
+                    temp[j] = messageTags[j];
+                }
+                messageTags = temp;
+            }
+            messageTags[tag_count++] = id;
+            updateTag(id, date, change);
+        }
+        if (deadTags > 64 && deadTags * 2 > tags.size()) {
+            rebuildTags(text);
+        }
+    }
+
+    /**
+     * tagEnd: return the end of the tag starting at i in the message, or -1 if
+     * no tag starts there. Also used by StoreAnalytics, so both agree on what
+     * a tag is.
+     *
+     * Algorithm Complexity: O(c)
+     * where c is the length of the tag
+     *
+     */
+
+    static int tagEnd(String message, int i) {
+        if (message.charAt(i) != '#' || (i > 0 && !Character.isWhitespace(message.charAt(i-1)))) {
+            return -1;
+        }
+        int length = message.length();
+        int end = i + 1;
+        while (end < length && !Character.isWhitespace(message.charAt(end))) {
+            end++;
+        }
+        // ignore a '#' on its own
+        return end > i + 1 ? end : -1;
+    }
+
+    // return the id of the tag from start to end of the message, giving it one if it is new
+    private int internTag(String message, int start, int end) {
+        int tag_total = tags.size();
+        int id = tags.intern(message, start, end);
+        if (id == tag_total) {
+            // a new tag, make room for its counts
+            if (id == tagUses.length) {
+                int[] tempUses = new int[id * 2];
+                long[] tempLastUsed = new long[id * 2];
+                for (int j=0; j<id; j++) {
+                    tempUses[j] = tagUses[j];
+                    tempLastUsed[j] = tagLastUsed[j];
+                }
+                tagUses = tempUses;
+                tagLastUsed = tempLastUsed;
+            }
+            tagLastUsed[id] = Long.MIN_VALUE;
+        } else if (tagUses[id] == 0) {
+            // an unused tag being used again
+            deadTags--;
+        }
+        return id;
+    }
+
+    // add change to the count of the tag with the id
+    private void updateTag(int id, long date, int change) {
+        if (change > 0 && date > tagLastUsed[id]) {
+            tagLastUsed[id] = date;
+        }
+        tagUses[id] += change;
+        if (change < 0 && tagUses[id] == 0) {
+            deadTags++;
+        }
+    }
+
+    /**
+     * rebuildTags: give the tags still used by a weet new ids in a new tag
+     * table in the arena, with their counts, and drop the rest. When the
+     * arena is the one the tags are in now, the old copies of every tag are
+     * freed, so compactText can collect them.
+     *
+     * Algorithm Complexity: O(u)
+     * where u is the number of different tags in the tag table
+     *
+     */
+
+    private void rebuildTags(TextArena arena) {
+        SymbolTable rebuilt = new SymbolTable(arena);
+        int[] tempUses = new int[tagUses.length];
+        long[] tempLastUsed = new long[tagLastUsed.length];
+        int tag_total = tags.size();
+        for (int id=0; id<tag_total; id++) {
+            if (tagUses[id] > 0) {
+                int newId = rebuilt.intern(tags.get(id));
+                tempUses[newId] = tagUses[id];
+                tempLastUsed[newId] = tagLastUsed[id];
+            }
+            if (arena == text) {
+                text.free(tags.getHandle(id));
+            }
+        }
+        tags = rebuilt;
+        tagUses = tempUses;
+        tagLastUsed = tempLastUsed;
+        deadTags = 0;
+    }
+
+    /**
+     * Methods used to monitor the hash table: the number of weets, the average
+     * and longest length of the lists of buckets, and an estimate of the memory
+     * used by the table, buckets, tag counts and id filter in bytes. The
+     * estimate assumes 4 byte references and 48 byte buckets, as on a 64 bit
+     * JVM with compressed references, not counting the Weets kept by getWeet.
+     * getTextMemory is the memory used by the arena holding the messages and
+     * tags, and getTagCount the number of different tags in the tag table. That
+     * is the tags in use, plus those no longer used by any weet until there are
+     * enough of them for the table to be rebuilt without them. The index memory
+     * includes the timeline and the query indexes, if enabled, and the text
+     * memory the words of the query indexes.
+     *
+     * Algorithm Complexity: O(1), except getLongestChain which is O(c)
+     * where c is the table capacity, getTextMemory which is O(s)
+     * where s is the number of slabs in the arena, and getIndexMemory which is
+     * O(u + w) with the query indexes
+     * where u and w are the number of users and words in the query indexes
+     *
+     */
+
+    public int getSize() {
+        return tableSize;
+    }
+
+    public double getLoadFactor() {
+        return (double) tableSize / tableCapacity;
+    }
+
+    public int getLongestChain() {
+        int longest = 0;
+        for (int i=0; i<tableCapacity; i++) {
+            int length = 0;
+            Bucket bucket = table[i];
+            while (bucket != null) {
+                length++;
+                bucket = bucket.next;
+            }
+            if (length > longest) {
+                longest = length;
+            }
+        }
+        return longest;
+    }
+
+    public long getIndexMemory() {
+        return 16L + 4L * tableCapacity + 48L * tableSize + 16L + 4L * tagUses.length + 16L + 8L * tagLastUsed.length
+            + tags.getMemory() + (idFilter == null ? 0 : idFilter.getMemory())
+            + (timeline == null ? 0 : timeline.getMemory())
+            + (userWeets == null ? 0 : userWeets.getMemory() + wordWeets.getMemory() + words.getMemory());
+    }
+
+    public long getTextMemory() {
+        return text.getMemory() + (words == null ? 0 : words.getArena().getMemory());
+    }
+
+    public int getTagCount() {
+        return tags.size();
     }
 
     /**
@@ -0,0 +1,330 @@
+/**
+ * WorkloadGenerator creates made up users, weets and follow relationships that
+ * look like the ones a real social network would have, for benchmarking and
+ * soak testing the stores. Everything comes from one seeded Random, so the
+ * same seed always gives exactly the same data.
+ *
+ * Users join one after another. The author of each weet is picked with a Zipf
+ * distribution, so a few users write most of the weets. Weet messages are made
+ * from a vocabulary of words, also picked with a Zipf distribution, with a
+ * length that is usually short but sometimes goes up to the 140 character
+ * limit. Some weets have one or more hashtags, where a few tags are much more
+ * popular than the rest.
+ *
+ * The follow relationships use preferential attachment: each user follows a
+ * few users that joined before them, with users who already have a lot of
+ * followers being more likely to be followed. This gives the small number of
+ * very popular users seen in real follower graphs. It is done by keeping a list
+ * with every user id once plus once more for each follower they have, and
+ * picking uniformly from that list.
+ *
+ * It also makes up search queries for the names and the messages. Popular
+ * queries come up more often, but there are thousands of different ones, far
+ * more than a search cache holds, so searching with them measures the misses
+ * as well as the hits.
+ *
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.Random;
+
+public class WorkloadGenerator {
+
+    /**
+     * Edges: the generated follow relationships, where followers[i] follows
+     * followed[i] on dates[i]. Arrays are used rather than an object per
+     * relationship so that millions of them can be generated.
+     *
+     */
+    public static class Edges {
+        public int[] followers;
+        public int[] followed;
+        public long[] dates;
+        public int size;
+
+        public Edges(int capacity) {
+            followers = new int[capacity];
+            followed = new int[capacity];
+            dates = new long[capacity];
+            size = 0;
+        }
+    }
+
+    /**
+     * Zipf: picks numbers from 0 to n-1 where the probability of k is roughly
+     * proportional to 1 / (k+1)^s. It uses the inverse of the continuous
+     * version of the distribution so no table is needed for large n.
+     *
+     */
+    public static class Zipf {
+        private final int n;
+        private final double oneMinusS;
+        private final double nPower;
+        private final Random random;
+
+        public Zipf(int n, double s, Random random) {
+            this.n = n;
+            this.oneMinusS = 1.0 - s;
+            this.nPower = Math.pow(n + 1, oneMinusS) - 1.0;
+            this.random = random;
+        }
+
+        public int next() {
+            double x = Math.pow(nPower * random.nextDouble() + 1.0, 1.0 / oneMinusS) - 1.0;
+            int k = (int) x;
+            return k < n ? k : n - 1;
+        }
+    }
+
+    public static final long START_DATE = 1262304000000L;
+    public static final int MAX_WEET_LENGTH = 140;
+
+    private static final String[] FIRST_NAMES = {"Oliver", "Amelia", "Harry", "Olivia", "Jack", "Emily", "George", "Isla",
+        "Noah", "Ava", "Charlie", "Jessica", "Jacob", "Poppy", "Alfie", "Sophie", "Freddie", "Lily", "Oscar", "Grace"};
+    private static final String[] LAST_NAMES = {"Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson",
+        "Davies", "Robinson", "Wright", "Thompson", "Evans", "Walker", "White", "Roberts", "Green", "Hall", "Wood"};
+    private static final String[] WORDS = {"the", "a", "to", "and", "of", "in", "is", "it", "you", "that", "for", "on",
+        "my", "this", "with", "just", "so", "me", "at", "be", "coffee", "today", "lecture", "library", "exam", "java",
+        "weather", "tonight", "football", "music", "warwick", "campus", "deadline", "coursework", "lunch", "train",
+        "weekend", "monday", "friday", "party", "film", "game", "news", "rain", "sun", "happy", "tired", "love",
+        "hate", "new", "good", "bad", "great", "really", "never", "always", "time", "people", "work", "home"};
+    private static final String[] TAG_WORDS = {"cs126", "warwick", "monday", "java", "coffee", "exams", "food",
+        "music", "football", "weekend", "tbt", "nofilter", "news", "weather", "leamington", "coventry", "film",
+        "gaming", "fitness", "travel"};
+
+    private final Random random;
+    private final Zipf wordZipf;
+    private final Zipf tagZipf;
+    private final int numTags;
+
+    public WorkloadGenerator(long seed) {
+        this(seed, 1000);
+    }
+
+    public WorkloadGenerator(long seed, int numTags) {
+        this.random = new Random(seed);
+        this.numTags = numTags;
+        this.wordZipf = new Zipf(WORDS.length, 1.0001, random);
+        this.tagZipf = new Zipf(numTags, 1.2, random);
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * generateUsers: create n users with ids 1 to n, joining a few minutes
+     * apart in id order.
+     *
+     * Algorithm Complexity: O(n)
+     *
+     */
+
+    public User[] generateUsers(int n) {
+        User[] users = new User[n];
+        long date = START_DATE;
+        for (int i=0; i<n; i++) {
+            String name = nextName();
+            // time between users joining is exponentially distributed, 5 minutes on average
+            date += nextGap(5 * 60 * 1000);
+            users[i] = new User(name, i + 1, new Date(date));
+        }
+        return users;
+    }
+
+    /**
+     * generateWeets: create n weets with ids 1 to n, weeted a few seconds apart
+     * in id order by users with ids 1 to numUsers.
+     *
+     * Algorithm Complexity: O(n)
+     *
+     */
+
+    public Weet[] generateWeets(int n, int numUsers) {
+        Weet[] weets = new Weet[n];
+        Zipf authorZipf = new Zipf(numUsers, 1.1, random);
+        long date = START_DATE;
+        for (int i=0; i<n; i++) {
+            date += nextGap(30 * 1000);
+            weets[i] = new Weet(i + 1, authorZipf.next() + 1, nextMessage(), new Date(date));
+        }
+        return weets;
+    }
+
+    /**
+     * generateFollows: create follow relationships between the users with ids
+     * 1 to numUsers using preferential attachment. Each user follows up to
+     * followsPerUser of the users that joined before them.
+     *
+     * Algorithm Complexity: O(u * f)
+     * where u is the number of users
+     * where f is the number of follows per user
+     *
+     */
+
+    public Edges generateFollows(int numUsers, int followsPerUser) {
+        Edges edges = new Edges((int) Math.min((long) numUsers * followsPerUser, Integer.MAX_VALUE - 8));
+        // every user appears once, plus once for every follower they get
+        int[] targets = new int[numUsers + edges.followers.length];
+        int target_count = 0;
+        // a list of the users followed by the current user, to avoid duplicates
+        int[] chosen = new int[followsPerUser];
+        long date = START_DATE;
+        for (int uid=1; uid<=numUsers; uid++) {
+            int follows = Math.min(followsPerUser, uid - 1);
+            int chosen_count = 0;
+            int attempts = 0;
+            while (chosen_count < follows && attempts < follows * 10 && edges.size < edges.followers.length) {
+                attempts++;
+                int followed = targets[random.nextInt(target_count)];
+                if (contains(chosen, chosen_count, followed)) {
+                    continue;
+                }
+                chosen[chosen_count++] = followed;
+                date += nextGap(10 * 1000);
+                edges.followers[edges.size] = uid;
+                edges.followed[edges.size] = followed;
+                edges.dates[edges.size] = date;
+                edges.size++;
+                targets[target_count++] = followed;
+            }
+            // the new user can now be followed by later users
+            targets[target_count++] = uid;
+        }
+        return edges;
+    }
+
+    /**
+     * nextMessage: create the text of a weet. Its length is roughly log-normal,
+     * around 60 characters, and never more than MAX_WEET_LENGTH.
+     *
+     */
+
+    public String nextMessage() {
+        int length = (int) Math.exp(4.1 + 0.5 * random.nextGaussian());
+        if (length < 5) {
+            length = 5;
+        } else if (length > MAX_WEET_LENGTH) {
+            length = MAX_WEET_LENGTH;
+        }
+        // 30% of weets have a tag, and a third of those have another
+        String[] tags = new String[3];
+        int tag_count = 0;
+        double chance = random.nextDouble();
+        if (chance < 0.3) {
+            tags[tag_count++] = nextTag();
+            if (chance < 0.1) {
+                tags[tag_count++] = nextTag();
+                if (chance < 0.02) {
+                    tags[tag_count++] = nextTag();
+                }
+            }
+        }
+        StringBuilder message = new StringBuilder(length + 16);
+        while (message.length() < length) {
+            if (message.length() > 0) {
+                message.append(' ');
+            }
+            message.append(WORDS[wordZipf.next()]);
+        }
+        int wordsEnd = message.length();
+        for (int i=0; i<tag_count; i++) {
+            message.append(' ').append(tags[i]);
+        }
+        if (message.length() > MAX_WEET_LENGTH) {
+            // cut off words rather than tags
+            int extra = message.length() - MAX_WEET_LENGTH;
+            message.delete(Math.max(wordsEnd - extra, 0), wordsEnd);
+        }
+        return message.toString();
+    }
+
+    /**
+     * nextName: pick a first and last name for a user.
+     *
+     */
+
+    public String nextName() {
+        return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+    }
+
+    /**
+     * nextNameQuery: pick something to search the users' names for, the way it
+     * would be typed: the start of a first or last name, a whole name, or a
+     * first name and the start of a last name.
+     *
+     */
+
+    public String nextNameQuery() {
+        String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        double chance = random.nextDouble();
+        if (chance < 0.25) {
+            return prefix(first);
+        } else if (chance < 0.5) {
+            return prefix(last);
+        } else if (chance < 0.7) {
+            return first + " " + last;
+        }
+        return first + " " + prefix(last);
+    }
+
+    /**
+     * nextWordQuery: pick something to search the weets' messages for: a
+     * hashtag, a word or two words in a row, with the popular ones picked the
+     * most.
+     *
+     */
+
+    public String nextWordQuery() {
+        double chance = random.nextDouble();
+        if (chance < 0.4) {
+            return nextTag();
+        } else if (chance < 0.8) {
+            return WORDS[wordZipf.next()];
+        }
+        return WORDS[wordZipf.next()] + " " + WORDS[wordZipf.next()];
+    }
+
+    /**
+     * nextTag: pick a hashtag, where a few tags are much more popular than the
+     * rest.
+     *
+     */
+
+    public String nextTag() {
+        int tag = tagZipf.next();
+        if (tag < TAG_WORDS.length) {
+            return "#" + TAG_WORDS[tag];
+        }
+        return "#topic" + tag;
+    }
+
+    public int getNumTags() {
+        return numTags;
+    }
+
+    // the first 2 or more characters of the word
+    private String prefix(String word) {
+        return word.substring(0, 2 + random.nextInt(word.length() - 1));
+    }
+
+    // exponentially distributed gap with the given mean, at least 1
+    private long nextGap(long mean) {
+        return 1 + (long) (-Math.log(1.0 - random.nextDouble()) * mean);
+    }
+
+    private static boolean contains(int[] array, int size, int value) {
+        for (int i=0; i<size; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}